@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.avro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.xerial.snappy.Snappy;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Forward-only reader of Avro binary container file data.
+ *
+ * In contrast to {@link org.apache.avro.file.DataFileStream}, this reader doesn't parse the writer
+ * schema JSON contained in the header of each container; instead the parsed schema is looked up in
+ * a JVM-wide cache keyed on the raw bytes of the <code>avro.schema</code> metadata entry. This
+ * matters if there are many small containers that share a handful of schemas.
+ *
+ * Blocks compressed with the null, deflate and snappy codecs are decoded natively. Containers with
+ * any other codec, e.g. bzip2, are read with a {@link DataFileStream} instead, which supports all
+ * codecs known to {@link org.apache.avro.file.CodecFactory}.
+ */
+final class AvroContainerReader {
+
+  private final BinaryDecoder vin;
+  private final Map<String, byte[]> meta = new HashMap();
+  private final byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+  private final byte[] syncBuffer = new byte[DataFileConstants.SYNC_SIZE];
+  private final byte[] schemaBytes;
+  private final Schema schema;
+  private final String codec;
+
+  private byte[] blockBytes = new byte[0];
+  private byte[] uncompressedBytes = new byte[0];
+  private BinaryDecoder datumIn;
+  private boolean isInBlock = false;
+  private long blockRemaining = 0;
+  private Inflater inflater;
+  private DataFileStream fallback; // for codecs that aren't decoded natively
+  private final SwitchableDatumReader fallbackDatumReader = new SwitchableDatumReader();
+
+  private static final byte[] MAGIC = new byte[] { 'O', 'b', 'j', 1 };
+  private static final String NULL_CODEC = "null";
+  private static final String DEFLATE_CODEC = "deflate";
+  private static final String SNAPPY_CODEC = "snappy";
+
+  private static final Cache<ByteArrayKey, Schema> SCHEMA_CACHE = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+  /** Reads the container header from the given stream */
+  public AvroContainerReader(InputStream in, BinaryDecoder reuse) throws IOException {
+    this.vin = DecoderFactory.get().binaryDecoder(in, reuse);
+
+    byte[] magic = new byte[MAGIC.length];
+    try {
+      vin.readFixed(magic);
+    } catch (IOException e) {
+      throw new IOException("Not a data file.", e);
+    }
+    if (!Arrays.equals(MAGIC, magic)) {
+      throw new IOException("Not a data file.");
+    }
+
+    long l = vin.readMapStart();
+    while (l > 0) {
+      for (long i = 0; i < l; i++) {
+        String key = vin.readString(null).toString();
+        meta.put(key, vin.readBytes(null).array());
+      }
+      l = vin.mapNext();
+    }
+    vin.readFixed(sync);
+
+    this.schemaBytes = meta.get(DataFileConstants.SCHEMA);
+    if (schemaBytes == null) {
+      throw new IOException("Missing Avro schema in container header");
+    }
+    this.schema = getSchema(schemaBytes);
+
+    byte[] codecBytes = meta.get(DataFileConstants.CODEC);
+    this.codec = codecBytes == null ? NULL_CODEC : new String(codecBytes, Charsets.UTF_8);
+    if (!codec.equals(NULL_CODEC) && !codec.equals(DEFLATE_CODEC) && !codec.equals(SNAPPY_CODEC)) {
+      // replay the header we have already consumed, followed by the rest of the container
+      InputStream header = new ByteArrayInputStream(encodeHeader());
+      this.fallback = new DataFileStream(new SequenceInputStream(header, vin.inputStream()), fallbackDatumReader);
+    }
+  }
+
+  private byte[] encodeHeader() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC);
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    encoder.writeMapStart();
+    encoder.setItemCount(meta.size());
+    for (Map.Entry<String, byte[]> entry : meta.entrySet()) {
+      encoder.startItem();
+      encoder.writeString(entry.getKey());
+      encoder.writeBytes(entry.getValue());
+    }
+    encoder.writeMapEnd();
+    encoder.writeFixed(sync);
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  /** Returns the parsed writer schema, parsing the schema JSON only if no equal bytes were parsed before */
+  private static Schema getSchema(final byte[] schemaBytes) throws IOException {
+    try {
+      return SCHEMA_CACHE.get(new ByteArrayKey(schemaBytes), new Callable<Schema>() {
+        @Override
+        public Schema call() {
+          return new Schema.Parser().setValidate(false).parse(new String(schemaBytes, Charsets.UTF_8));
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new IOException("Cannot parse Avro writer schema in container header", e.getCause());
+    }
+  }
+
+  /** Returns the writer schema */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /** Returns the raw bytes of the writer schema, suitable as a cache key */
+  public byte[] getSchemaBytes() {
+    return schemaBytes;
+  }
+
+  /** Returns the value of a metadata property, or null if the property isn't defined */
+  public byte[] getMeta(String key) {
+    return meta.get(key);
+  }
+
+  /** Returns the underlying decoder, for reuse with the next container */
+  public BinaryDecoder getDecoder() {
+    return vin;
+  }
+
+  /** Releases native resources held by the decompressor, if any */
+  public void close() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  /** Returns true if there are more datums to read */
+  public boolean hasNext() throws IOException {
+    if (fallback != null) {
+      return fallback.hasNext();
+    }
+    while (blockRemaining == 0) {
+      if (isInBlock) { // finished previous block
+        vin.readFixed(syncBuffer);
+        if (!Arrays.equals(sync, syncBuffer)) {
+          throw new IOException("Invalid sync!");
+        }
+        isInBlock = false;
+      }
+      if (vin.isEnd()) {
+        return false;
+      }
+      blockRemaining = vin.readLong();
+      long blockSize = vin.readLong();
+      if (blockSize > Integer.MAX_VALUE || blockSize < 0) {
+        throw new IOException("Block size invalid or too large for this implementation: " + blockSize);
+      }
+      if (blockBytes.length < blockSize) {
+        blockBytes = new byte[(int) blockSize];
+      }
+      vin.readFixed(blockBytes, 0, (int) blockSize);
+      datumIn = decompress((int) blockSize);
+      isInBlock = true;
+    }
+    return true;
+  }
+
+  /** Reads the next datum */
+  public <D> D next(D reuse, DatumReader<D> datumReader) throws IOException {
+    if (fallback != null) {
+      fallbackDatumReader.setDelegate(datumReader);
+      return (D) fallback.next(reuse);
+    }
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    D datum = datumReader.read(reuse, datumIn);
+    blockRemaining--;
+    return datum;
+  }
+
+  private BinaryDecoder decompress(int length) throws IOException {
+    if (codec.equals(NULL_CODEC)) {
+      return DecoderFactory.get().binaryDecoder(blockBytes, 0, length, datumIn);
+    } else if (codec.equals(DEFLATE_CODEC)) {
+      if (inflater == null) {
+        inflater = new Inflater(true);
+      }
+      inflater.reset();
+      inflater.setInput(blockBytes, 0, length);
+      int n = 0;
+      try {
+        while (!inflater.finished()) {
+          if (n == uncompressedBytes.length) {
+            uncompressedBytes = Arrays.copyOf(uncompressedBytes, Math.max(2 * n, 2 * length + 64));
+          }
+          int k = inflater.inflate(uncompressedBytes, n, uncompressedBytes.length - n);
+          if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          n += k;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      return DecoderFactory.get().binaryDecoder(uncompressedBytes, 0, n, datumIn);
+    } else { // snappy; the last 4 bytes are the CRC32 of the uncompressed data
+      int n = Snappy.uncompressedLength(blockBytes, 0, length - 4);
+      if (uncompressedBytes.length < n) {
+        uncompressedBytes = new byte[n];
+      }
+      Snappy.uncompress(blockBytes, 0, length - 4, uncompressedBytes, 0);
+      CRC32 crc32 = new CRC32();
+      crc32.update(uncompressedBytes, 0, n);
+      int expected = ((blockBytes[length - 4] & 0xFF) << 24) | ((blockBytes[length - 3] & 0xFF) << 16)
+          | ((blockBytes[length - 2] & 0xFF) << 8) | (blockBytes[length - 1] & 0xFF);
+      if ((int) crc32.getValue() != expected) {
+        throw new IOException("Checksum failure");
+      }
+      return DecoderFactory.get().binaryDecoder(uncompressedBytes, 0, n, datumIn);
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * Lets the fallback DataFileStream use the datum reader passed to {@link #next(Object, DatumReader)},
+   * whose schema and resolver the caller has already configured for the writer schema.
+   */
+  private static final class SwitchableDatumReader implements DatumReader {
+
+    private DatumReader delegate;
+
+    public void setDelegate(DatumReader delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+      // the caller configures the delegate with the writer schema of the header
+    }
+
+    @Override
+    public Object read(Object reuse, Decoder in) throws IOException {
+      return delegate.read(reuse, in);
+    }
+  }
+
+
+  static final class ByteArrayKey {
+
+    private final byte[] bytes;
+    private final int hashCode;
+
+    public ByteArrayKey(byte[] bytes) {
+      this.bytes = bytes;
+      this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      ByteArrayKey otherKey = (ByteArrayKey) other;
+      return hashCode == otherKey.hashCode && Arrays.equals(bytes, otherKey.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+}
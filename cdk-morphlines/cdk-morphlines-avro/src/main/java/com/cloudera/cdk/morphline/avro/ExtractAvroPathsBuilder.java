@@ -16,9 +16,12 @@
 package com.cloudera.cdk.morphline.avro;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,7 +32,6 @@ import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericEnumSymbol;
 import org.apache.avro.generic.GenericFixed;
-import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.IndexedRecord;
 import org.apache.avro.util.Utf8;
 
@@ -84,8 +86,13 @@ public final class ExtractAvroPathsBuilder implements CommandBuilder {
     
     private final boolean flatten;
     private final Map<String, Collection<String>> stepMap;
+    private final PathNode pathTree = new PathNode(); // all paths merged, so common prefixes are walked once
+    private final Map<Schema, Accessor[]> plans = new HashMap(); // cache of compiled accessor plans
+    private Schema lastSchema; // fast path for the common case where all datums have the same schema
+    private Accessor[] lastPlan;
     
     private static final String ARRAY_TOKEN = "[]";
+    private static final int MAX_PLANS = 100;
 
     public ExtractAvroPaths(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);
@@ -118,6 +125,13 @@ public final class ExtractAvroPathsBuilder implements CommandBuilder {
       }
       this.stepMap = stepMultiMap.asMap();
       LOG.debug("stepMap: {}", stepMap);
+      for (Map.Entry<String, Collection<String>> entry : stepMap.entrySet()) {
+        PathNode node = pathTree;
+        for (String step : entry.getValue()) {
+          node = node.getOrCreateChild(step);
+        }
+        node.fieldNames.add(entry.getKey());
+      }
       validateArguments();
     }
     
@@ -133,65 +147,66 @@ public final class ExtractAvroPathsBuilder implements CommandBuilder {
       Preconditions.checkNotNull(datum.getSchema());      
       Record outputRecord = inputRecord.copy();
       
-      for (Map.Entry<String, Collection<String>> entry : stepMap.entrySet()) {
-        String fieldName = entry.getKey();
-        List<String> steps = (List<String>) entry.getValue();
-        extractPath(datum, datum.getSchema(), fieldName, steps, outputRecord, 0);
+      Schema schema = datum.getSchema();
+      Accessor[] plan;
+      if (schema == lastSchema) {
+        plan = lastPlan;
+      } else {
+        plan = plans.get(schema);
+        if (plan == null) {
+          plan = compile(pathTree, schema);
+          if (plans.size() >= MAX_PLANS) {
+            plans.clear();
+          }
+          plans.put(schema, plan);
+        }
+        lastSchema = schema;
+        lastPlan = plan;
       }
+      
+      extract(plan, datum, outputRecord);
         
       // pass record to next command in chain:
       return getChild().process(outputRecord);
     }
-
-    private void extractPath(Object datum, Schema schema, String fieldName, List<String> steps, Record record, int level) {
-      if (level >= steps.size()) {
-        return;
+    
+    private void extract(Accessor[] accessors, Object datum, Record record) {
+      for (Accessor accessor : accessors) {
+        accessor.extract(datum, record);
       }
-      boolean isLeaf = (level + 1 == steps.size());
-      String step = steps.get(level);
-      if (ARRAY_TOKEN == step) {
+    }
+    
+    /**
+     * Resolves the children of the given path node against the given schema, i.e. translates field
+     * names into field positions, once per schema rather than once per record.
+     */
+    private Accessor[] compile(PathNode node, Schema schema) {
+      List<Accessor> accessors = new ArrayList();
+      for (PathNode child : node.children.values()) {
+        Accessor accessor = compileStep(child, schema);
+        if (accessor != null) {
+          accessors.add(accessor);
+        }
+      }
+      return accessors.toArray(new Accessor[accessors.size()]);
+    }
+    
+    private Accessor compileStep(PathNode node, Schema schema) {
+      if (ARRAY_TOKEN == node.step) {
         if (schema.getType() == Type.ARRAY) {
-          if (isLeaf) {
-            resolve(datum, schema, record, fieldName);
-          } else {
-            Iterator iter = ((Collection) datum).iterator();
-            while (iter.hasNext()) {
-              extractPath(iter.next(), schema.getElementType(), fieldName, steps, record, level + 1);
-            }
-          }
+          return new ArrayAccessor(node, schema);
         }
-      } else {
-        if (schema.getType() == Type.RECORD) {
-          GenericRecord genericAvroRecord = (GenericRecord) datum;
-          Object value = genericAvroRecord.get(step);
-          if (value != null) {
-            Schema childSchema = schema.getField(step).schema();
-            if (isLeaf) {
-              resolve(value, childSchema, record, fieldName);
-            } else {
-              extractPath(value, childSchema, fieldName, steps, record, level + 1);
-            }
-          }
-        } else if (schema.getType() == Type.MAP) {
-          Map<CharSequence, ?> map = (Map<CharSequence, ?>) datum;
-          Object value = map.get(step);
-          if (value == null) {
-            value = map.get(new Utf8(step)); // TODO: fix performance - maybe fix polymorphic weirdness in upstream avro?
-          }
-          if (value != null) {
-            Schema childSchema = schema.getValueType();
-            if (isLeaf) {
-              resolve(value, childSchema, record, fieldName);
-            } else {
-              extractPath(value, childSchema, fieldName, steps, record, level + 1);
-            }
-          }            
-        } else if (schema.getType() == Type.UNION) {
-          int index = GenericData.get().resolveUnion(schema, datum);
-          //String typeName = schema.getTypes().get(index).getName();
-          extractPath(datum, schema.getTypes().get(index), fieldName, steps, record, level);
+      } else if (schema.getType() == Type.RECORD) {
+        Field field = schema.getField(node.step);
+        if (field != null) {
+          return new RecordFieldAccessor(node, field);
         }
-      } 
+      } else if (schema.getType() == Type.MAP) {
+        return new MapValueAccessor(node, schema);
+      } else if (schema.getType() == Type.UNION) {
+        return new UnionAccessor(node, schema);
+      }
+      return null; // path doesn't match schema
     }
     
     private void resolve(Object datum, Schema schema, Record record, String fieldName) { 
@@ -367,6 +382,153 @@ public final class ExtractAvroPathsBuilder implements CommandBuilder {
       }
     }
     
+    
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** A path step shared by all configured paths that start with the same steps */
+    private static final class PathNode {
+      
+      private final String step;
+      private final Map<String, PathNode> children = new LinkedHashMap();
+      private final List<String> fieldNames = new ArrayList(); // output fields of paths that end here
+      
+      public PathNode() {
+        this(null);
+      }
+      
+      private PathNode(String step) {
+        this.step = step;
+      }
+      
+      public PathNode getOrCreateChild(String step) {
+        PathNode child = children.get(step);
+        if (child == null) {
+          child = new PathNode(step);
+          children.put(step, child);
+        }
+        return child;
+      }
+    }
+    
+    
+    /** A path step resolved against a schema */
+    private static abstract class Accessor {
+      
+      public abstract void extract(Object datum, Record record);
+    }
+    
+    
+    /** Base class for steps that select a value */
+    private abstract class ValueAccessor extends Accessor {
+      
+      private final String[] fieldNames; // output fields of the paths that end at this step
+      private final Schema valueSchema;
+      protected final Accessor[] children; // remaining steps of the paths that continue below this step
+      
+      public ValueAccessor(PathNode node, Schema valueSchema, Schema childSchema) {
+        this.fieldNames = node.fieldNames.toArray(new String[node.fieldNames.size()]);
+        this.valueSchema = valueSchema;
+        this.children = compile(node, childSchema);
+      }
+      
+      protected final void emit(Object value, Record record) {
+        for (String fieldName : fieldNames) {
+          resolve(value, valueSchema, record, fieldName);
+        }
+      }
+    }
+    
+    
+    private final class RecordFieldAccessor extends ValueAccessor {
+      
+      private final int pos;
+      
+      public RecordFieldAccessor(PathNode node, Field field) {
+        super(node, field.schema(), field.schema());
+        this.pos = field.pos();
+      }
+      
+      @Override
+      public void extract(Object datum, Record record) {
+        Object value = ((IndexedRecord) datum).get(pos);
+        if (value != null) {
+          emit(value, record);
+          ExtractAvroPaths.this.extract(children, value, record);
+        }
+      }
+    }
+    
+    
+    private final class MapValueAccessor extends ValueAccessor {
+      
+      private final String key;
+      private final Utf8 utf8Key;
+      
+      public MapValueAccessor(PathNode node, Schema schema) {
+        super(node, schema.getValueType(), schema.getValueType());
+        this.key = node.step;
+        this.utf8Key = new Utf8(node.step);
+      }
+      
+      @Override
+      public void extract(Object datum, Record record) {
+        Map<CharSequence, ?> map = (Map<CharSequence, ?>) datum;
+        Object value = map.get(key);
+        if (value == null) {
+          value = map.get(utf8Key); // maps read by Avro have Utf8 keys
+        }
+        if (value != null) {
+          emit(value, record);
+          ExtractAvroPaths.this.extract(children, value, record);
+        }
+      }
+    }
+    
+    
+    /** Emits the array as a whole for paths ending with [], and iterates the elements for the remaining steps */
+    private final class ArrayAccessor extends ValueAccessor {
+      
+      public ArrayAccessor(PathNode node, Schema schema) {
+        super(node, schema, schema.getElementType());
+      }
+      
+      @Override
+      public void extract(Object datum, Record record) {
+        emit(datum, record);
+        if (children.length > 0) {
+          for (Object element : (Collection) datum) {
+            ExtractAvroPaths.this.extract(children, element, record);
+          }
+        }
+      }
+    }
+    
+    
+    /** Applies the same step to whichever branch of the union the datum conforms to */
+    private final class UnionAccessor extends Accessor {
+      
+      private final Schema unionSchema;
+      private final Accessor[] branches;
+      
+      public UnionAccessor(PathNode node, Schema schema) {
+        this.unionSchema = schema;
+        List<Schema> types = schema.getTypes();
+        this.branches = new Accessor[types.size()];
+        for (int i = 0; i < types.size(); i++) {
+          branches[i] = compileStep(node, types.get(i));
+        }
+      }
+      
+      @Override
+      public void extract(Object datum, Record record) {
+        Accessor branch = branches[GenericData.get().resolveUnion(unionSchema, datum)];
+        if (branch != null) {
+          branch.extract(datum, record);
+        }
+      }
+    }
+    
   }
   
 }
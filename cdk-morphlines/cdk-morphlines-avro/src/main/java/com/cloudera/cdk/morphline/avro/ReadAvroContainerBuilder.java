@@ -19,7 +19,6 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -27,10 +26,9 @@ import java.util.Map;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Parser;
-import org.apache.avro.file.DataFileConstants;
-import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.SeekableInput;
 import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.ResolvingDecoder;
 
@@ -39,9 +37,9 @@ import com.cloudera.cdk.morphline.api.CommandBuilder;
 import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.avro.AvroContainerReader.ByteArrayKey;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
-import com.google.common.base.Preconditions;
 import com.typesafe.config.Config;
 
 
@@ -77,6 +75,7 @@ public final class ReadAvroContainerBuilder implements CommandBuilder {
     protected final Schema readerSchema;
     protected FastGenericDatumReader<GenericContainer> datumReader;
     private final Map<ByteArrayKey, ResolvingDecoder> resolverCache;
+    private BinaryDecoder decoder;
 
     public ReadAvroContainer(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {   
       super(builder, config, parent, child, context);
@@ -110,35 +109,30 @@ public final class ReadAvroContainerBuilder implements CommandBuilder {
       if (datumReader == null) { // reuse for performance
         datumReader = new FastGenericDatumReader(null, readerSchema);
       }
-      DataFileReader<GenericContainer> reader = null;
+      // parses the writer schema only if it hasn't been seen before in this JVM
+      AvroContainerReader reader = new AvroContainerReader(in, decoder);
+      decoder = reader.getDecoder(); // reuse for performance
       try {
-        // TODO: for better performance subclass DataFileReader 
-        // to eliminate expensive SchemaParser.parse() on each new file in DataFileReader.initialize(). 
-        // Instead replace the parse() with a lookup in the byte[] cache map.
-        reader = new DataFileReader(new ForwardOnlySeekableInputStream(in), datumReader);
-        
-        byte[] writerSchemaBytes = reader.getMeta(DataFileConstants.SCHEMA);
-        Preconditions.checkNotNull(writerSchemaBytes);
-        ByteArrayKey writerSchemaKey = new ByteArrayKey(writerSchemaBytes);
+        ByteArrayKey writerSchemaKey = new ByteArrayKey(reader.getSchemaBytes());
         ResolvingDecoder resolver = resolverCache.get(writerSchemaKey); // cache for performance
+        datumReader.setSchema(reader.getSchema());
         if (resolver == null) { 
           resolver = createResolver(datumReader.getSchema(), datumReader.getExpected());
           resolverCache.put(writerSchemaKey, resolver);
-          datumReader.setResolver(resolver);
         }
+        datumReader.setResolver(resolver);
         Record template = inputRecord.copy();
         removeAttachments(template);
         template.put(Fields.ATTACHMENT_MIME_TYPE, ReadAvroBuilder.AVRO_MEMORY_MIME_TYPE);
         while (reader.hasNext()) {
-          GenericContainer datum = reader.next();
+          GenericContainer datum = reader.next(null, datumReader);
           if (!extract(datum, template)) {
             return false;
           }
         }
       } finally {
-        if (reader != null) {
-          reader.close();
-        }
+        reader.close();
+        in.close();
       }
       return true;
     }
@@ -178,30 +172,6 @@ public final class ReadAvroContainerBuilder implements CommandBuilder {
   } 
 
   
-  ///////////////////////////////////////////////////////////////////////////////
-  // Nested classes:
-  ///////////////////////////////////////////////////////////////////////////////
-  private static final class ByteArrayKey {
-    
-    private byte[] bytes;
-    
-    public ByteArrayKey(byte[] bytes) {
-      this.bytes = bytes;
-    }
-    
-    @Override
-    public boolean equals(Object other) {
-      ByteArrayKey otherKey = (ByteArrayKey) other;
-      return Arrays.equals(bytes, otherKey.bytes);
-    }
-    
-    @Override
-    public int hashCode() {
-      return Arrays.hashCode(bytes);
-    }
-  }
-
-  
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////
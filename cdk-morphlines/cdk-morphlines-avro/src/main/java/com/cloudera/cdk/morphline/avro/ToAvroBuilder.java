@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -29,6 +30,7 @@ import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Parser;
+import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.IndexedRecord;
 import org.apache.avro.reflect.ReflectData;
@@ -51,10 +53,16 @@ import com.typesafe.config.ConfigFactory;
 /**
  * Command that converts a morphline record to an Avro record.
  *
+ * The conversion from morphline fields to the fields of a given Avro schema is compiled into a plan
+ * once per schema, and the plan is reused for all subsequent records with that schema.
+ *
  * @since 0.9.0
  */
 public final class ToAvroBuilder implements CommandBuilder {
   
+  // more efficient than raising & catching exceptions
+  private static final Object ERROR = new Object(); 
+  
   @Override
   public Collection<String> getNames() {
     return Collections.singletonList("toAvro");
@@ -74,9 +82,12 @@ public final class ToAvroBuilder implements CommandBuilder {
     private final Map<String, String> mappings = new HashMap();
     private final Schema fixedSchema;
     private final String schemaField;
+    private final FieldConverter[] fixedPlan; // precompiled plan for fixedSchema
+    private final Map<Schema, FieldConverter[]> plans = new HashMap(); // plans for schemaField
+    private Schema lastSchema; // fast path for the common case where all records have the same schema
+    private FieldConverter[] lastPlan;
     
-    // more efficient than raising & catching exceptions
-    private static final Object ERROR = new Object(); 
+    private static final int MAX_PLANS = 100;
     
     public ToAvro(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);
@@ -121,48 +132,44 @@ public final class ToAvroBuilder implements CommandBuilder {
       for (Map.Entry<String, Object> entry : new Configs().getEntrySet(mappingsConfig)) {
         mappings.put(entry.getKey(), entry.getValue().toString());
       }
+      this.fixedPlan = fixedSchema == null ? null : compilePlan(fixedSchema);
       validateArguments();
     }
     
     @Override
     protected boolean doProcess(Record inputRecord) {
       Schema schema;
+      FieldConverter[] plan;
       if (schemaField != null) {
         schema = (Schema) inputRecord.getFirstValue(schemaField);
         Preconditions.checkNotNull(schema);
+        plan = getPlan(schema);
       } else {
         schema = fixedSchema;
+        plan = fixedPlan;
       }
       
       Record outputRecord = inputRecord.copy();
       AbstractParser.removeAttachments(outputRecord);
       IndexedRecord avroRecord = new GenericData.Record(schema);
       
-      for (Field field : schema.getFields()) {
-        String morphlineFieldName = mappings.get(field.name());
-        if (morphlineFieldName == null) {
-          morphlineFieldName = field.name();
-        }
-        List list = inputRecord.get(morphlineFieldName);
+      for (FieldConverter field : plan) {
+        List list = inputRecord.get(field.morphlineFieldName);
         
         Object avroResult = ERROR;
-        if (field.schema().getType() == Schema.Type.ARRAY) {
-          avroResult = toAvro(list, field); 
+        if (field.isArray) {
+          avroResult = field.convert(list); 
         } else if (list.size() == 0) { 
-          try { // this will fail if there is no default value
-            avroResult = ReflectData.get().getDefaultValue(field);
-          } catch (AvroRuntimeException e) {
-            avroResult = ERROR;
-          }
+          avroResult = field.getDefaultValue();
         } else if (list.size() == 1) {
-          avroResult = toAvro(list.get(0), field); 
+          avroResult = field.convert(list.get(0)); 
         }
         
         if (avroResult == ERROR) {
           LOG.debug("Cannot convert item: {} to schema: {}", list, schema);
           return false;          
         }
-        avroRecord.put(field.pos(), avroResult);
+        avroRecord.put(field.pos, avroResult);
       }
 
       outputRecord.put(Fields.ATTACHMENT_BODY, avroRecord);
@@ -170,206 +177,324 @@ public final class ToAvroBuilder implements CommandBuilder {
       // pass record to next command in chain:
       return super.doProcess(outputRecord);
     }
-  
-    /* returns true if schema allows the value to be null, false otherwise */
-    private static boolean nullOk(Schema schema) {
-      if (Schema.Type.NULL == schema.getType()) {
-        return true;
-      } else if (Schema.Type.UNION == schema.getType()) {
-        for (Schema candidate : schema.getTypes()) {
-          if (nullOk(candidate)) {
-            return true;
-          }
+    
+    private FieldConverter[] getPlan(Schema schema) {
+      if (schema == lastSchema) {
+        return lastPlan;
+      }
+      FieldConverter[] plan = plans.get(schema);
+      if (plan == null) {
+        plan = compilePlan(schema);
+        if (plans.size() >= MAX_PLANS) {
+          plans.clear();
         }
+        plans.put(schema, plan);
       }
-      return false;
+      lastSchema = schema;
+      lastPlan = plan;
+      return plan;
     }
     
-    private Object toAvro(Object item, Field field) {
-      if (item == null && !nullOk(field.schema())) {
-        try { // this will fail if there is no default value
-          return ReflectData.get().getDefaultValue(field);
-        } catch (AvroRuntimeException e) {
-          return ERROR;
+    /** Compiles the conversion of the morphline record fields to the fields of the given schema */
+    private FieldConverter[] compilePlan(Schema schema) {
+      Map<Schema, RecordConverter> recordConverters = new IdentityHashMap();
+      List<Field> fields = schema.getFields();
+      FieldConverter[] plan = new FieldConverter[fields.size()];
+      for (int i = 0; i < plan.length; i++) {
+        Field field = fields.get(i);
+        String morphlineFieldName = mappings.get(field.name());
+        if (morphlineFieldName == null) {
+          morphlineFieldName = field.name();
         }
+        plan[i] = new FieldConverter(field, morphlineFieldName, compile(field.schema(), recordConverters));
       }
-      Object result = toAvro(item, field.schema());
-      return result;
+      return plan;
     }
     
-    private Object toAvro(Object item, Schema schema) {
+    /** Compiles the conversion of a java object to the given schema; handles recursive schemas */
+    private static Converter compile(Schema schema, Map<Schema, RecordConverter> recordConverters) {
       // RECORD, ENUM, ARRAY, MAP, UNION, FIXED, STRING, BYTES, INT, LONG, FLOAT,
       // DOUBLE, BOOLEAN, NULL
       switch (schema.getType()) {
-        case RECORD:
-          if (item instanceof Map) {
-            Map<String,Object> map = (Map) item;
-            IndexedRecord record = new GenericData.Record(schema);
-            for (Field field : schema.getFields()) {
-              Object value = map.get(field.name());
-              Object result = toAvro(value, field);
-              if (result == ERROR) {
-                return ERROR;
-              }
-              record.put(field.pos(), result);
+        case RECORD: {
+          RecordConverter converter = recordConverters.get(schema);
+          if (converter == null) {
+            converter = new RecordConverter(schema);
+            recordConverters.put(schema, converter); // register before descending into recursive fields
+            List<Field> fields = schema.getFields();
+            FieldConverter[] fieldConverters = new FieldConverter[fields.size()];
+            for (int i = 0; i < fieldConverters.length; i++) {
+              Field field = fields.get(i);
+              fieldConverters[i] = new FieldConverter(field, null, compile(field.schema(), recordConverters));
             }
-            return record;
+            converter.fields = fieldConverters;
           }
-          return ERROR;
+          return converter;
+        }
         case ENUM:
-          if (schema.hasEnumSymbol(item.toString())) {
-            return item.toString();
-          } 
-          return ERROR;
+          return new EnumConverter(schema);
         case ARRAY:
-          if (item instanceof List) {
-            ListIterator iter = ((List)item).listIterator();
-            while (iter.hasNext()) {
-              Object result = toAvro(iter.next(), schema.getElementType());
-              if (result == ERROR) {
-                return ERROR;
-              }
-              iter.set(result);
-            }
-            return item;
-          }
-          return ERROR;
+          return new ArrayConverter(compile(schema.getElementType(), recordConverters));
         case MAP:
-          if (item instanceof Map) {
-            Map<String,Object> map = (Map) item;
-            for (Map.Entry entry : map.entrySet()) {
-              if (!(entry.getKey() instanceof CharSequence)) {
-                return ERROR; // Avro requires that map keys are CharSequences 
-              }
-              Object result = toAvro(entry.getValue(), schema.getValueType());
-              if (result == ERROR) {
-                return ERROR;
-              }
-              entry.setValue(result);
-            }
-            return item;
+          return new MapConverter(compile(schema.getValueType(), recordConverters));
+        case UNION: {
+          List<Schema> types = schema.getTypes();
+          Converter[] branches = new Converter[types.size()];
+          for (int i = 0; i < branches.length; i++) {
+            branches[i] = compile(types.get(i), recordConverters);
           }
-          return ERROR;
-        case UNION:
-          return toAvroUnion(item, schema);
+          return new UnionConverter(schema, branches);
+        }
         case FIXED:
-          if (item instanceof byte[]) {
-            return new GenericData.Fixed(schema, (byte[])item);
-          }          
-          return ERROR;
+          return new FixedConverter(schema);
         case STRING:
-          assert item != null;
-          return item.toString();
+          return STRING_CONVERTER;
         case BYTES:
-          if (item instanceof ByteBuffer) {
-            return item;
-          }
-          if (item instanceof byte[]) {
-            return ByteBuffer.wrap((byte[])item);
-          }  
-          return ERROR;
+          return BYTES_CONVERTER;
         case INT:
-          if (item instanceof Integer) {
-            return item;
-          }
-          if (item instanceof Number) {
-            return ((Number) item).intValue();
-          }
-          try {
-            return Integer.valueOf(item.toString());
-          } catch (NumberFormatException e) {
-            return ERROR;
-          }
+          return INT_CONVERTER;
         case LONG:
-          if (item instanceof Long) {
-            return item;
-          }
-          if (item instanceof Number) {
-            return ((Number) item).longValue();
-          }
-          try {
-            return Long.valueOf(item.toString());
-          } catch (NumberFormatException e) {
-            return ERROR;
-          }
+          return LONG_CONVERTER;
         case FLOAT:
-          if (item instanceof Float) {
-            return item;
-          }
-          if (item instanceof Number) {
-            return ((Number) item).floatValue();
-          }
-          try {
-            return Float.valueOf(item.toString());
-          } catch (NumberFormatException e) {
-            return ERROR;
-          }
+          return FLOAT_CONVERTER;
         case DOUBLE:
-          if (item instanceof Double) {
-            return item;
-          }
-          if (item instanceof Number) {
-            return ((Number) item).doubleValue();
+          return DOUBLE_CONVERTER;
+        case BOOLEAN:
+          return BOOLEAN_CONVERTER;
+        case NULL:
+          return NULL_CONVERTER;
+        default:
+          throw new MorphlineRuntimeException("Unknown Avro schema type: " + schema.getType());
+      }
+    }
+    
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Converts a java object to an object that conforms to a given Avro schema */
+  private static abstract class Converter {
+
+    /** Returns the converted object, or ERROR if the object can't be converted */
+    public abstract Object convert(Object item);
+
+  }
+  
+  
+  /** Converts a value to the schema of a record field, falling back to the default value if any */
+  private static final class FieldConverter {
+    
+    private final Field field;
+    private final int pos;
+    private final String morphlineFieldName; // null for nested records
+    private final boolean isArray;
+    private final boolean nullOk;
+    private final boolean hasDefault;
+    private final Converter converter;
+    
+    public FieldConverter(Field field, String morphlineFieldName, Converter converter) {
+      this.field = field;
+      this.pos = field.pos();
+      this.morphlineFieldName = morphlineFieldName;
+      this.isArray = field.schema().getType() == Schema.Type.ARRAY;
+      this.nullOk = nullOk(field.schema());
+      this.hasDefault = field.defaultValue() != null;
+      this.converter = converter;
+    }
+    
+    /* returns true if schema allows the value to be null, false otherwise */
+    private static boolean nullOk(Schema schema) {
+      if (Schema.Type.NULL == schema.getType()) {
+        return true;
+      } else if (Schema.Type.UNION == schema.getType()) {
+        for (Schema candidate : schema.getTypes()) {
+          if (nullOk(candidate)) {
+            return true;
           }
-          try {
-            return Double.valueOf(item.toString());
-          } catch (NumberFormatException e) {
+        }
+      }
+      return false;
+    }
+    
+    public Object convert(Object item) {
+      if (item == null && !nullOk) {
+        return getDefaultValue();
+      }
+      return converter.convert(item);
+    }
+    
+    public Object getDefaultValue() {
+      if (!hasDefault) {
+        return ERROR;
+      }
+      try { 
+        return ReflectData.get().getDefaultValue(field);
+      } catch (AvroRuntimeException e) {
+        return ERROR;
+      }
+    }
+  }
+  
+  
+  private static final class RecordConverter extends Converter {
+    
+    private final Schema schema;
+    private FieldConverter[] fields; // assigned after construction because schemas can be recursive
+    
+    public RecordConverter(Schema schema) {
+      this.schema = schema;
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Map) {
+        Map<String,Object> map = (Map) item;
+        IndexedRecord record = new GenericData.Record(schema);
+        for (FieldConverter field : fields) {
+          Object value = map.get(field.field.name());
+          Object result = field.convert(value);
+          if (result == ERROR) {
             return ERROR;
           }
-        case BOOLEAN:
-          if (item instanceof Boolean) {
-            return item;
-          }
-          assert item != null;
-          String str = item.toString();
-          if ("true".equals(str)) {
-            return Boolean.TRUE;
+          record.put(field.pos, result);
+        }
+        return record;
+      }
+      return ERROR;
+    }
+  }
+  
+  
+  private static final class EnumConverter extends Converter {
+    
+    private final Schema schema;
+    
+    public EnumConverter(Schema schema) {
+      this.schema = schema;
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      if (schema.hasEnumSymbol(item.toString())) {
+        return item.toString();
+      } 
+      return ERROR;
+    }
+  }
+  
+  
+  private static final class ArrayConverter extends Converter {
+    
+    private final Converter elementConverter;
+    
+    public ArrayConverter(Converter elementConverter) {
+      this.elementConverter = elementConverter;
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof List) {
+        ListIterator iter = ((List)item).listIterator();
+        while (iter.hasNext()) {
+          Object result = elementConverter.convert(iter.next());
+          if (result == ERROR) {
+            return ERROR;
           }
-          if ("false".equals(str)) {
-            return Boolean.FALSE;
+          iter.set(result);
+        }
+        return item;
+      }
+      return ERROR;
+    }
+  }
+  
+  
+  private static final class MapConverter extends Converter {
+    
+    private final Converter valueConverter;
+    
+    public MapConverter(Converter valueConverter) {
+      this.valueConverter = valueConverter;
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Map) {
+        Map<String,Object> map = (Map) item;
+        for (Map.Entry entry : map.entrySet()) {
+          if (!(entry.getKey() instanceof CharSequence)) {
+            return ERROR; // Avro requires that map keys are CharSequences 
           }
-          return ERROR;
-        case NULL:
-          if (item == null) {
-            return null;
+          Object result = valueConverter.convert(entry.getValue());
+          if (result == ERROR) {
+            return ERROR;
           }
-          return ERROR;
-        default:
-          throw new MorphlineRuntimeException("Unknown Avro schema type: " + schema.getType());
+          entry.setValue(result);
+        }
+        return item;
       }
+      return ERROR;
     }
-
-    private Object toAvroUnion(Object item, Schema schema) {
-      assert schema.getType() == Schema.Type.UNION;
+  }
+  
+  
+  /**
+   * Picks the union branch that fits the given value perfectly, if any, and otherwise the first
+   * branch that can convert the value. The perfect fit depends only on the java class of the value
+   * (except for Avro containers, which carry their own schema), so it is cached per class.
+   */
+  private static final class UnionConverter extends Converter {
+    
+    private final Schema schema;
+    private final Converter[] branches;
+    private final int mapIndex; // the branch to use for java maps
+    private final int nullIndex; // the branch to use for null
+    private final Map<Class, Integer> indexes = new HashMap(); // perfect fit per java class
+    
+    public UnionConverter(Schema schema, Converter[] branches) {
+      this.schema = schema;
+      this.branches = branches;
+      
+      // a map can be converted both into an avro record or an avro map.
+      // so there's some ambiguity - we choose which one applies based on specified order.
       List<Schema> types = schema.getTypes();
       int index = -1;
-      if (item instanceof Map) {
-        // a map can be converted both into an avro record or an avro map.
-        // so there's some ambiguity - we choose which one applies based on specified order.
-        for (int j = 0; j < types.size(); j++) {
-          Schema.Type t = types.get(j).getType(); 
-          if (t == Schema.Type.RECORD || t == Schema.Type.MAP) {
-            index = j;
-            break;
-          }
+      for (int j = 0; j < types.size(); j++) {
+        Schema.Type t = types.get(j).getType(); 
+        if (t == Schema.Type.RECORD || t == Schema.Type.MAP) {
+          index = j;
+          break;
         }
+      }
+      this.mapIndex = index;
+      this.nullIndex = resolveUnion(null);
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      int index;
+      if (item instanceof Map) {
+        index = mapIndex;
+      } else if (item == null) {
+        index = nullIndex;
+      } else if (item instanceof GenericContainer) {
+        index = resolveUnion(item);
       } else {
-        try {
-          // check if there's a perfect fit for a mapping
-          index = GenericData.get().resolveUnion(schema, item); // TODO: optimize
-        } catch (AvroRuntimeException e) {
-          ; // proceed to find first fit based on specified order (see below)
-          // LOG.trace("Cannot find perfect fit for item: {} to union schema: {}", item, schema);
+        Integer cachedIndex = indexes.get(item.getClass());
+        if (cachedIndex == null) {
+          cachedIndex = resolveUnion(item);
+          indexes.put(item.getClass(), cachedIndex);
         }
+        index = cachedIndex;
       }
       
       if (index >= 0) { // found perfect fit
-        Schema candidate = types.get(index);
-        Object result = toAvro(item, candidate);
-        return result;
+        return branches[index].convert(item);
       } else { // find first fit based on specified order
-        for (Schema candidate : types) {            
-          Object result = toAvro(item, candidate);
+        for (Converter candidate : branches) {            
+          Object result = candidate.convert(item);
           if (result != ERROR) {
             return result;
           }
@@ -378,6 +503,157 @@ public final class ToAvroBuilder implements CommandBuilder {
       }
     }
     
+    /** Returns the index of the branch that fits the given value perfectly, or -1 if none */
+    private int resolveUnion(Object item) {
+      try {
+        return GenericData.get().resolveUnion(schema, item);
+      } catch (AvroRuntimeException e) {
+        return -1;
+      }
+    }
+  }
+  
+  
+  private static final class FixedConverter extends Converter {
+    
+    private final Schema schema;
+    
+    public FixedConverter(Schema schema) {
+      this.schema = schema;
+    }
+    
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof byte[]) {
+        return new GenericData.Fixed(schema, (byte[])item);
+      }          
+      return ERROR;
+    }
   }
+  
+  
+  private static final Converter STRING_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      assert item != null;
+      return item.toString();
+    }
+  };
+  
+  
+  private static final Converter BYTES_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof ByteBuffer) {
+        return item;
+      }
+      if (item instanceof byte[]) {
+        return ByteBuffer.wrap((byte[])item);
+      }  
+      return ERROR;
+    }
+  };
+  
+  
+  private static final Converter INT_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Integer) {
+        return item;
+      }
+      if (item instanceof Number) {
+        return ((Number) item).intValue();
+      }
+      try {
+        return Integer.valueOf(item.toString());
+      } catch (NumberFormatException e) {
+        return ERROR;
+      }
+    }
+  };
+  
+  
+  private static final Converter LONG_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Long) {
+        return item;
+      }
+      if (item instanceof Number) {
+        return ((Number) item).longValue();
+      }
+      try {
+        return Long.valueOf(item.toString());
+      } catch (NumberFormatException e) {
+        return ERROR;
+      }
+    }
+  };
+  
+  
+  private static final Converter FLOAT_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Float) {
+        return item;
+      }
+      if (item instanceof Number) {
+        return ((Number) item).floatValue();
+      }
+      try {
+        return Float.valueOf(item.toString());
+      } catch (NumberFormatException e) {
+        return ERROR;
+      }
+    }
+  };
+  
+  
+  private static final Converter DOUBLE_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Double) {
+        return item;
+      }
+      if (item instanceof Number) {
+        return ((Number) item).doubleValue();
+      }
+      try {
+        return Double.valueOf(item.toString());
+      } catch (NumberFormatException e) {
+        return ERROR;
+      }
+    }
+  };
+  
+  
+  private static final Converter BOOLEAN_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item instanceof Boolean) {
+        return item;
+      }
+      assert item != null;
+      String str = item.toString();
+      if ("true".equals(str)) {
+        return Boolean.TRUE;
+      }
+      if ("false".equals(str)) {
+        return Boolean.FALSE;
+      }
+      return ERROR;
+    }
+  };
+  
+  
+  private static final Converter NULL_CONVERTER = new Converter() {
+    @Override
+    public Object convert(Object item) {
+      if (item == null) {
+        return null;
+      }
+      return ERROR;
+    }
+  };
     
 }
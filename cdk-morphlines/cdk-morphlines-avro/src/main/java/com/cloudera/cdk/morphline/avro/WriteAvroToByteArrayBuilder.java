@@ -17,28 +17,34 @@ package com.cloudera.cdk.morphline.avro;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.cloudera.cdk.morphline.base.Fields;
+import com.cloudera.cdk.morphline.base.Notifications;
 import com.cloudera.cdk.morphline.base.Validator;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
 import com.google.common.base.Preconditions;
@@ -51,6 +57,17 @@ import com.typesafe.config.ConfigFactory;
  * Command that serializes the Avro records contained in the _attachment_body field into a byte
  * array and replaces the _attachment_body field with that byte array.
  * 
+ * Optionally, the Avro records of several consecutive morphline records can be combined into a
+ * single byte array, in which case a single output record is emitted per batch of
+ * <code>batchSize</code> input records, or per <code>batchBytes</code> encoded bytes, whichever
+ * comes first. The output record carries the fields of the first input record of the batch. A
+ * pending batch is emitted on commit transaction and shutdown notifications, and discarded on
+ * rollback transaction and start session notifications.
+ * 
+ * The <code>containerlessSingleObject</code> format prefixes each Avro record with a header that
+ * consists of a two byte marker and the 8 byte CRC-64-AVRO fingerprint of the schema, as in the
+ * Avro single object encoding, rather than repeating the schema in a container header.
+ * 
  * @since 0.9.0
  */
 public final class WriteAvroToByteArrayBuilder implements CommandBuilder {
@@ -74,6 +91,27 @@ public final class WriteAvroToByteArrayBuilder implements CommandBuilder {
     private final Format format;
     private final CodecFactory codecFactory;
     private final Map<String,String> metadata = new HashMap();
+    private final int batchSize;
+    private final long batchBytes;
+    
+    // reused across datums and batches:
+    private final GenericDatumWriter datumWriter = new GenericDatumWriter();
+    private final ExposedByteArrayOutputStream datumBuffer = new ExposedByteArrayOutputStream(1024);
+    private final ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+    private BinaryEncoder binaryEncoder;
+    private Schema fingerprintSchema;
+    private byte[] fingerprintHeader;
+    
+    // state of the current batch:
+    private Record batchRecord; // null if there is no open batch
+    private Schema batchSchema;
+    private int batchNumRecords;
+    private long batchLength;
+    private DataFileWriter dataFileWriter;
+    private Encoder encoder;
+    
+    // header of the Avro single object encoding
+    private static final byte[] SINGLE_OBJECT_MAGIC = new byte[] { (byte) 0xC3, (byte) 0x01 };
     
     public WriteAvroToByteArray(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
@@ -94,81 +132,129 @@ public final class WriteAvroToByteArrayBuilder implements CommandBuilder {
         this.metadata.put(entry.getKey(), entry.getValue().toString());
       }
       
+      this.batchSize = getConfigs().getInt(config, "batchSize", 1);
+      if (batchSize <= 0) {
+        throw new MorphlineCompilationException("batchSize must be positive: " + batchSize, config);
+      }
+      this.batchBytes = getConfigs().getLong(config, "batchBytes", Long.MAX_VALUE);
+      if (batchBytes <= 0) {
+        throw new MorphlineCompilationException("batchBytes must be positive: " + batchBytes, config);
+      }
+      
       validateArguments();
     }
     
     @Override
-    protected boolean doProcess(Record inputRecord) {      
-      Record outputRecord = inputRecord.copy();
-      AbstractParser.removeAttachments(outputRecord);
-      ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
-      if (format == Format.container) {
-        writeContainer(inputRecord, bout);
-      } else {
-        writeContainerless(inputRecord, bout);
-      }      
-      outputRecord.put(Fields.ATTACHMENT_BODY, bout.toByteArray());
-        
-      // pass record to next command in chain:
-      return super.doProcess(outputRecord);
-    }
-
-    private void writeContainer(Record src, OutputStream dst) {
-      DataFileWriter dataFileWriter = null;
-      try {
-        try {
-          Schema schema = null;
-          for (Object attachment : src.get(Fields.ATTACHMENT_BODY)) {
-            Preconditions.checkNotNull(attachment);
-            GenericContainer datum = (GenericContainer) attachment;
-            schema = getSchema(datum, schema);
-            if (dataFileWriter == null) { // init
-              GenericDatumWriter datumWriter = new GenericDatumWriter(schema);
-              dataFileWriter = new DataFileWriter(datumWriter);
-              if (codecFactory != null) {
-                dataFileWriter.setCodec(codecFactory);
-              }
-              for (Map.Entry<String,String> entry : metadata.entrySet()) {
-                dataFileWriter.setMeta(entry.getKey(), entry.getValue());              
-              }
-              dataFileWriter.create(schema, dst);
-            }
-            dataFileWriter.append(datum);
-          }
-          if (dataFileWriter != null) {
-            dataFileWriter.flush();
+    protected void doNotify(Record notification) {
+      for (Object event : Notifications.getLifecycleEvents(notification)) {
+        if (event == Notifications.LifecycleEvent.COMMIT_TRANSACTION 
+            || event == Notifications.LifecycleEvent.SHUTDOWN) {
+          if (!flush()) {
+            throw new MorphlineRuntimeException("Cannot process batch of records on " + event);
           }
-        } catch (IOException e) {
-          throw new MorphlineRuntimeException(e);
+        } else if (event == Notifications.LifecycleEvent.ROLLBACK_TRANSACTION 
+            || event == Notifications.LifecycleEvent.START_SESSION) {
+          discard();
         }
-      } finally {
-        Closeables.closeQuietly(dataFileWriter);
       }
+      super.doNotify(notification);
     }
+    
+    @Override
+    protected boolean doProcess(Record inputRecord) {      
+      List attachments = inputRecord.get(Fields.ATTACHMENT_BODY);
+      if (attachments.size() > 0 && batchSchema != null) {
+        Object attachment = attachments.get(0);
+        if (attachment instanceof GenericContainer && ((GenericContainer) attachment).getSchema() != batchSchema) {
+          if (!flush()) { // a container holds datums of a single schema only
+            return false;
+          }
+        }
+      }
       
-    private void writeContainerless(Record src, OutputStream dst) {
+      if (batchRecord == null) { // open new batch
+        batchRecord = inputRecord.copy();
+        AbstractParser.removeAttachments(batchRecord);
+      }
       try {
-        GenericDatumWriter datumWriter = new GenericDatumWriter();
-        Encoder encoder = null;
-        Schema schema = null;
-        for (Object attachment : src.get(Fields.ATTACHMENT_BODY)) {
+        for (Object attachment : attachments) {
           Preconditions.checkNotNull(attachment);
           GenericContainer datum = (GenericContainer) attachment;
-          schema = getSchema(datum, schema);
-          datumWriter.setSchema(schema);
-          if (encoder == null) { // init
-            if (format == Format.containerlessJSON) {
-              encoder = EncoderFactory.get().jsonEncoder(schema, dst);
-            } else {
-              encoder = EncoderFactory.get().binaryEncoder(dst, null);
-            }          
-          } 
-          datumWriter.write(datum, encoder);
+          batchSchema = getSchema(datum, batchSchema);
+          if (format == Format.container) {
+            writeContainer(datum);
+          } else {
+            writeContainerless(datum);
+          }
+        }
+        if (encoder != null) {
+          encoder.flush();
+          batchLength = bout.size();
         }
-        encoder.flush();
       } catch (IOException e) {
+        discard();
         throw new MorphlineRuntimeException(e);
+      } catch (RuntimeException e) {
+        discard();
+        throw e;
+      }
+      
+      batchNumRecords++;
+      if (batchNumRecords >= batchSize || batchLength >= batchBytes) {
+        return flush();
+      }
+      return true;
+    }
+
+    private void writeContainer(GenericContainer datum) throws IOException {
+      if (dataFileWriter == null) { // init
+        dataFileWriter = new DataFileWriter(datumWriter);
+        if (codecFactory != null) {
+          dataFileWriter.setCodec(codecFactory);
+        }
+        for (Map.Entry<String,String> entry : metadata.entrySet()) {
+          dataFileWriter.setMeta(entry.getKey(), entry.getValue());              
+        }
+        dataFileWriter.create(batchSchema, bout);
+      }
+      
+      // encode with our reusable encoder rather than having DataFileWriter allocate one per container
+      datumBuffer.reset();
+      binaryEncoder = EncoderFactory.get().binaryEncoder(datumBuffer, binaryEncoder);
+      datumWriter.write(datum, binaryEncoder);
+      binaryEncoder.flush();
+      dataFileWriter.appendEncoded(ByteBuffer.wrap(datumBuffer.getBuffer(), 0, datumBuffer.size()));
+      batchLength += datumBuffer.size();
+    }
+      
+    private void writeContainerless(GenericContainer datum) throws IOException {
+      if (encoder == null) { // init
+        datumWriter.setSchema(batchSchema);
+        if (format == Format.containerlessJSON) {
+          encoder = EncoderFactory.get().jsonEncoder(batchSchema, bout);
+        } else {
+          binaryEncoder = EncoderFactory.get().binaryEncoder(bout, binaryEncoder);
+          encoder = binaryEncoder;
+        }          
+      } 
+      if (format == Format.containerlessSingleObject) {
+        encoder.writeFixed(getFingerprintHeader(batchSchema));
+      }
+      datumWriter.write(datum, encoder);
+    }
+    
+    /** Returns the marker and little endian CRC-64-AVRO fingerprint of the given schema */
+    private byte[] getFingerprintHeader(Schema schema) {
+      if (schema != fingerprintSchema) {
+        long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+        byte[] header = Arrays.copyOf(SINGLE_OBJECT_MAGIC, SINGLE_OBJECT_MAGIC.length + 8);
+        for (int i = 0; i < 8; i++) {
+          header[SINGLE_OBJECT_MAGIC.length + i] = (byte) (fingerprint >>> (8 * i));
+        }
+        fingerprintHeader = header;
+        fingerprintSchema = schema;
       }
+      return fingerprintHeader;
     }
     
     private Schema getSchema(GenericContainer datum, Schema lastSchema) {
@@ -178,6 +264,42 @@ public final class WriteAvroToByteArrayBuilder implements CommandBuilder {
       }
       return schema;
     }
+    
+    /** Emits the current batch, if any, as a single output record */
+    private boolean flush() {
+      if (batchRecord == null) {
+        return true;
+      }
+      try {
+        if (dataFileWriter != null) {
+          dataFileWriter.close(); // writes the final block
+        }
+        if (encoder != null) {
+          encoder.flush();
+        }
+      } catch (IOException e) {
+        discard();
+        throw new MorphlineRuntimeException(e);
+      }
+      Record outputRecord = batchRecord;
+      outputRecord.put(Fields.ATTACHMENT_BODY, bout.toByteArray());
+      discard();
+        
+      // pass record to next command in chain:
+      return super.doProcess(outputRecord);
+    }
+    
+    /** Forgets the current batch, if any */
+    private void discard() {
+      Closeables.closeQuietly(dataFileWriter);
+      dataFileWriter = null;
+      encoder = null;
+      bout.reset();
+      batchRecord = null;
+      batchSchema = null;
+      batchNumRecords = 0;
+      batchLength = 0;
+    }
 
   }
 
@@ -188,7 +310,21 @@ public final class WriteAvroToByteArrayBuilder implements CommandBuilder {
   private static enum Format {
     container,
     containerlessJSON,
-    containerlessBinary     
+    containerlessBinary,
+    containerlessSingleObject
   }     
 
+  
+  /** Gives access to the internal buffer without copying it */
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    
+    public ExposedByteArrayOutputStream(int size) {
+      super(size);
+    }
+    
+    public byte[] getBuffer() {
+      return buf;
+    }
+  }
+
 }
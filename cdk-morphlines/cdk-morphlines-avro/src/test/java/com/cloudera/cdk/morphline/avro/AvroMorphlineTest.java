@@ -21,6 +21,7 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -29,9 +30,11 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Parser;
 import org.apache.avro.Schema.Type;
+import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.file.FileReader;
@@ -160,6 +163,8 @@ public class AvroMorphlineTest extends AbstractMorphlineTest {
         Schema.create(Type.DOUBLE) 
         );
     processAndVerifyUnion("5", 5, types);
+    processAndVerifyUnion("5.5", 5.5, types); // first fit depends on the value, not just its class
+    processAndVerifyUnion("6", 6, types);
     
     
     types = Arrays.asList(
@@ -197,6 +202,33 @@ public class AvroMorphlineTest extends AbstractMorphlineTest {
     processAndVerifyUnion(map, avroRecord, types);
   }
   
+  @Test
+  public void testToAvroWithRecursiveSchema() throws Exception {
+    morphline = createMorphline("test-morphlines/toAvro");
+    Schema documentSchema = new Parser().parse("{\"type\":\"record\",\"name\":\"LongList\",\"fields\":["
+        + "{\"name\":\"value\",\"type\":\"long\"},"
+        + "{\"name\":\"next\",\"type\":[\"null\",\"LongList\"]}]}");
+    
+    for (int i = 0; i < 2; i++) { // also test reuse of the compiled plan
+      Record jdoc1 = new Record();
+      jdoc1.put("_dataset_descriptor_schema", documentSchema);
+      jdoc1.put("value", "1");
+      jdoc1.put("next", new HashMap(ImmutableMap.of("value", 2, "next", new HashMap(ImmutableMap.of("value", "3")))));
+      collector.reset();
+      assertTrue(morphline.process(jdoc1));
+      
+      GenericData.Record expected3 = new GenericData.Record(documentSchema);
+      expected3.put("value", 3L);
+      GenericData.Record expected2 = new GenericData.Record(documentSchema);
+      expected2.put("value", 2L);
+      expected2.put("next", expected3);
+      GenericData.Record expected1 = new GenericData.Record(documentSchema);
+      expected1.put("value", 1L);
+      expected1.put("next", expected2);
+      assertEquals(expected1, collector.getFirstRecord().getFirstValue(Fields.ATTACHMENT_BODY));
+    }
+  }
+  
   private void processAndVerifyUnion(Object input, Object expected, List<Schema> types) {
     Schema documentSchema = Schema.createRecord("Doc", "adoc", null, false);
     Schema unionSchema = Schema.createUnion(types);
@@ -542,6 +574,144 @@ public class AvroMorphlineTest extends AbstractMorphlineTest {
       processAndVerifySuccess(jdoc0, expect0, false);
     }
   }
+
+  @Test
+  public void testExtractAvroPathsWithSharedPrefixes() throws Exception {
+    Schema documentSchema = new Parser().parse(EXTRACT_AVRO_PATHS_SCHEMA);
+    Schema linksSchema = documentSchema.getField("links").schema();
+    Schema nameArraySchema = documentSchema.getField("name").schema();
+    Schema nameSchema = nameArraySchema.getElementType();
+    Schema languageArraySchema = nameSchema.getField("language").schema();
+    Schema languageSchema = languageArraySchema.getElementType();
+    Schema metaSchema = documentSchema.getField("meta").schema().getTypes().get(1);
+    
+    GenericData.Record links = new GenericData.Record(linksSchema);
+    links.put("backward", new GenericData.Array(linksSchema.getField("backward").schema(), Arrays.asList(1L)));
+    links.put("forward", new GenericData.Array(linksSchema.getField("forward").schema(), Arrays.asList(2L, 3L)));
+    
+    GenericData.Record language0 = new GenericData.Record(languageSchema);
+    language0.put("code", "en-us");
+    language0.put("country", "us");
+    GenericData.Record language1 = new GenericData.Record(languageSchema);
+    language1.put("code", "en");
+    GenericData.Record name0 = new GenericData.Record(nameSchema);
+    name0.put("language", new GenericData.Array(languageArraySchema, Arrays.asList(language0, language1)));
+    name0.put("url", "http://A");
+    
+    GenericData.Record language2 = new GenericData.Record(languageSchema);
+    language2.put("code", "en-gb");
+    language2.put("country", "gb");
+    GenericData.Record name1 = new GenericData.Record(nameSchema);
+    name1.put("language", new GenericData.Array(languageArraySchema, Arrays.asList(language2)));
+    
+    GenericData.Array names = new GenericData.Array(nameArraySchema, Arrays.asList(name0, name1));
+    GenericData.Record meta = new GenericData.Record(metaSchema);
+    meta.put("author", "alice");
+    
+    GenericData.Record document0 = new GenericData.Record(documentSchema);
+    document0.put("docId", 10L);
+    document0.put("links", links);
+    document0.put("name", names);
+    document0.put("tags", ImmutableMap.of("color", "red", "size", "XL"));
+    document0.put("meta", meta);
+    
+    morphline = createMorphline("test-morphlines/extractAvroPathsSharedPrefixes");
+    Record first = extractAvroPaths(document0);
+    assertEquals(Arrays.asList(10L), first.get("docId"));
+    assertEquals(Arrays.asList(Arrays.asList(2L, 3L)), first.get("forward"));
+    assertEquals(Arrays.asList(Arrays.asList(1L)), first.get("backward"));
+    assertEquals(Arrays.asList(names), first.get("names")); // [] leaf next to deeper paths below the same array
+    assertEquals(Arrays.asList("en-us", "en", "en-gb"), first.get("codes"));
+    assertEquals(Arrays.asList("us", "gb"), first.get("countries"));
+    assertEquals(Arrays.asList("http://A"), first.get("urls"));
+    assertEquals(Arrays.asList("red"), first.get("color")); // map branch of a union
+    assertEquals(Arrays.asList("alice"), first.get("author")); // record branch of a union
+    
+    // null branch of the unions
+    GenericData.Record document1 = new GenericData.Record(documentSchema);
+    document1.put("docId", 11L);
+    document1.put("links", links);
+    document1.put("name", new GenericData.Array(nameArraySchema, Arrays.asList()));
+    first = extractAvroPaths(document1);
+    assertEquals(Arrays.asList(11L), first.get("docId"));
+    assertEquals(Arrays.asList(Arrays.asList()), first.get("names"));
+    assertEquals(Arrays.asList(), first.get("codes"));
+    assertEquals(Arrays.asList(), first.get("color"));
+    assertEquals(Arrays.asList(), first.get("author"));
+  }
+  
+  @Test
+  public void testExtractAvroPathsWithTwoSchemas() throws Exception {
+    Schema schema0 = new Parser().parse(EXTRACT_AVRO_PATHS_SCHEMA);
+    Schema linksSchema0 = schema0.getField("links").schema();
+    GenericData.Record links0 = new GenericData.Record(linksSchema0);
+    links0.put("backward", new GenericData.Array(linksSchema0.getField("backward").schema(), Arrays.asList(1L)));
+    links0.put("forward", new GenericData.Array(linksSchema0.getField("forward").schema(), Arrays.asList(2L)));
+    GenericData.Record document0 = new GenericData.Record(schema0);
+    document0.put("docId", 10L);
+    document0.put("links", links0);
+    document0.put("name", new GenericData.Array(schema0.getField("name").schema(), Arrays.asList()));
+    document0.put("tags", ImmutableMap.of("color", "red"));
+    
+    // same field names at other positions, with other types, and without some of the fields
+    Schema schema1 = new Parser().parse("{\"type\":\"record\",\"name\":\"Doc1\",\"fields\":["
+        + "{\"name\":\"tags\",\"type\":{\"type\":\"map\",\"values\":\"string\"}},"
+        + "{\"name\":\"links\",\"type\":{\"type\":\"record\",\"name\":\"Links1\",\"fields\":["
+        + "{\"name\":\"forward\",\"type\":{\"type\":\"array\",\"items\":\"string\"}}]}},"
+        + "{\"name\":\"docId\",\"type\":[\"null\",\"string\"]}"
+        + "]}");
+    Schema linksSchema1 = schema1.getField("links").schema();
+    GenericData.Record links1 = new GenericData.Record(linksSchema1);
+    links1.put("forward", new GenericData.Array(linksSchema1.getField("forward").schema(), Arrays.asList("x", "y")));
+    GenericData.Record document1 = new GenericData.Record(schema1);
+    document1.put("tags", ImmutableMap.of("color", "blue"));
+    document1.put("links", links1);
+    document1.put("docId", "doc1");
+    
+    morphline = createMorphline("test-morphlines/extractAvroPathsSharedPrefixes");
+    for (int i = 0; i < 2; i++) { // alternating schemas hit the plan cache rather than the fast path
+      Record first = extractAvroPaths(document0);
+      assertEquals(Arrays.asList(10L), first.get("docId"));
+      assertEquals(Arrays.asList(Arrays.asList(2L)), first.get("forward"));
+      assertEquals(Arrays.asList(Arrays.asList(1L)), first.get("backward"));
+      assertEquals(Arrays.asList("red"), first.get("color"));
+      
+      first = extractAvroPaths(document1);
+      assertEquals(Arrays.asList("doc1"), first.get("docId"));
+      assertEquals(Arrays.asList(Arrays.asList("x", "y")), first.get("forward"));
+      assertEquals(Arrays.asList(), first.get("backward"));
+      assertEquals(Arrays.asList(), first.get("names"));
+      assertEquals(Arrays.asList("blue"), first.get("color"));
+      
+      first = extractAvroPaths(document1); // same schema again takes the fast path
+      assertEquals(Arrays.asList("doc1"), first.get("docId"));
+      assertEquals(Arrays.asList("blue"), first.get("color"));
+    }
+  }
+  
+  private Record extractAvroPaths(GenericData.Record document) {
+    Record record = new Record();
+    record.put(Fields.ATTACHMENT_BODY, document);
+    collector.reset();
+    assertTrue(morphline.process(record));
+    assertEquals(1, collector.getRecords().size());
+    return collector.getFirstRecord();
+  }
+  
+  private static final String EXTRACT_AVRO_PATHS_SCHEMA = "{\"type\":\"record\",\"name\":\"Doc\",\"fields\":["
+      + "{\"name\":\"docId\",\"type\":\"long\"},"
+      + "{\"name\":\"links\",\"type\":{\"type\":\"record\",\"name\":\"Links\",\"fields\":["
+      + "{\"name\":\"backward\",\"type\":{\"type\":\"array\",\"items\":\"long\"}},"
+      + "{\"name\":\"forward\",\"type\":{\"type\":\"array\",\"items\":\"long\"}}]}},"
+      + "{\"name\":\"name\",\"type\":{\"type\":\"array\",\"items\":{\"type\":\"record\",\"name\":\"Name\",\"fields\":["
+      + "{\"name\":\"language\",\"type\":{\"type\":\"array\",\"items\":{\"type\":\"record\",\"name\":\"Language\",\"fields\":["
+      + "{\"name\":\"code\",\"type\":\"string\"},"
+      + "{\"name\":\"country\",\"type\":[\"null\",\"string\"]}]}}},"
+      + "{\"name\":\"url\",\"type\":[\"null\",\"string\"]}]}}},"
+      + "{\"name\":\"tags\",\"type\":[\"null\",{\"type\":\"map\",\"values\":\"string\"}]},"
+      + "{\"name\":\"meta\",\"type\":[\"null\",{\"type\":\"record\",\"name\":\"Meta\",\"fields\":["
+      + "{\"name\":\"author\",\"type\":\"string\"}]}]}"
+      + "]}";
   
   @Test
   public void testMap() throws Exception {
@@ -846,6 +1016,113 @@ public class AvroMorphlineTest extends AbstractMorphlineTest {
     }
   }
   
+  @Test
+  public void testReadAvroContainerWithCodecs() throws Exception {
+    Schema schema = new Parser().parse("{\"type\":\"record\",\"name\":\"Doc\",\"fields\":["
+        + "{\"name\":\"id\",\"type\":\"int\"},{\"name\":\"text\",\"type\":\"string\"}]}");
+    List<GenericData.Record> records = new ArrayList();
+    for (int i = 0; i < 1000; i++) {
+      GenericData.Record record = new GenericData.Record(schema);
+      record.put("id", i);
+      record.put("text", "hello world " + i);
+      records.add(record);
+    }
+    morphline = createMorphline("test-morphlines/readAvroContainer");    
+    for (CodecFactory codec : new CodecFactory[] {CodecFactory.nullCodec(), CodecFactory.deflateCodec(6), CodecFactory.snappyCodec(),
+        CodecFactory.bzip2Codec()}) { // bzip2 isn't decoded natively
+      DataFileWriter writer = new DataFileWriter(new GenericDatumWriter(schema));
+      writer.setCodec(codec);
+      writer.setSyncInterval(100); // produce many blocks
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      writer.create(schema, bout);
+      for (GenericData.Record record : records) {
+        writer.append(record);
+      }
+      writer.close();
+      
+      for (int j = 0; j < 2; j++) { // second container hits the schema cache
+        Record event = new Record();
+        event.put(Fields.ATTACHMENT_BODY, new ByteArrayInputStream(bout.toByteArray()));
+        collector.reset();
+        assertTrue(morphline.process(event));
+        assertEquals(records.size(), collector.getRecords().size());
+        for (int i = 0; i < records.size(); i++) {
+          assertEquals(records.get(i), collector.getRecords().get(i).getFirstValue(Fields.ATTACHMENT_BODY));
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testWriteAvroToByteArrayBatched() throws Exception {
+    Schema schema = new Parser().parse("{\"type\":\"record\",\"name\":\"Doc\",\"fields\":["
+        + "{\"name\":\"id\",\"type\":\"int\"},{\"name\":\"text\",\"type\":\"string\"}]}");
+    GenericData.Record[] records = new GenericData.Record[7];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = new GenericData.Record(schema);
+      records[i].put("id", i);
+      records[i].put("text", "text" + i);
+    }
+    
+    morphline = createMorphline("test-morphlines/writeAvroToByteArrayWithContainerBatched");
+    startSession();
+    for (GenericData.Record record : records) {
+      Record event = new Record();
+      event.put("id", record.get("id"));
+      event.put(Fields.ATTACHMENT_BODY, record);
+      assertTrue(morphline.process(event));
+    }
+    assertEquals(2, collector.getRecords().size()); // batches of 3 records
+    Notifications.notifyCommitTransaction(morphline); // flushes remaining partial batch
+    assertEquals(3, collector.getRecords().size());
+    int i = 0;
+    for (Record batch : collector.getRecords()) {
+      assertEquals(Arrays.asList(i), batch.get("id")); // fields of the first record of the batch
+      byte[] bytes = (byte[]) batch.getFirstValue(Fields.ATTACHMENT_BODY);
+      DataFileReader<GenericData.Record> reader = new DataFileReader(new ReadAvroContainerBuilder.ForwardOnlySeekableInputStream(new ByteArrayInputStream(bytes)), new GenericDatumReader());
+      assertEquals("bar", new String(reader.getMeta("foo"), Charsets.UTF_8));
+      assertEquals(schema, reader.getSchema());
+      while (reader.hasNext()) {
+        assertEquals(records[i++], reader.next());
+      }
+      reader.close();
+    }
+    assertEquals(records.length, i);
+    
+    morphline = createMorphline("test-morphlines/writeAvroToByteArrayWithContainerlessSingleObject");
+    collector.reset();
+    startSession();
+    for (GenericData.Record record : records) {
+      Record event = new Record();
+      event.put(Fields.ATTACHMENT_BODY, record);
+      assertTrue(morphline.process(event));
+    }
+    Notifications.notifyShutdown(morphline);
+    assertEquals(4, collector.getRecords().size());
+    long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+    DatumReader<GenericData.Record> datumReader = new GenericDatumReader<GenericData.Record>(schema);
+    i = 0;
+    for (Record batch : collector.getRecords()) {
+      byte[] bytes = (byte[]) batch.getFirstValue(Fields.ATTACHMENT_BODY);
+      Decoder decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+      for (int j = 0; j < 2 && i < records.length; j++) {
+        byte[] header = new byte[10];
+        decoder.readFixed(header);
+        assertEquals((byte) 0xC3, header[0]);
+        assertEquals((byte) 0x01, header[1]);
+        assertEquals(fingerprint, ByteBuffer.wrap(header, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong());
+        assertEquals(records[i++], datumReader.read(null, decoder));
+      }
+      try {
+        datumReader.read(null, decoder);
+        fail();
+      } catch (EOFException e) {
+        ; // expected
+      }
+    }
+    assertEquals(records.length, i);
+  }
+  
   @Test
   public void testReadAvroTweetsWithExternalSchema() throws Exception {
     runTweets("test-morphlines/readAvroTweetsWithExternalSchema", TWEET_FIELD_NAMES);    
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.Fields;
+
+/**
+ * Reads the splits (e.g. sync marker aligned byte ranges) of a file in parallel on the threads of
+ * an executor, and hands the items read to the calling thread, either in split order or in the
+ * order in which they become available.
+ *
+ * Because morphline commands aren't thread-safe, items are only ever processed on the calling
+ * thread. Each split owns a fixed number of reusable items that cycle between the worker thread
+ * that fills them and the calling thread that processes them. This bounds memory consumption to
+ * <code>numSplits * numItemsPerSplit</code> items, and avoids allocating a new item per read.
+ */
+public abstract class ParallelSplitReader<T> {
+
+  private final ExecutorService executor;
+  private final int numSplits;
+  private final int numItemsPerSplit;
+  private final boolean isOrdered;
+
+  private static final Object END_OF_SPLIT = new Object();
+
+  public ParallelSplitReader(ExecutorService executor, int numSplits, int numItemsPerSplit, boolean isOrdered) {
+    if (numSplits <= 0) {
+      throw new IllegalArgumentException("numSplits must be positive: " + numSplits);
+    }
+    if (numItemsPerSplit <= 0) {
+      throw new IllegalArgumentException("numItemsPerSplit must be positive: " + numItemsPerSplit);
+    }
+    this.executor = executor;
+    this.numSplits = numSplits;
+    this.numItemsPerSplit = numItemsPerSplit;
+    this.isOrdered = isOrdered;
+  }
+
+  /** Creates a new reusable item; runs on a worker thread */
+  protected abstract T newItem();
+
+  /**
+   * Reads the given split on a worker thread, by repeatedly calling {@link Split#acquire()},
+   * filling the returned item, and passing it on via {@link Split#emit()}.
+   */
+  protected abstract void read(Split split) throws Exception;
+
+  /**
+   * Processes the given item on the calling thread; the item is reused once this method returns.
+   * Returns false to stop reading.
+   */
+  protected abstract boolean process(T item) throws IOException;
+
+  /**
+   * Reads all splits and processes their items; returns false if {@link #process(Object)} returned
+   * false.
+   */
+  public boolean run() throws IOException {
+    List<Split> splits = new ArrayList(numSplits);
+    BlockingQueue<Object> sharedQueue = isOrdered ? null : new LinkedBlockingQueue();
+    for (int i = 0; i < numSplits; i++) {
+      splits.add(new Split(i, isOrdered ? new LinkedBlockingQueue() : sharedQueue));
+    }
+    List<Future> futures = new ArrayList(numSplits);
+    try {
+      for (Split split : splits) {
+        futures.add(executor.submit(split));
+      }
+      if (isOrdered) {
+        for (Split split : splits) {
+          if (!consume(split.queue, 1)) {
+            return false;
+          }
+        }
+        return true;
+      } else {
+        return consume(sharedQueue, numSplits);
+      }
+    } finally {
+      for (Future future : futures) {
+        future.cancel(true); // stop workers that are still running, e.g. because we stopped early
+      }
+    }
+  }
+
+  /**
+   * Returns the local file named by the {@link Fields#ATTACHMENT_NAME} of the given record, i.e. an
+   * absolute path or a <code>file:</code> URI, or null if there is no such file.
+   */
+  public static File getLocalFile(Record record) {
+    Object name = record.getFirstValue(Fields.ATTACHMENT_NAME);
+    if (!(name instanceof String)) {
+      return null;
+    }
+    File file;
+    if (((String) name).startsWith("file:")) {
+      try {
+        file = new File(new URI((String) name));
+      } catch (URISyntaxException e) {
+        return null;
+      } catch (IllegalArgumentException e) {
+        return null; // e.g. URI with authority
+      }
+    } else {
+      file = new File((String) name);
+      if (!file.isAbsolute()) {
+        return null;
+      }
+    }
+    return file.isFile() ? file : null;
+  }
+
+  private boolean consume(BlockingQueue<Object> queue, int numEnds) throws IOException {
+    int ends = 0;
+    while (ends < numEnds) {
+      Object entry;
+      try {
+        entry = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for split data");
+      }
+      if (entry == END_OF_SPLIT) {
+        ends++;
+      } else if (entry instanceof Throwable) {
+        Throwable t = (Throwable) entry;
+        if (t instanceof IOException) {
+          throw new IOException(t.getMessage(), t); // preserve stack trace of both threads
+        } else if (t instanceof Error) {
+          throw (Error) t;
+        } else {
+          throw new MorphlineRuntimeException(t);
+        }
+      } else {
+        Slot slot = (Slot) entry;
+        boolean isSuccess = process(slot.item);
+        slot.split.pool.add(slot); // recycle
+        if (!isSuccess) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** The worker side of a split */
+  public final class Split implements Runnable {
+
+    private final int index;
+    private final BlockingQueue<Object> queue;
+    private final BlockingQueue<Slot> pool = new ArrayBlockingQueue(numItemsPerSplit);
+    private int numItems = 0;
+    private Slot current;
+
+    private Split(int index, BlockingQueue<Object> queue) {
+      this.index = index;
+      this.queue = queue;
+    }
+
+    /** Returns the zero based index of this split */
+    public int getIndex() {
+      return index;
+    }
+
+    /** Returns a reusable item to fill; blocks while all items of this split are in use */
+    public T acquire() throws InterruptedException {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      Slot slot = pool.poll();
+      if (slot == null) {
+        if (numItems < numItemsPerSplit) {
+          slot = new Slot(this, newItem());
+          numItems++;
+        } else {
+          slot = pool.take();
+        }
+      }
+      current = slot;
+      return slot.item;
+    }
+
+    /** Hands the item returned by the last call to {@link #acquire()} to the calling thread */
+    public void emit() {
+      queue.add(current);
+      current = null;
+    }
+
+    /** Gives back the item returned by the last call to {@link #acquire()} without emitting it */
+    public void release() {
+      pool.add(current);
+      current = null;
+    }
+
+    @Override
+    public void run() {
+      try {
+        read(this);
+        queue.add(END_OF_SPLIT);
+      } catch (InterruptedException e) {
+        ; // cancelled by calling thread
+      } catch (Throwable t) {
+        queue.add(t);
+      }
+    }
+
+  }
+
+
+  private final class Slot {
+
+    private final Split split;
+    private final T item;
+
+    public Slot(Split split, T item) {
+      this.split = split;
+      this.item = item;
+    }
+
+  }
+
+}
@@ -30,6 +30,7 @@ import com.typesafe.config.Config;
 public abstract class AbstractFieldTransformCommand extends AbstractCommand {
 
   private final String fieldName;
+  private MatchDeadline deadline; // null if regex matching is unbounded
   
   protected AbstractFieldTransformCommand(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
     super(builder, config, parent, child, context);      
@@ -45,13 +46,36 @@ public abstract class AbstractFieldTransformCommand extends AbstractCommand {
       
   @Override
   protected final boolean doProcess(Record record) {
+    if (deadline != null) {
+      deadline.start();
+    }
     ListIterator iter = record.get(fieldName).listIterator();
-    while (iter.hasNext()) {
-      iter.set(transformFieldValue(iter.next()));
+    try {
+      while (iter.hasNext()) {
+        iter.set(transformFieldValue(iter.next()));
+      }
+    } catch (MatchDeadline.MatchTimeoutException e) {
+      record = deadline.handleTimeout(record); // values that were already transformed stay transformed
     }
     return super.doProcess(record);
   }
   
+  /**
+   * Bounds the time that regex matching may take per record if the given deadline is enabled, in
+   * which case subclasses pass the regex input through {@link #wrapMatchInput(CharSequence)}.
+   */
+  void setMatchDeadline(MatchDeadline deadline) {
+    if (deadline.isEnabled()) {
+      deadline.setNumTimeoutsMeter(getMeter(MatchDeadline.NUM_MATCH_TIMEOUTS));
+      this.deadline = deadline;
+    }
+  }
+  
+  /** Returns a view of the given regex input that is subject to the deadline of the current record */
+  CharSequence wrapMatchInput(CharSequence input) {
+    return deadline == null ? input : deadline.wrap(input);
+  }
+  
   /** Transforms the given input value to some output value */
   protected abstract Object transformFieldValue(Object value);
   
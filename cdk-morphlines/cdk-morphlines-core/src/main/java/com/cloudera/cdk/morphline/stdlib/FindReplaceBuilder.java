@@ -21,7 +21,7 @@ import java.util.Collections;
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
-import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.Matcher;
+import com.cloudera.cdk.morphline.base.Validator;
 import com.typesafe.config.Config;
 
 /**
@@ -48,7 +48,7 @@ public final class FindReplaceBuilder implements CommandBuilder {
   ///////////////////////////////////////////////////////////////////////////////
   private static final class FindReplace extends AbstractFieldTransformCommand {
 
-    private final Matcher matcher;
+    private final GrokMatcher matcher;
     private final String literalPattern;
     private final String replacement;
     private final boolean replaceFirst;
@@ -58,7 +58,11 @@ public final class FindReplaceBuilder implements CommandBuilder {
       GrokDictionaries dict = new GrokDictionaries(config, getConfigs());
       String pattern = getConfigs().getString(config, "pattern");
       if (getConfigs().getBoolean(config, "isRegex", false)) {
-        this.matcher = dict.compileExpression(pattern).matcher("");
+        GrokMatcher.Engine regexEngine = new Validator<GrokMatcher.Engine>().validateEnum(
+            config,
+            getConfigs().getString(config, "regexEngine", GrokMatcher.Engine.java.toString()),
+            GrokMatcher.Engine.class);
+        this.matcher = dict.compileMatcher(pattern, regexEngine);
         this.literalPattern = null;
       } else {
         this.matcher = null;
@@ -66,6 +70,7 @@ public final class FindReplaceBuilder implements CommandBuilder {
       }
       this.replacement = getConfigs().getString(config, "replacement");
       this.replaceFirst = getConfigs().getBoolean(config, "replaceFirst", false);
+      setMatchDeadline(new MatchDeadline(config, getConfigs()));
       validateArguments();
     }
         
@@ -77,7 +82,7 @@ public final class FindReplaceBuilder implements CommandBuilder {
         int max = replaceFirst ? 1 : -1;
         result = StringUtils.replace(str, literalPattern, replacement, max);
       } else {
-        matcher.reset(str);
+        matcher.reset(wrapMatchInput(str));
         if (replaceFirst) {
           result = matcher.replaceFirst(replacement);
         } else {
@@ -29,7 +29,6 @@ import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.cloudera.cdk.morphline.base.Validator;
 import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.GroupInfo;
-import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.Matcher;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
@@ -63,12 +62,13 @@ public final class GrokBuilder implements CommandBuilder {
   ///////////////////////////////////////////////////////////////////////////////
   private static final class Grok extends AbstractCommand {
 
-    private final Map<String, Matcher> regexes = new HashMap();
+    private final Map<String, GrokMatcher> regexes = new HashMap();
     private final boolean extract;
     private final boolean extractInPlace;
     private final NumRequiredMatches numRequiredMatches;
     private final boolean findSubstrings;
     private final boolean addEmptyStrings;
+    private final MatchDeadline deadline;
     private final String firstKey; // cached value
     private final String renderedConfig; // cached value
 
@@ -76,10 +76,14 @@ public final class GrokBuilder implements CommandBuilder {
       super(builder, config, parent, child, context);
       
       GrokDictionaries dict = new GrokDictionaries(config, getConfigs());
+      GrokMatcher.Engine regexEngine = new Validator<GrokMatcher.Engine>().validateEnum(
+          config,
+          getConfigs().getString(config, "regexEngine", GrokMatcher.Engine.java.toString()),
+          GrokMatcher.Engine.class);
       Config exprConfig = getConfigs().getConfig(config, "expressions", ConfigFactory.empty());
       for (Map.Entry<String, Object> entry : new Configs().getEntrySet(exprConfig)) {
         String expr = entry.getValue().toString();
-        this.regexes.put(entry.getKey(), dict.compileExpression(expr).matcher(""));
+        this.regexes.put(entry.getKey(), dict.compileMatcher(expr, regexEngine));
       }
       this.firstKey = (regexes.size() == 0 ? null : regexes.entrySet().iterator().next().getKey());
 
@@ -97,12 +101,33 @@ public final class GrokBuilder implements CommandBuilder {
           NumRequiredMatches.class);
       this.findSubstrings = getConfigs().getBoolean(config, "findSubstrings", false);
       this.addEmptyStrings = getConfigs().getBoolean(config, "addEmptyStrings", false);
+      this.deadline = new MatchDeadline(config, getConfigs());
+      if (deadline.isEnabled()) {
+        deadline.setNumTimeoutsMeter(getMeter(MatchDeadline.NUM_MATCH_TIMEOUTS));
+      }
       validateArguments();
       this.renderedConfig = config.root().render();
     }
     
     @Override
     protected boolean doProcess(Record inputRecord) {
+      Record outputRecord;
+      deadline.start();
+      try {
+        outputRecord = match(inputRecord);
+      } catch (MatchDeadline.MatchTimeoutException e) {
+        outputRecord = deadline.handleTimeout(inputRecord);
+      }
+      if (outputRecord == null) {
+        return false;
+      }
+      
+      // pass record to next command in chain:
+      return super.doProcess(outputRecord);
+    }
+    
+    /** Returns the record to pass to the next command, or null if the command shall fail */
+    private Record match(Record inputRecord) {
       Record outputRecord;
       outputRecord = ((extractInPlace || !extract) ? inputRecord : inputRecord.copy());
       if (extractInPlace) {
@@ -124,7 +149,7 @@ public final class GrokBuilder implements CommandBuilder {
         
         if (!isFast) {
           if (!doMatch(inputRecord, outputRecord, false)) {
-            return false;
+            return null;
           }
         } else {
           ; // no need to do anything
@@ -134,16 +159,14 @@ public final class GrokBuilder implements CommandBuilder {
         }
       }
       if (!doMatch(inputRecord, outputRecord, extract)) {
-        return false;
+        return null;
       }
-      
-      // pass record to next command in chain:
-      return super.doProcess(outputRecord);
+      return outputRecord;
     }
 
     private boolean doMatch(Record inputRecord, Record outputRecord, boolean doExtract) {
-      for (Map.Entry<String, Matcher> regexEntry : regexes.entrySet()) {
-        Matcher matcher = regexEntry.getValue();
+      for (Map.Entry<String, GrokMatcher> regexEntry : regexes.entrySet()) {
+        GrokMatcher matcher = regexEntry.getValue();
         List values = inputRecord.get(regexEntry.getKey());
         int todo = values.size();
         int minMatches = 1;
@@ -163,7 +186,7 @@ public final class GrokBuilder implements CommandBuilder {
         }        
         int numMatches = 0;
         for (Object value : values) {
-          matcher.reset(value.toString());
+          matcher.reset(deadline.wrap(value.toString()));
           if (!findSubstrings) {
             if (matcher.matches()) {
               numMatches++;
@@ -205,14 +228,14 @@ public final class GrokBuilder implements CommandBuilder {
       return true;
     }
 
-    private void extract(Record outputRecord, Matcher matcher, boolean doExtract) {
+    private void extract(Record outputRecord, GrokMatcher matcher, boolean doExtract) {
       if (doExtract) {
         extractFast(outputRecord, matcher);
       }
     }
 
-    private void extractFast(Record outputRecord, Matcher matcher) {
-      for (Map.Entry<String, List<GroupInfo>> entry : matcher.namedPattern().groupInfo().entrySet()) {
+    private void extractFast(Record outputRecord, GrokMatcher matcher) {
+      for (Map.Entry<String, List<GroupInfo>> entry : matcher.groupInfo().entrySet()) {
         String groupName = entry.getKey();
         List<GroupInfo> list = entry.getValue();
         int idx = list.get(0).groupIndex();
@@ -57,7 +57,7 @@ final class GrokDictionaries {
   public GrokDictionaries(Config config, Configs configs) {
     this.config = config;
     try {
-      for (String dictionaryFile : configs.getStringList(config, "dictionaryFiles", Collections.EMPTY_LIST)) {
+      for (String dictionaryFile : configs.getStringList(config, "dictionaryFiles", Collections.<String>emptyList())) {
         loadDictionaryFile(new File(dictionaryFile));
       }
       String dictionaryString = configs.getString(config, "dictionaryString", "");
@@ -75,6 +75,29 @@ final class GrokDictionaries {
     return Pattern.compile(expr);
   }
   
+  /**
+   * Compiles the given grok expression for the given regex engine. If the re2j engine is requested
+   * but the expression uses constructs that re2j doesn't support (e.g. backreferences or
+   * lookaround) this falls back to the java engine for that expression.
+   */
+  public GrokMatcher compileMatcher(String expr, GrokMatcher.Engine engine) {
+    Pattern pattern = compileExpression(expr);
+    if (engine == GrokMatcher.Engine.re2j) {
+      com.google.re2j.Pattern re2jPattern;
+      try {
+        re2jPattern = com.google.re2j.Pattern.compile(pattern.standardPattern());
+      } catch (com.google.re2j.PatternSyntaxException e) {
+        LOG.info("Compiled grok expression with java engine because re2j doesn't support it ({}): {}", 
+            e.getMessage(), expr);
+        return new GrokMatcher.JavaGrokMatcher(pattern);
+      }
+      LOG.info("Compiled grok expression with re2j engine: {}", expr);
+      return new GrokMatcher.Re2jGrokMatcher(pattern, re2jPattern);
+    }
+    LOG.debug("Compiled grok expression with java engine: {}", expr);
+    return new GrokMatcher.JavaGrokMatcher(pattern);
+  }
+  
   private Config getConfig() {
     return config;
   }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdlib;
+
+import java.util.List;
+import java.util.Map;
+
+import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.GroupInfo;
+import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.Matcher;
+import com.cloudera.cdk.morphline.shaded.com.google.code.regexp.Pattern;
+
+/**
+ * Matches input strings against a compiled grok expression, using one of several regex engines.
+ *
+ * The java engine is based on java.util.regex, which backtracks and hence can take exponential
+ * time on pathological input. The re2j engine is a linear-time automaton based implementation
+ * (see https://github.com/google/re2j) that doesn't support backreferences and lookaround.
+ *
+ * Named groups are always resolved via the named pattern of the grok expression, so group indexes
+ * are the same regardless of the engine.
+ */
+abstract class GrokMatcher {
+
+  private final Pattern namedPattern;
+
+  protected GrokMatcher(Pattern namedPattern) {
+    this.namedPattern = namedPattern;
+  }
+
+  /** Returns the named pattern that this matcher was compiled from */
+  public final Pattern namedPattern() {
+    return namedPattern;
+  }
+
+  /** Returns the names and group info of all named capture groups */
+  public final Map<String, List<GroupInfo>> groupInfo() {
+    return namedPattern.groupInfo();
+  }
+
+  /** Returns the engine that this matcher uses */
+  public abstract Engine getEngine();
+
+  public abstract GrokMatcher reset(CharSequence input);
+
+  public abstract boolean matches();
+
+  public abstract boolean find();
+
+  public abstract String group(int group);
+
+  public abstract String replaceAll(String replacement);
+
+  public abstract String replaceFirst(String replacement);
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  static enum Engine {
+    java,
+    re2j
+  }
+
+
+  /** Backtracking engine based on java.util.regex */
+  static final class JavaGrokMatcher extends GrokMatcher {
+
+    private final Matcher matcher;
+
+    public JavaGrokMatcher(Pattern namedPattern) {
+      super(namedPattern);
+      this.matcher = namedPattern.matcher("");
+    }
+
+    @Override
+    public Engine getEngine() {
+      return Engine.java;
+    }
+
+    @Override
+    public GrokMatcher reset(CharSequence input) {
+      matcher.reset(input);
+      return this;
+    }
+
+    @Override
+    public boolean matches() {
+      return matcher.matches();
+    }
+
+    @Override
+    public boolean find() {
+      return matcher.find();
+    }
+
+    @Override
+    public String group(int group) {
+      return matcher.group(group);
+    }
+
+    @Override
+    public String replaceAll(String replacement) {
+      return matcher.replaceAll(replacement);
+    }
+
+    @Override
+    public String replaceFirst(String replacement) {
+      return matcher.replaceFirst(replacement);
+    }
+
+  }
+
+
+  /** Linear-time engine based on re2j */
+  static final class Re2jGrokMatcher extends GrokMatcher {
+
+    private final com.google.re2j.Matcher matcher;
+
+    public Re2jGrokMatcher(Pattern namedPattern, com.google.re2j.Pattern re2jPattern) {
+      super(namedPattern);
+      this.matcher = re2jPattern.matcher("");
+    }
+
+    @Override
+    public Engine getEngine() {
+      return Engine.re2j;
+    }
+
+    @Override
+    public GrokMatcher reset(CharSequence input) {
+      matcher.reset(input);
+      return this;
+    }
+
+    @Override
+    public boolean matches() {
+      return matcher.matches();
+    }
+
+    @Override
+    public boolean find() {
+      return matcher.find();
+    }
+
+    @Override
+    public String group(int group) {
+      return matcher.group(group);
+    }
+
+    @Override
+    public String replaceAll(String replacement) {
+      return matcher.replaceAll(namedPattern().replaceProperties(replacement));
+    }
+
+    @Override
+    public String replaceFirst(String replacement) {
+      return matcher.replaceFirst(namedPattern().replaceProperties(replacement));
+    }
+
+  }
+
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdlib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Immutable string to string hash table that lives in a memory-mapped index file rather than on
+ * the java heap, so it can hold tens of millions of entries.
+ *
+ * The index is built once from a UTF-8 text file with one <code>key separator value</code> entry
+ * per line, and is rebuilt only if the length or modification time of the text file changes.
+ * Reopening an existing index merely maps it into memory. Opened dictionaries are shared by all
+ * morphlines of the JVM, and are safe for concurrent use because lookups only use absolute reads.
+ *
+ * Index file layout: a fixed size header, followed by the UTF-8 bytes of the separator and of the
+ * canonical path of the text file the index was built from, followed by the entries, followed by an open addressing
+ * (linear probing) table of 64 bit slots. An entry is the key length, the value length, the UTF-8
+ * key bytes and the UTF-8 value bytes. A slot holds the file position of an entry in its lower 40
+ * bits and a fragment of the key hash in its upper 24 bits, so most probes of absent keys never
+ * touch the entries. The file is mapped in chunks, and entries are padded such that they never
+ * straddle two chunks.
+ */
+final class MappedDictionary {
+
+  private final File sourceFile;
+  private final long sourceLength;
+  private final long sourceLastModified;
+  private final MappedByteBuffer[] chunks;
+  private final long numEntries;
+  private final long slotsOffset;
+  private final long slotMask;
+
+  private static final long MAGIC = 0x43444B4449435432L; // "CDKDICT2"
+  private static final int HEADER_SIZE = 64;
+  private static final int CHUNK_BITS = 30;
+  private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+  private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int ENTRY_HEADER_SIZE = 8;
+  private static final int POSITION_BITS = 40;
+  private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int[] UTF8_PREFIX = {0, 0x00, 0xC0, 0xE0, 0xF0};
+
+  private static final Map<List<Object>, MappedDictionary> CACHE = new HashMap();
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedDictionary.class);
+
+  /**
+   * Returns the dictionary for the given text file, building or rebuilding the given index file if
+   * necessary. Dictionaries are shared across the JVM, keyed by index file, text file and separator.
+   */
+  public static synchronized MappedDictionary open(File sourceFile, File indexFile, String separator)
+      throws IOException {
+
+    if (!sourceFile.exists()) {
+      throw new FileNotFoundException("File not found: " + sourceFile);
+    }
+    if (!sourceFile.canRead()) {
+      throw new IOException("Insufficient permissions to read file: " + sourceFile);
+    }
+    sourceFile = sourceFile.getCanonicalFile();
+    indexFile = indexFile.getCanonicalFile();
+    List<Object> cacheKey = Arrays.<Object>asList(indexFile, sourceFile, separator);
+    MappedDictionary dict = CACHE.get(cacheKey);
+    if (dict != null && dict.isUpToDate()) {
+      return dict;
+    }
+    dict = openIndex(sourceFile, indexFile, separator);
+    if (dict == null) {
+      buildIndex(sourceFile, indexFile, separator);
+      dict = openIndex(sourceFile, indexFile, separator);
+      if (dict == null) {
+        throw new IOException("Dictionary index file was modified concurrently: " + indexFile);
+      }
+    }
+    CACHE.put(cacheKey, dict);
+    return dict;
+  }
+
+  private MappedDictionary(File sourceFile, long sourceLength, long sourceLastModified,
+      MappedByteBuffer[] chunks, long numEntries, long slotsOffset, long numSlots) {
+    this.sourceFile = sourceFile;
+    this.sourceLength = sourceLength;
+    this.sourceLastModified = sourceLastModified;
+    this.chunks = chunks;
+    this.numEntries = numEntries;
+    this.slotsOffset = slotsOffset;
+    this.slotMask = numSlots - 1;
+  }
+
+  /** Returns the number of distinct keys */
+  public long size() {
+    return numEntries;
+  }
+
+  /** Returns the value associated with the given key, or null if there is no such key */
+  public String get(String key) {
+    long hash = hash(key);
+    long tag = hash >>> POSITION_BITS;
+    long slot = hash & slotMask;
+    while (true) {
+      long slotValue = getLong(chunks, slotsOffset + slot * 8);
+      if (slotValue == 0) {
+        return null;
+      }
+      if (slotValue >>> POSITION_BITS == tag) {
+        long pos = slotValue & POSITION_MASK;
+        ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+        int offset = (int) (pos & CHUNK_MASK);
+        int keyLength = chunk.getInt(offset);
+        if (isEqual(key, chunk, offset + ENTRY_HEADER_SIZE, keyLength)) {
+          int valueLength = chunk.getInt(offset + 4);
+          byte[] value = new byte[valueLength];
+          offset += ENTRY_HEADER_SIZE + keyLength;
+          for (int i = 0; i < valueLength; i++) {
+            value[i] = chunk.get(offset + i);
+          }
+          return new String(value, Charsets.UTF_8);
+        }
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  private boolean isUpToDate() {
+    return sourceFile.length() == sourceLength && sourceFile.lastModified() == sourceLastModified;
+  }
+
+  /**
+   * Maps the given index file, or returns null if it doesn't exist, is stale, or was built from a
+   * different text file or with a different separator
+   */
+  private static MappedDictionary openIndex(File sourceFile, File indexFile, String separator) throws IOException {
+    if (!indexFile.exists()) {
+      return null;
+    }
+    long sourceLength = sourceFile.length();
+    long sourceLastModified = sourceFile.lastModified();
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    try {
+      long fileLength = file.length();
+      if (fileLength < HEADER_SIZE) {
+        return null;
+      }
+      MappedByteBuffer[] chunks = map(file.getChannel(), MapMode.READ_ONLY, fileLength);
+      ByteBuffer header = chunks[0];
+      if (header.getLong(0) != MAGIC
+          || header.getLong(8) != sourceLength
+          || header.getLong(16) != sourceLastModified
+          || header.getLong(40) != fileLength
+          || !isEqual(encode(separator), header, HEADER_SIZE, header.getInt(56), fileLength)
+          || !isEqual(encode(sourceFile.getPath()), header, HEADER_SIZE + header.getInt(56), header.getInt(60), fileLength)) {
+        LOG.info("Rebuilding stale dictionary index file: {}", indexFile);
+        return null;
+      }
+      LOG.debug("Opened dictionary index file: {}", indexFile);
+      return new MappedDictionary(
+          sourceFile, sourceLength, sourceLastModified, chunks, header.getLong(24), header.getLong(48), header.getLong(32));
+    } finally {
+      Closeables.closeQuietly(file); // mappings remain valid after closing the file
+    }
+  }
+
+  /**
+   * Builds the index in two passes over the source file: the first pass computes the layout of the
+   * entries and the size of the table, the second pass writes entries and slots directly into the
+   * mapped file, so the heap footprint is independent of the number of entries. The index is
+   * written to a temporary file that is then renamed, so readers never see a partial index.
+   */
+  private static void buildIndex(File sourceFile, File indexFile, String separator) throws IOException {
+    LOG.info("Building dictionary index file {} from {}", indexFile, sourceFile);
+    long sourceLength = sourceFile.length();
+    long sourceLastModified = sourceFile.lastModified();
+    byte[] separatorBytes = encode(separator);
+    byte[] sourcePathBytes = encode(sourceFile.getPath());
+
+    long numLines = 0;
+    long numSlots = 8;
+    long slotsOffset = 0;
+    long fileLength = 0;
+    File tmpFile = null;
+    for (int pass = 0; pass < 2; pass++) {
+      RandomAccessFile file = null;
+      MappedByteBuffer[] chunks = null;
+      if (pass == 1) {
+        while (numSlots < 2 * numLines) { // load factor <= 0.5
+          numSlots *= 2;
+        }
+        fileLength = slotsOffset + numSlots * 8;
+        tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+        file = new RandomAccessFile(tmpFile, "rw");
+        file.setLength(fileLength);
+        chunks = map(file.getChannel(), MapMode.READ_WRITE, fileLength);
+      }
+
+      boolean success = false;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFile), Charsets.UTF_8));
+      try {
+        long numEntries = 0;
+        long pos = (HEADER_SIZE + separatorBytes.length + sourcePathBytes.length + 7) & ~7L;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNumber++;
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue; // ignore empty lines and comment lines
+          }
+          int i = line.indexOf(separator);
+          if (i < 0) {
+            throw new IOException("Dictionary entry line " + lineNumber + " of file " + sourceFile
+                + " must contain a separator to separate key and value: " + line);
+          }
+          byte[] key = encode(line.substring(0, i));
+          byte[] value = encode(line.substring(i + separator.length()));
+          int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+          if (entrySize > CHUNK_SIZE) {
+            throw new IOException("Dictionary entry line " + lineNumber + " of file " + sourceFile + " is too long");
+          }
+          if ((pos & CHUNK_MASK) + entrySize > CHUNK_SIZE) {
+            pos = (pos + CHUNK_MASK) & ~CHUNK_MASK; // don't straddle chunks
+          }
+          if (pass == 0) {
+            numLines++;
+          } else if (insert(chunks, slotsOffset, numSlots - 1, key, value, pos)) {
+            numEntries++;
+          }
+          pos += entrySize;
+        }
+        if (pos > POSITION_MASK) {
+          throw new IOException("Dictionary file is too large: " + sourceFile);
+        }
+        slotsOffset = (pos + 7) & ~7L; // slots are aligned and hence never straddle chunks
+
+        if (pass == 1) {
+          ByteBuffer header = chunks[0];
+          header.putLong(0, MAGIC);
+          header.putLong(8, sourceLength);
+          header.putLong(16, sourceLastModified);
+          header.putLong(24, numEntries);
+          header.putLong(32, numSlots);
+          header.putLong(40, fileLength);
+          header.putLong(48, slotsOffset);
+          header.putInt(56, separatorBytes.length);
+          header.putInt(60, sourcePathBytes.length);
+          int offset = HEADER_SIZE;
+          for (int i = 0; i < separatorBytes.length; i++) {
+            header.put(offset++, separatorBytes[i]);
+          }
+          for (int i = 0; i < sourcePathBytes.length; i++) {
+            header.put(offset++, sourcePathBytes[i]);
+          }
+          for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+          }
+        }
+        success = true;
+      } finally {
+        Closeables.closeQuietly(reader);
+        if (file != null) {
+          Closeables.closeQuietly(file);
+          if (!success) {
+            tmpFile.delete();
+          }
+        }
+      }
+    }
+
+    if (!tmpFile.renameTo(indexFile)) {
+      indexFile.delete();
+      if (!tmpFile.renameTo(indexFile)) {
+        tmpFile.delete();
+        throw new IOException("Cannot rename " + tmpFile + " to " + indexFile);
+      }
+    }
+  }
+
+  /**
+   * Writes the given entry at the given position and points the slot of its key to it. Returns
+   * false if the key already existed, in which case the later entry wins.
+   */
+  private static boolean insert(ByteBuffer[] chunks, long slotsOffset, long slotMask, byte[] key, byte[] value,
+      long pos) {
+    ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+    int offset = (int) (pos & CHUNK_MASK);
+    chunk.putInt(offset, key.length);
+    chunk.putInt(offset + 4, value.length);
+    offset += ENTRY_HEADER_SIZE;
+    for (int i = 0; i < key.length; i++) {
+      chunk.put(offset++, key[i]);
+    }
+    for (int i = 0; i < value.length; i++) {
+      chunk.put(offset++, value[i]);
+    }
+
+    long hash = hash(key);
+    long tag = hash >>> POSITION_BITS;
+    long slot = hash & slotMask;
+    while (true) {
+      long slotPos = slotsOffset + slot * 8;
+      long slotValue = getLong(chunks, slotPos);
+      boolean isNew = slotValue == 0;
+      if (isNew || (slotValue >>> POSITION_BITS == tag && isEqual(key, chunks, slotValue & POSITION_MASK))) {
+        chunks[(int) (slotPos >>> CHUNK_BITS)].putLong((int) (slotPos & CHUNK_MASK), (tag << POSITION_BITS) | pos);
+        return isNew;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, MapMode mode, long length) throws IOException {
+    MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_BITS)];
+    for (int i = 0; i < chunks.length; i++) {
+      long start = i * CHUNK_SIZE;
+      chunks[i] = channel.map(mode, start, Math.min(CHUNK_SIZE, length - start));
+    }
+    return chunks;
+  }
+
+  private static long getLong(ByteBuffer[] chunks, long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+  }
+
+  private static boolean isEqual(byte[] key, ByteBuffer[] chunks, long pos) {
+    ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+    int offset = (int) (pos & CHUNK_MASK);
+    if (chunk.getInt(offset) != key.length) {
+      return false;
+    }
+    offset += ENTRY_HEADER_SIZE;
+    for (int i = 0; i < key.length; i++) {
+      if (chunk.get(offset + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether the given header bytes, if within the given file length, equal the given bytes */
+  private static boolean isEqual(byte[] bytes, ByteBuffer header, int offset, int length, long fileLength) {
+    if (length != bytes.length || offset + (long) length > Math.min(fileLength, header.limit())) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (header.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compares the UTF-8 encoding of the given key with the given bytes, without allocating */
+  private static boolean isEqual(String key, ByteBuffer chunk, int offset, int length) {
+    int end = offset + length;
+    int n = key.length();
+    for (int i = 0; i < n; ) {
+      int codePoint = codePointAt(key, i);
+      i += Character.charCount(codePoint);
+      int len = utf8Length(codePoint);
+      if (offset + len > end) {
+        return false;
+      }
+      for (int k = 0; k < len; k++) {
+        if (chunk.get(offset++) != (byte) utf8Byte(codePoint, len, k)) {
+          return false;
+        }
+      }
+    }
+    return offset == end;
+  }
+
+  /** Returns the FNV-1a hash of the UTF-8 encoding of the given key, without allocating */
+  private static long hash(String key) {
+    long hash = FNV_OFFSET_BASIS;
+    int n = key.length();
+    for (int i = 0; i < n; ) {
+      int codePoint = codePointAt(key, i);
+      i += Character.charCount(codePoint);
+      int len = utf8Length(codePoint);
+      for (int k = 0; k < len; k++) {
+        hash = (hash ^ utf8Byte(codePoint, len, k)) * FNV_PRIME;
+      }
+    }
+    return mix(hash);
+  }
+
+  private static long hash(byte[] key) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < key.length; i++) {
+      hash = (hash ^ (key[i] & 0xFF)) * FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  /** Spreads the entropy of the lower bits into the upper bits that are used as hash tag */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** Same encoding as String.getBytes(), i.e. unpaired surrogates are encoded as '?' */
+  private static byte[] encode(String str) {
+    int size = 0;
+    for (int i = 0; i < str.length(); ) {
+      int codePoint = codePointAt(str, i);
+      i += Character.charCount(codePoint);
+      size += utf8Length(codePoint);
+    }
+    byte[] bytes = new byte[size];
+    int j = 0;
+    for (int i = 0; i < str.length(); ) {
+      int codePoint = codePointAt(str, i);
+      i += Character.charCount(codePoint);
+      int len = utf8Length(codePoint);
+      for (int k = 0; k < len; k++) {
+        bytes[j++] = (byte) utf8Byte(codePoint, len, k);
+      }
+    }
+    return bytes;
+  }
+
+  private static int codePointAt(String str, int i) {
+    int codePoint = str.codePointAt(i);
+    if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+      return '?'; // unpaired surrogate
+    }
+    return codePoint;
+  }
+
+  private static int utf8Length(int codePoint) {
+    if (codePoint < 0x80) {
+      return 1;
+    } else if (codePoint < 0x800) {
+      return 2;
+    } else if (codePoint < 0x10000) {
+      return 3;
+    } else {
+      return 4;
+    }
+  }
+
+  /** Returns the k-th byte of the UTF-8 encoding of the given code point */
+  private static int utf8Byte(int codePoint, int len, int k) {
+    int shift = 6 * (len - 1 - k);
+    if (k == 0) {
+      return UTF8_PREFIX[len] | (codePoint >> shift);
+    } else {
+      return 0x80 | ((codePoint >> shift) & 0x3F);
+    }
+  }
+
+}
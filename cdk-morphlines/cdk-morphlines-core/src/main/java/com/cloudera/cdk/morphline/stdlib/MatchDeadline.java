@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdlib;
+
+import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.Configs;
+import com.cloudera.cdk.morphline.base.Validator;
+import com.codahale.metrics.Meter;
+import com.typesafe.config.Config;
+
+/**
+ * Per-record time budget for regex matching.
+ *
+ * Regex engines that backtrack can take exponential time on pathological input without ever
+ * throwing an exception. To bound this, the input passed to <code>Matcher.reset()</code> is wrapped
+ * into this {@link CharSequence}, which periodically checks the clock on <code>charAt()</code> and
+ * aborts the match once the budget of the current record is exhausted.
+ *
+ * The instance is reused across records and hence must not be shared between threads, just like
+ * the Matcher that consumes it.
+ */
+final class MatchDeadline implements CharSequence {
+
+  private final long maxNanos;
+  private final OnTimeout onTimeout;
+  private final String tagField;
+  private final String tagValue;
+  private Meter numTimeoutsMeter;
+  private final String renderedConfig; // cached value
+
+  private CharSequence input = "";
+  private long deadline;
+  private int countdown;
+
+  /** Number of charAt() calls between two reads of the clock */
+  private static final int CHECK_INTERVAL = 1000;
+
+  private static final MatchTimeoutException TIMEOUT = new MatchTimeoutException();
+
+  public static final String NUM_MATCH_TIMEOUTS = "numMatchTimeouts";
+
+  public MatchDeadline(Config config, Configs configs) {
+    long maxMicros = configs.getLong(config, "maxMatchTimeMicros", -1);
+    this.maxNanos = maxMicros < 0 ? -1 : maxMicros * 1000;
+    this.onTimeout = new Validator<OnTimeout>().validateEnum(
+        config,
+        configs.getString(config, "onMatchTimeout", OnTimeout.fail.toString()),
+        OnTimeout.class);
+    this.tagField = configs.getString(config, "matchTimeoutTagField", "tags");
+    this.tagValue = configs.getString(config, "matchTimeoutTagValue", "_matchTimeout");
+    this.renderedConfig = config.root().render();
+  }
+
+  /** Returns false if matching is unbounded, i.e. no budget has been configured */
+  public boolean isEnabled() {
+    return maxNanos >= 0;
+  }
+
+  /** Sets the meter that counts aborted matches; only needed if {@link #isEnabled()} */
+  public void setNumTimeoutsMeter(Meter numTimeoutsMeter) {
+    this.numTimeoutsMeter = numTimeoutsMeter;
+  }
+
+  /** Starts the time budget of the next record */
+  public void start() {
+    if (isEnabled()) {
+      deadline = System.nanoTime() + maxNanos;
+    }
+  }
+
+  /**
+   * Returns a view of the given input that aborts matching with a {@link MatchTimeoutException}
+   * once the budget of the current record is exhausted.
+   */
+  public CharSequence wrap(CharSequence input) {
+    if (!isEnabled()) {
+      return input;
+    }
+    this.input = input;
+    this.countdown = CHECK_INTERVAL;
+    return this;
+  }
+
+  /**
+   * Handles a match that was aborted because it exceeded the time budget. Depending on
+   * configuration this either throws a {@link MorphlineRuntimeException} so the exception handler
+   * of the morphline (e.g. FaultTolerance) gets to see the record, or tags the given record and
+   * returns it so it can be passed through to the next command.
+   */
+  public Record handleTimeout(Record record) {
+    input = "";
+    numTimeoutsMeter.mark();
+    if (onTimeout == OnTimeout.fail) {
+      throw new MorphlineRuntimeException("Regex matching exceeded time budget of " + (maxNanos / 1000)
+          + " microseconds for record: " + record + " for command: " + renderedConfig);
+    }
+    record.put(tagField, tagValue);
+    return record;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (--countdown <= 0) {
+      countdown = CHECK_INTERVAL;
+      if (System.nanoTime() - deadline > 0) {
+        throw TIMEOUT;
+      }
+    }
+    return input.charAt(index);
+  }
+
+  @Override
+  public int length() {
+    return input.length();
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return input.subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return input.toString();
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static enum OnTimeout {
+    fail,
+    tag
+  }
+
+
+  /**
+   * Thrown from within the regex engine to abort a match. Carries no stack trace because it is
+   * used purely for control flow, and is always caught by the command that owns the deadline.
+   */
+  static final class MatchTimeoutException extends RuntimeException {
+
+    private MatchTimeoutException() {
+      super("Regex match timed out");
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this; // cheap to throw
+    }
+
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdlib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudera.cdk.morphline.api.Command;
+import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineContext;
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.AbstractCommand;
+import com.cloudera.cdk.morphline.base.FieldExpression;
+import com.codahale.metrics.Meter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+
+/**
+ * Command that runs a nested list of commands and caches the effect that these commands have on the
+ * record, keyed by the value of a field expression. Subsequent records with the same key skip the
+ * nested commands and instead get the cached effect replayed on them.
+ *
+ * This is intended for expensive deterministic lookups on low cardinality inputs, for example
+ * parsing of user agent strings, geo IP lookups of client IP addresses, or grok on repeating
+ * formats. The nested commands must be a function of the key alone, and must not emit more than one
+ * record per input record (records for which they do are passed through uncached).
+ *
+ * The cached effect consists of the values that the nested commands appended to the record fields;
+ * fields whose existing values were modified or removed are cached as a replacement of all values
+ * of that field. If the nested commands fail (i.e. return false) or drop the record, this outcome
+ * is cached too.
+ *
+ * Each replay puts copies of cached byte arrays, lists, sets and maps into the record, so downstream
+ * commands may modify these. Other values (e.g. JSON trees) are shared by all records that the effect
+ * is replayed on, and hence must not be modified downstream.
+ */
+public final class MemoizeBuilder implements CommandBuilder {
+
+  @Override
+  public Collection<String> getNames() {
+    return Collections.singletonList("memoize");
+  }
+
+  @Override
+  public Command build(Config config, Command parent, Command child, MorphlineContext context) {
+    return new Memoize(this, config, parent, child, context);
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static final class Memoize extends AbstractCommand {
+
+    private final FieldExpression key;
+    private final Command subPipeline;
+    private final Collector collector = new Collector();
+    private final Cache<List, Effect> cache;
+    private final Meter numCacheHits;
+    private final Meter numCacheMisses;
+
+    public Memoize(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
+      super(builder, config, parent, child, context);
+      this.key = new FieldExpression(getConfigs().getString(config, "key"), getConfig());
+      CacheBuilder cacheBuilder = CacheBuilder.newBuilder()
+          .maximumSize(getConfigs().getLong(config, "maxCacheSize", 10000));
+      long expireAfterWrite = getConfigs().getNanoseconds(config, "expireAfterWrite", -1);
+      if (expireAfterWrite >= 0) {
+        cacheBuilder = cacheBuilder.expireAfterWrite(expireAfterWrite, TimeUnit.NANOSECONDS);
+      }
+      this.cache = cacheBuilder.build();
+      List<Command> commands = buildCommandChain(config, "commands", collector, true);
+      this.subPipeline = commands.size() == 0 ? collector : commands.get(0);
+      validateArguments();
+      this.numCacheHits = getMeter("numCacheHits");
+      this.numCacheMisses = getMeter("numCacheMisses");
+    }
+
+    @Override
+    protected List<Command> buildCommandChain(Config rootConfig, String configKey, Command finalChild, boolean ignoreNotifications) {
+      getConfigs().getConfigList(rootConfig, configKey); // required, and recognized by validateArguments()
+      return super.buildCommandChain(rootConfig, configKey, finalChild, ignoreNotifications);
+    }
+
+    @Override
+    protected void doNotify(Record notification) {
+      subPipeline.notify(notification);
+      super.doNotify(notification);
+    }
+
+    @Override
+    protected boolean doProcess(Record record) {
+      List cacheKey = key.evaluate(record);
+      Effect effect = cache.getIfPresent(cacheKey);
+      if (effect != null) {
+        numCacheHits.mark();
+      } else {
+        numCacheMisses.mark();
+        collector.reset();
+        boolean success = subPipeline.process(record.copy());
+        List<Record> outputs = collector.getRecords();
+        if (outputs.size() > 1) {
+          LOG.debug("Not caching result of nested commands that emitted {} records", outputs.size());
+          for (Record output : outputs) {
+            if (!super.doProcess(output)) {
+              return false;
+            }
+          }
+          return success;
+        }
+        if (!success) {
+          effect = Effect.FAILURE;
+        } else if (outputs.size() == 0) {
+          effect = Effect.DROPPED;
+        } else {
+          effect = Effect.diff(record, outputs.get(0));
+        }
+        cache.put(cacheKey, effect);
+      }
+
+      if (effect == Effect.FAILURE) {
+        return false;
+      } else if (effect == Effect.DROPPED) {
+        return true;
+      }
+      effect.apply(record);
+
+      // pass record to next command in chain:
+      return super.doProcess(record);
+    }
+
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** The change that the nested commands made to a record */
+  private static final class Effect {
+
+    private final String[] fieldNames;
+    private final List[] values;
+    private final boolean[] isReplacement; // replace all values of field rather than append values
+
+    private static final Effect FAILURE = new Effect(0);
+    private static final Effect DROPPED = new Effect(0);
+
+    private Effect(int size) {
+      this.fieldNames = new String[size];
+      this.values = new List[size];
+      this.isReplacement = new boolean[size];
+    }
+
+    /** Computes the change from the given input record to the given output record */
+    public static Effect diff(Record input, Record output) {
+      List<String> names = new ArrayList();
+      for (String name : input.getFields().keySet()) {
+        if (!output.getFields().containsKey(name)) {
+          names.add(name); // removed
+        }
+      }
+      for (Map.Entry<String, Collection<Object>> entry : output.getFields().asMap().entrySet()) {
+        if (!entry.getValue().equals(input.get(entry.getKey()))) {
+          names.add(entry.getKey()); // added or modified
+        }
+      }
+
+      Effect effect = new Effect(names.size());
+      for (int i = 0; i < names.size(); i++) {
+        String name = names.get(i);
+        List before = input.get(name);
+        List after = output.get(name);
+        effect.fieldNames[i] = name;
+        if (after.size() >= before.size() && after.subList(0, before.size()).equals(before)) {
+          effect.values[i] = new ArrayList(after.subList(before.size(), after.size()));
+          effect.isReplacement[i] = false;
+        } else {
+          effect.values[i] = new ArrayList(after);
+          effect.isReplacement[i] = true;
+        }
+      }
+      return effect;
+    }
+
+    /** Replays the change on the given record */
+    public void apply(Record record) {
+      for (int i = 0; i < fieldNames.length; i++) {
+        List copies = copy(values[i]);
+        if (isReplacement[i]) {
+          record.getFields().replaceValues(fieldNames[i], copies);
+        } else {
+          record.getFields().putAll(fieldNames[i], copies);
+        }
+      }
+    }
+
+    /** Returns the given cached values, with byte arrays and collections replaced by copies */
+    private static List copy(List values) {
+      List copies = null;
+      for (int i = 0; i < values.size(); i++) {
+        Object value = values.get(i);
+        Object copy = copyValue(value);
+        if (copy != value) {
+          if (copies == null) {
+            copies = new ArrayList(values);
+          }
+          copies.set(i, copy);
+        }
+      }
+      return copies == null ? values : copies;
+    }
+
+    private static Object copyValue(Object value) {
+      if (value instanceof byte[]) {
+        return ((byte[]) value).clone();
+      } else if (value instanceof List) {
+        List copy = new ArrayList(((List) value).size());
+        for (Object item : (List) value) {
+          copy.add(copyValue(item));
+        }
+        return copy;
+      } else if (value instanceof Set) {
+        Set copy = new LinkedHashSet();
+        for (Object item : (Set) value) {
+          copy.add(copyValue(item));
+        }
+        return copy;
+      } else if (value instanceof Map) {
+        Map copy = new LinkedHashMap();
+        for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+          copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return copy;
+      } else {
+        return value;
+      }
+    }
+
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Final child of the nested commands; captures the records they emit */
+  private static final class Collector implements Command {
+
+    private final List<Record> records = new ArrayList();
+
+    public void reset() {
+      records.clear();
+    }
+
+    public List<Record> getRecords() {
+      return records;
+    }
+
+    @Override
+    public Command getParent() {
+      return null;
+    }
+
+    @Override
+    public void notify(Record notification) {
+    }
+
+    @Override
+    public boolean process(Record record) {
+      records.add(record);
+      return true;
+    }
+
+  }
+
+}
@@ -28,6 +28,7 @@ import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
 
 /**
@@ -61,6 +62,12 @@ public final class SplitBuilder implements CommandBuilder {
     private final List<String> outputFieldNames;
     private final boolean addEmptyStrings;
     private final Splitter splitter;
+    private final MatchDeadline deadline;
+    private final String literalSeparator; // null if isRegex
+    private final int limit;
+    private final boolean omitEmptyStrings;
+    private final boolean trim;
+    private final int numColumns; // number of leading outputFields that need to be materialized
     
     public Split(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
@@ -91,24 +98,64 @@ public final class SplitBuilder implements CommandBuilder {
       if (limit > 0) {
         currentSplitter = currentSplitter.limit(limit);
       }
+      this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
       
       this.addEmptyStrings = getConfigs().getBoolean(config, "addEmptyStrings", false);      
-      if (outputFieldNames == null && !addEmptyStrings) {
+      this.omitEmptyStrings = outputFieldNames == null && !addEmptyStrings;
+      if (omitEmptyStrings) {
         currentSplitter = currentSplitter.omitEmptyStrings();
       }
       
-      if (getConfigs().getBoolean(config, "trim", true)) {
+      this.trim = getConfigs().getBoolean(config, "trim", true);
+      if (trim) {
         currentSplitter = currentSplitter.trimResults();
       }
       
       this.splitter = currentSplitter;
+      this.literalSeparator = isRegex ? null : separator;
+      
+      int lastColumn = -1;
+      if (outputFieldNames != null) {
+        for (int i = 0; i < outputFieldNames.size(); i++) {
+          if (outputFieldNames.get(i).length() > 0) {
+            lastColumn = i;
+          }
+        }
+      }
+      this.numColumns = lastColumn + 1;
+      
+      MatchDeadline currentDeadline = new MatchDeadline(config, getConfigs());
+      if (isRegex && currentDeadline.isEnabled()) { // literals split in linear time
+        currentDeadline.setNumTimeoutsMeter(getMeter(MatchDeadline.NUM_MATCH_TIMEOUTS));
+        this.deadline = currentDeadline;
+      } else {
+        this.deadline = null;
+      }
       validateArguments();
     }
         
     @Override
     protected boolean doProcess(Record record) {
+      if (deadline != null) {
+        deadline.start();
+      }
       for (Object value : record.get(inputFieldName)) {
-        Iterable<String> columns = splitter.split(value.toString());
+        if (literalSeparator != null) {
+          splitLiteral(record, value.toString());
+          continue;
+        }
+        Iterable<String> columns;
+        if (deadline == null) {
+          columns = splitter.split(value.toString());
+        } else {
+          try {
+            // Splitter is lazy; materialize so an aborted match leaves no partial output behind
+            columns = Lists.newArrayList(splitter.split(deadline.wrap(value.toString())));
+          } catch (MatchDeadline.MatchTimeoutException e) {
+            record = deadline.handleTimeout(record);
+            break;
+          }
+        }
         if (outputFieldNames == null) {
           record.getFields().putAll(outputFieldName, columns);
         } else {
@@ -120,6 +167,71 @@ public final class SplitBuilder implements CommandBuilder {
       return super.doProcess(record);
     }
 
+    /**
+     * Allocation-light equivalent of splitter.split() for literal separators: Scans the string via
+     * indexOf(), trims via index arithmetic and writes each token directly into the output field,
+     * without iterators or intermediate collections. With outputFields, scanning stops as soon as
+     * the last non-empty output field has been filled, and tokens that map to an empty output field
+     * name are never materialized.
+     */
+    private void splitLiteral(Record record, String str) {
+      String sep = literalSeparator;
+      char sepChar = sep.charAt(0);
+      boolean isSingleChar = sep.length() == 1;
+      int remaining = limit;
+      int column = 0;
+      int offset = (outputFieldNames != null && numColumns == 0) ? -1 : 0;
+      while (offset != -1) {
+        int start = offset;
+        int end;
+        int separatorPosition = isSingleChar ? str.indexOf(sepChar, offset) : str.indexOf(sep, offset);
+        if (separatorPosition == -1) {
+          end = str.length();
+          offset = -1;
+        } else {
+          end = separatorPosition;
+          offset = separatorPosition + sep.length();
+        }
+        if (trim) {
+          while (start < end && CharMatcher.WHITESPACE.matches(str.charAt(start))) {
+            start++;
+          }
+          while (end > start && CharMatcher.WHITESPACE.matches(str.charAt(end - 1))) {
+            end--;
+          }
+        }
+        if (omitEmptyStrings && start == end) {
+          continue;
+        }
+        if (remaining == 1) {
+          // The limit has been reached, so the rest of the string is the final item (same as Splitter.limit())
+          end = str.length();
+          offset = -1;
+          if (trim) {
+            while (end > start && CharMatcher.WHITESPACE.matches(str.charAt(end - 1))) {
+              end--;
+            }
+          }
+        } else {
+          remaining--;
+        }
+        
+        if (outputFieldNames == null) {
+          record.put(outputFieldName, str.substring(start, end));
+        } else {
+          String columnName = outputFieldNames.get(column++);
+          if (columnName.length() > 0) { // empty column name indicates omit this field on output
+            if (start < end || addEmptyStrings) {
+              record.put(columnName, str.substring(start, end));
+            }
+          }
+          if (column >= numColumns) {
+            return; // all requested columns have been filled
+          }
+        }
+      }
+    }
+    
     private void extractColumns(Record record, Iterable<String> columns) {
       Iterator<String> iter = columns.iterator();
       for (int i = 0; i < outputFieldNames.size() && iter.hasNext(); i++) {
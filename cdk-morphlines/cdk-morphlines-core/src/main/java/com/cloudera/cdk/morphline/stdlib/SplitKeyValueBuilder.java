@@ -52,6 +52,7 @@ public final class SplitKeyValueBuilder implements CommandBuilder {
     private final String inputFieldName;
     private final String outputFieldPrefix;
     private final char separatorChar;
+    private final String itemSeparator;
     private final boolean addEmptyStrings;
     private final boolean trim;
     
@@ -64,6 +65,10 @@ public final class SplitKeyValueBuilder implements CommandBuilder {
         throw new MorphlineCompilationException("separator must be one character only: " + separator, config);
       }
       this.separatorChar = separator.charAt(0);
+      this.itemSeparator = getConfigs().getString(config, "itemSeparator", null);
+      if (itemSeparator != null && itemSeparator.length() == 0) {
+        throw new MorphlineCompilationException("itemSeparator must not be empty", config);
+      }
       this.addEmptyStrings = getConfigs().getBoolean(config, "addEmptyStrings", false);      
       this.trim = getConfigs().getBoolean(config, "trim", true);
       validateArguments();
@@ -73,16 +78,17 @@ public final class SplitKeyValueBuilder implements CommandBuilder {
     protected boolean doProcess(Record record) {
       for (Object item : record.get(inputFieldName)) {
         String str = item.toString();
-        String key = str;
-        String value = "";
-        int i = str.indexOf(separatorChar);
-        if (i >= 0) {
-          key = str.substring(0, i);
-          value = str.substring(i + 1, str.length());
-        }
-        value = trim(value);        
-        if (value.length() > 0 || addEmptyStrings) {
-          record.put(concat(outputFieldPrefix, trim(key)), value);
+        if (itemSeparator == null) {
+          splitKeyValue(record, str, 0, str.length());
+        } else {
+          // e.g. query string: split items on the fly without materializing an intermediate list
+          int start = 0;
+          int end;
+          while ((end = str.indexOf(itemSeparator, start)) >= 0) {
+            splitKeyValue(record, str, start, end);
+            start = end + itemSeparator.length();
+          }
+          splitKeyValue(record, str, start, str.length());
         }
       }
       
@@ -90,12 +96,48 @@ public final class SplitKeyValueBuilder implements CommandBuilder {
       return super.doProcess(record);
     }
 
-    private String trim(String str) {
-      return trim ? str.trim() : str;
-    }
-    
-    private String concat(String x, String y) {
-      return x.length() == 0 ? y : x + y;
+    /**
+     * Splits the key-value pair contained in str[from, to) and adds it to the record. Trimming is
+     * done via index arithmetic so that only the final key and value strings are allocated.
+     */
+    private void splitKeyValue(Record record, String str, int from, int to) {
+      int keyStart = from;
+      int keyEnd = to;
+      int valueStart = to;
+      int valueEnd = to;
+      for (int i = from; i < to; i++) {
+        if (str.charAt(i) == separatorChar) {
+          keyEnd = i;
+          valueStart = i + 1;
+          break;
+        }
+      }
+      if (trim) { // same semantics as String.trim()
+        while (valueStart < valueEnd && str.charAt(valueStart) <= ' ') {
+          valueStart++;
+        }
+        while (valueEnd > valueStart && str.charAt(valueEnd - 1) <= ' ') {
+          valueEnd--;
+        }
+      }
+      if (valueStart < valueEnd || addEmptyStrings) {
+        if (trim) {
+          while (keyStart < keyEnd && str.charAt(keyStart) <= ' ') {
+            keyStart++;
+          }
+          while (keyEnd > keyStart && str.charAt(keyEnd - 1) <= ' ') {
+            keyEnd--;
+          }
+        }
+        String key;
+        if (outputFieldPrefix.length() == 0) {
+          key = str.substring(keyStart, keyEnd);
+        } else {
+          key = new StringBuilder(outputFieldPrefix.length() + keyEnd - keyStart)
+              .append(outputFieldPrefix).append(str, keyStart, keyEnd).toString();
+        }
+        record.put(key, str.substring(valueStart, valueEnd));
+      }
     }
     
   }
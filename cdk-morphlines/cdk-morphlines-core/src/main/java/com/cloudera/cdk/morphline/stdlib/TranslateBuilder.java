@@ -15,6 +15,8 @@
  */
 package com.cloudera.cdk.morphline.stdlib;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -23,6 +25,7 @@ import java.util.Map;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
@@ -32,6 +35,11 @@ import com.typesafe.config.Config;
 /**
  * Command that examines each string value in a given field and replaces it with the replacement
  * value defined in a given dictionary aka hash table.
+ * 
+ * The dictionary is either defined inline in the config, or is loaded from a local text file with
+ * one <code>key separator value</code> entry per line. The latter is intended for dictionaries too
+ * large to fit into the java heap; such a dictionary is stored in a memory-mapped index file that is
+ * built once and then shared by all morphlines of the JVM.
  */
 public final class TranslateBuilder implements CommandBuilder {
 
@@ -53,14 +61,33 @@ public final class TranslateBuilder implements CommandBuilder {
 
     private final String fieldName;
     private final Map<String, Object> dictionary = new HashMap();
+    private final MappedDictionary mappedDictionary;
     private final Object fallback;
     
     public Translate(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
       this.fieldName = getConfigs().getString(config, "field");
-      Config dict = getConfigs().getConfig(config, "dictionary");
-      for (Map.Entry<String, Object> entry : new Configs().getEntrySet(dict)) {
-        dictionary.put(entry.getKey(), entry.getValue());
+      String dictionaryFile = getConfigs().getString(config, "dictionaryFile", null);
+      if (dictionaryFile == null) {
+        Config dict = getConfigs().getConfig(config, "dictionary");
+        for (Map.Entry<String, Object> entry : new Configs().getEntrySet(dict)) {
+          dictionary.put(entry.getKey(), entry.getValue());
+        }
+        this.mappedDictionary = null;
+      } else {
+        if (config.hasPath("dictionary")) {
+          throw new MorphlineCompilationException("Parameters dictionary and dictionaryFile are mutually exclusive", config);
+        }
+        String indexFile = getConfigs().getString(config, "dictionaryIndexFile", dictionaryFile + ".idx");
+        String separator = getConfigs().getString(config, "dictionaryFileSeparator", "\t");
+        if (separator.length() == 0) {
+          throw new MorphlineCompilationException("dictionaryFileSeparator must not be empty", config);
+        }
+        try {
+          this.mappedDictionary = MappedDictionary.open(new File(dictionaryFile), new File(indexFile), separator);
+        } catch (IOException e) {
+          throw new MorphlineCompilationException("Cannot load dictionary file: " + dictionaryFile, config, e);
+        }
       }
       this.fallback = getConfigs().getString(config, "fallback", null);
       validateArguments();
@@ -71,7 +98,7 @@ public final class TranslateBuilder implements CommandBuilder {
       ListIterator iter = record.get(fieldName).listIterator();
       while (iter.hasNext()) {
         String key = iter.next().toString();
-        Object value = dictionary.get(key);
+        Object value = mappedDictionary != null ? mappedDictionary.get(key) : dictionary.get(key);
         if (value != null) {
           iter.set(value);
         } else if (fallback != null) {
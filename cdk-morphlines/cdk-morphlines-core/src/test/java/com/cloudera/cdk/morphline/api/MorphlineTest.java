@@ -58,6 +58,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
@@ -1159,6 +1160,85 @@ public class MorphlineTest extends AbstractMorphlineTest {
     		"\nAverage 4 to 6-degrees above normal: Ohio Valley, Rockies, Central Plains");
     assertEquals(expected, collector.getFirstRecord());
     assertNotSame(record, collector.getFirstRecord());      
+    assertNull(morphContext.getMetricRegistry().getMeters().get("morphline.grok.numMatchTimeouts"));
+  }
+  
+  @Test
+  public void testGrokRegexEngine() throws Exception {
+    for (String regexEngine : new String[] {"java", "re2j"}) {
+      morphline = createMorphline(
+          "test-morphlines/grokRegexEngine", 
+          ConfigFactory.parseMap(ImmutableMap.of("regexEngine", regexEngine)));
+      Record record = new Record();
+      String msg = "<164>Feb  4 10:46:14 syslog sshd[607]: Server listening on 0.0.0.0 port 22.";
+      record.put(Fields.MESSAGE, msg);
+      record.put("host", "192.168.0.1");
+      collector.reset();
+      assertTrue(morphline.process(record));
+      Record expected = new Record();
+      expected.put(Fields.MESSAGE, msg);
+      expected.put("host", "192.168.0.1");
+      expected.put("syslog_pri", "164");
+      expected.put("syslog_timestamp", "Feb  4 10:46:14");
+      expected.put("syslog_hostname", "syslog");
+      expected.put("syslog_program", "sshd");
+      expected.put("syslog_pid", "607");
+      expected.put("syslog_message", "Server listening on 0.0.0.0 port 22.");
+      expected.put("ip", "192.168.0.1");
+      assertEquals(expected, collector.getFirstRecord());
+      
+      // mismatch
+      collector.reset();
+      record = new Record();
+      record.put(Fields.MESSAGE, "foo" + msg);
+      record.put("host", "192.168.0.1");
+      assertFalse(morphline.process(record));
+      assertEquals(Arrays.asList(), collector.getRecords());
+    }
+  }
+  
+  @Test
+  public void testGrokMatchTimeout() throws Exception {
+    String msg = Strings.repeat("a", 40) + "c";
+    
+    // tag and pass through
+    morphline = createMorphline(
+        "test-morphlines/grokMatchTimeout", 
+        ConfigFactory.parseMap(ImmutableMap.of("onMatchTimeout", "tag")));
+    Record record = new Record();
+    record.put(Fields.MESSAGE, msg);
+    Record expected = new Record();
+    expected.put(Fields.MESSAGE, msg);
+    expected.put("tags", "_matchTimeout");
+    processAndVerifySuccess(record, expected);
+    assertEquals(1, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.grok.numMatchTimeouts").getCount());
+    
+    // matches within the budget are unaffected
+    collector.reset();
+    record = new Record();
+    record.put(Fields.MESSAGE, "aaab");
+    expected = new Record();
+    expected.put(Fields.MESSAGE, "aaab");
+    expected.put("word", "aaab");
+    processAndVerifySuccess(record, expected, false);
+    
+    // fail
+    morphline = createMorphline(
+        "test-morphlines/grokMatchTimeout", 
+        ConfigFactory.parseMap(ImmutableMap.of("onMatchTimeout", "fail")));
+    record = new Record();
+    record.put(Fields.MESSAGE, msg);
+    collector.reset();
+    try {
+      morphline.process(record);
+      fail();
+    } catch (MorphlineRuntimeException e) {
+      ; // expected
+    }
+    assertEquals(Arrays.asList(), collector.getRecords());
+    assertEquals(1, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.grok.numMatchTimeouts").getCount());
   }
   
   @Test
@@ -1229,6 +1309,23 @@ public class MorphlineTest extends AbstractMorphlineTest {
     Record expected = new Record();
     expected.put("text", "hello! ic! world! ic!");
     processAndVerifySuccess(record, expected);
+    assertNull(morphContext.getMetricRegistry().getMeters().get("morphline.findReplace.numMatchTimeouts"));
+  }
+  
+  @Test
+  public void testFindReplaceMatchTimeout() throws Exception {
+    String msg = Strings.repeat("a", 40) + "c";
+    morphline = createMorphline("test-morphlines/findReplaceMatchTimeout");
+    Record record = new Record();
+    record.put("text", "aab");
+    record.put("text", msg);
+    Record expected = new Record();
+    expected.put("text", "X"); // values that were already replaced stay replaced
+    expected.put("text", msg);
+    expected.put("tags", "_matchTimeout");
+    processAndVerifySuccess(record, expected);
+    assertEquals(1, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.findReplace.numMatchTimeouts").getCount());
   }
   
   @Test
@@ -1242,6 +1339,29 @@ public class MorphlineTest extends AbstractMorphlineTest {
     processAndVerifySuccess(record, expected);
   }
   
+  @Test
+  public void testFindReplaceWithGrokWithRe2j() throws Exception {
+    Config override = ConfigFactory.parseString("replaceFirst : false, regexEngine : re2j");
+    morphline = createMorphline("test-morphlines/findReplaceWithGrok", override);    
+    Record record = new Record();
+    record.put("text", "hello ic world ic");
+    Record expected = new Record();
+    expected.put("text", "hello! ic! world! ic!");
+    processAndVerifySuccess(record, expected);
+  }
+  
+  @Test
+  public void testSplitMatchTimeout() throws Exception {
+    morphline = createMorphline("test-morphlines/splitMatchTimeout");    
+    Record record = new Record();
+    String msg = Strings.repeat("a", 40) + "c";
+    record.put(Fields.MESSAGE, msg);
+    Record expected = new Record();
+    expected.put(Fields.MESSAGE, msg);
+    expected.put("errors", "splitTimeout");
+    processAndVerifySuccess(record, expected);
+  }
+  
   @Test
   public void testSplit() throws Exception {
     morphline = createMorphline("test-morphlines/split");    
@@ -1287,6 +1407,19 @@ public class MorphlineTest extends AbstractMorphlineTest {
     processAndVerifySuccess(record, expected);
   }
   
+  @Test
+  public void testSplitWithLimit() throws Exception {
+    morphline = createMorphline("test-morphlines/splitWithLimit");    
+    Record record = new Record();
+    String msg = ", _a ,,_b_ ,c__ ";
+    record.put(Fields.MESSAGE, msg);
+    Record expected = new Record();
+    expected.put(Fields.MESSAGE, msg);
+    expected.put("output", "_a");
+    expected.put("output", "_b_ ,c__"); // empty strings do not count towards the limit
+    processAndVerifySuccess(record, expected);
+  }
+  
   @Test
   public void testSplitWithGrok() throws Exception {
     morphline = createMorphline("test-morphlines/splitWithGrok");    
@@ -1330,6 +1463,68 @@ public class MorphlineTest extends AbstractMorphlineTest {
     processAndVerifySuccess(record, expected);
   }
   
+  @Test
+  public void testSplitKeyValueWithItemSeparator() throws Exception {
+    morphline = createMorphline("test-morphlines/splitKeyValueWithItemSeparator");    
+    Record record = new Record();
+    record.put("params", "foo=x& foo = y &foo &&fragment=z");
+    record.put("params", "bar=");
+    Record expected = new Record();
+    expected.getFields().putAll("params", record.get("params"));
+    expected.put("/foo", "x");
+    expected.put("/foo", "y");
+    expected.put("/fragment", "z");
+    processAndVerifySuccess(record, expected);
+  }
+  
+  @Test
+  public void testMemoize() throws Exception {
+    morphline = createMorphline("test-morphlines/memoize");
+    String[] uas = new String[] {"Mozilla/5.0", "curl/7.29", "Mozilla/5.0", "DROP", "Mozilla/5.0", "DROP"};
+    long[] seqs = new long[] {0, 1, 0, -1, 0, -1};
+    for (int i = 0; i < uas.length; i++) {
+      collector.reset();
+      Record record = new Record();
+      record.put("ua", uas[i]);
+      record.put("id", i);
+      assertTrue(morphline.process(record));
+      if (seqs[i] < 0) {
+        assertEquals(0, collector.getRecords().size());
+      } else {
+        Record expected = new Record();
+        expected.put("ua", uas[i].replace("Mozilla", "moz"));
+        expected.put("id", i);
+        expected.put("seq", seqs[i]);
+        assertEquals(expected, collector.getFirstRecord());
+      }
+    }
+    assertEquals(3, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.memoize.numCacheHits").getCount());
+    assertEquals(3, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.memoize.numCacheMisses").getCount());
+  }
+  
+  @Test
+  public void testMemoizeCopiesMutableValues() throws Exception {
+    morphline = createMorphline("test-morphlines/memoizeMutableValues");
+    for (int i = 0; i < 3; i++) {
+      collector.reset();
+      Record record = new Record();
+      record.put("ua", "Mozilla/5.0");
+      assertTrue(morphline.process(record));
+      Record output = collector.getFirstRecord();
+      byte[] bytes = (byte[]) output.getFirstValue("bytes");
+      assertArrayEquals(new byte[] {1, 2}, bytes);
+      assertEquals(Arrays.asList("a", "b"), output.getFirstValue("list"));
+      
+      // modifications downstream must not leak into the records that the cached effect is replayed on
+      bytes[0] = 9;
+      ((List) output.getFirstValue("list")).add("c");
+    }
+    assertEquals(2, morphContext.getMetricRegistry().getMeters()
+        .get("morphline.memoize.numCacheHits").getCount());
+  }
+  
   @Test
   public void testSplitKeyValueWithIPTables() throws Exception {
     morphline = createMorphline("test-morphlines/splitKeyValueWithIPTables");    
@@ -1517,6 +1712,70 @@ public class MorphlineTest extends AbstractMorphlineTest {
     processAndVerifySuccess(record, expected);
   }
     
+  @Test
+  public void testTranslateWithDictionaryFile() throws Exception {
+    File indexFile = new File(RESOURCES_DIR + "/test-documents/translate-dictionary.txt.idx");
+    indexFile.delete();
+    for (int i = 0; i < 2; i++) { // build index, then reopen it
+      morphline = createMorphline("test-morphlines/translateWithDictionaryFile");
+      assertTrue(indexFile.isFile());
+      Record record = new Record();
+      Record expected = new Record();
+      
+      record.replaceValues("level", 0);
+      expected.replaceValues("level", "Emergency");
+      processAndVerifySuccess(record, expected);
+      
+      record.replaceValues("level", "7");
+      expected.replaceValues("level", "Debugging");
+      processAndVerifySuccess(record, expected);
+      
+      record.replaceValues("level", "stra\u00DFe");
+      expected.replaceValues("level", "street");
+      processAndVerifySuccess(record, expected);
+      
+      record.replaceValues("level", "key with spaces");
+      expected.replaceValues("level", "value\twith tab");
+      processAndVerifySuccess(record, expected);
+      
+      record.replaceValues("level", "strasse");
+      expected.replaceValues("level", "unknown");
+      processAndVerifySuccess(record, expected);
+      
+      record.replaceValues("level", "");
+      expected.replaceValues("level", "unknown");
+      processAndVerifySuccess(record, expected);
+    }
+  }
+    
+  @Test
+  public void testTranslateWithSharedDictionaryIndexFile() throws Exception {
+    File indexFile = new File(RESOURCES_DIR + "/test-documents/translate-shared.idx");
+    indexFile.delete();
+    for (int i = 0; i < 2; i++) { // build index, then reuse the shared dictionaries
+      morphline = createMorphline("test-morphlines/translateWithSharedDictionaryIndexFile");
+      Record record = new Record();
+      record.put("colon", "a");
+      record.put("equals", "a:b");
+      record.put("level", "7");
+      Record expected = new Record();
+      expected.put("colon", "b=c");
+      expected.put("equals", "c");
+      expected.put("level", "Debugging");
+      processAndVerifySuccess(record, expected);
+      
+      record = new Record();
+      record.put("colon", "x=y");
+      record.put("equals", "x");
+      record.put("level", "a");
+      expected = new Record();
+      expected.put("colon", "z");
+      expected.put("equals", "y:z");
+      expected.put("level", "unknown");
+      processAndVerifySuccess(record, expected);
+    }
+  }
+    
   @Test
   public void testTranslateFailure() throws Exception {
     morphline = createMorphline("test-morphlines/translateFailure");    
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.stdio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelSplitReaderTest {
+
+  private ExecutorService executor;
+
+  private static final int NUM_SPLITS = 7;
+  private static final int SPLIT_SIZE = 1000;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testOrdered() throws Exception {
+    List<Integer> results = new ArrayList();
+    assertTrue(new CountingReader(true, results, -1, -1).run());
+    assertEquals(NUM_SPLITS * SPLIT_SIZE, results.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(i, results.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testUnordered() throws Exception {
+    List<Integer> results = new ArrayList();
+    assertTrue(new CountingReader(false, results, -1, -1).run());
+    assertEquals(NUM_SPLITS * SPLIT_SIZE, results.size());
+    Collections.sort(results);
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(i, results.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testStopEarly() throws Exception {
+    for (boolean isOrdered : new boolean[] {true, false}) {
+      List<Integer> results = new ArrayList();
+      assertFalse(new CountingReader(isOrdered, results, 100, -1).run());
+      assertEquals(101, results.size());
+    }
+  }
+
+  @Test
+  public void testException() throws Exception {
+    for (boolean isOrdered : new boolean[] {true, false}) {
+      try {
+        new CountingReader(isOrdered, new ArrayList(), -1, 3 * SPLIT_SIZE + 5).run();
+        fail();
+      } catch (IOException e) {
+        assertEquals("boom", e.getMessage());
+      }
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Split i produces the numbers [i * SPLIT_SIZE, (i + 1) * SPLIT_SIZE) */
+  private final class CountingReader extends ParallelSplitReader<int[]> {
+
+    private final List<Integer> results;
+    private final int stopAfter;
+    private final int failAt;
+
+    public CountingReader(boolean isOrdered, List<Integer> results, int stopAfter, int failAt) {
+      super(executor, NUM_SPLITS, 4, isOrdered);
+      this.results = results;
+      this.stopAfter = stopAfter;
+      this.failAt = failAt;
+    }
+
+    @Override
+    protected int[] newItem() {
+      return new int[1];
+    }
+
+    @Override
+    protected void read(Split split) throws Exception {
+      for (int i = 0; i < SPLIT_SIZE; i++) {
+        int value = split.getIndex() * SPLIT_SIZE + i;
+        if (value == failAt) {
+          throw new IOException("boom");
+        }
+        int[] item = split.acquire();
+        item[0] = value;
+        split.emit();
+      }
+    }
+
+    @Override
+    protected boolean process(int[] item) throws IOException {
+      results.add(item[0]);
+      return results.size() <= stopAfter || stopAfter < 0;
+    }
+
+  }
+
+}
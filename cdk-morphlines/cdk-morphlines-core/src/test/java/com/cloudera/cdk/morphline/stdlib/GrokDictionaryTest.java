@@ -37,4 +37,24 @@ public class GrokDictionaryTest extends Assert {
     assertFalse(pattern.matcher("2007-03-01T13:00:00Z+01:00").matches());
   }
   
+  @Test 
+  public void testCompileMatcherEngine() {
+    String str = "{ dictionaryFiles : [target/test-classes/grok-dictionaries/grok-patterns] }";    
+    GrokDictionaries dicts = new GrokDictionaries(ConfigFactory.parseString(str), new Configs());
+    String syslogExpr = "<%{POSINT:syslog_pri}>%{GREEDYDATA:syslog_message}";
+    String ipExpr = "%{IP:ip}"; // uses lookaround, which re2j doesn't support
+    
+    GrokMatcher matcher = dicts.compileMatcher(syslogExpr, GrokMatcher.Engine.java);
+    assertEquals(GrokMatcher.Engine.java, matcher.getEngine());
+    matcher = dicts.compileMatcher(syslogExpr, GrokMatcher.Engine.re2j);
+    assertEquals(GrokMatcher.Engine.re2j, matcher.getEngine());
+    assertTrue(matcher.reset("<164>foo").matches());
+    
+    matcher = dicts.compileMatcher(ipExpr, GrokMatcher.Engine.java);
+    assertEquals(GrokMatcher.Engine.java, matcher.getEngine());
+    matcher = dicts.compileMatcher(ipExpr, GrokMatcher.Engine.re2j);
+    assertEquals(GrokMatcher.Engine.java, matcher.getEngine()); // fell back
+    assertTrue(matcher.reset("192.168.0.1").matches());
+  }
+  
 }
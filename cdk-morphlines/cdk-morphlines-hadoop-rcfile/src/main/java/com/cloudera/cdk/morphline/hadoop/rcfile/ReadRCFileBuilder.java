@@ -15,8 +15,8 @@
  */
 package com.cloudera.cdk.morphline.hadoop.rcfile;
 
-import java.io.DataInput;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -24,12 +24,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.io.RCFile;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
 import org.apache.hadoop.hive.serde2.columnar.BytesRefArrayWritable;
 import org.apache.hadoop.hive.serde2.columnar.BytesRefWritable;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Writable;
@@ -43,9 +47,11 @@ import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.cloudera.cdk.morphline.base.Fields;
+import com.cloudera.cdk.morphline.base.Notifications;
 import com.cloudera.cdk.morphline.base.Validator;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
-import com.google.common.io.ByteStreams;
+import com.cloudera.cdk.morphline.stdio.ParallelSplitReader;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 /**
@@ -61,6 +67,18 @@ import com.typesafe.config.Config;
  * For a RCFile with 5 rows and 5 columns. Row wise would emit 5 records and
  * Column wise would emit 25 records. De-Compression is handled automatically
  * 
+ * Only the columns listed in the column map are read; the bytes of all other columns are skipped
+ * without being decompressed. Columns with writableClass BytesRefWritable are passed downstream as
+ * is, i.e. they are decompressed only once a downstream command accesses their bytes.
+ * 
+ * If <code>parallelism</code> is greater than one, the read mode is row wise, and the
+ * {@link Fields#ATTACHMENT_NAME} of the record is the absolute path or <code>file:</code> URI of a
+ * local file, the file is read directly, in sync marker aligned splits of <code>splitSize</code>
+ * bytes, on a pool of <code>parallelism</code> threads. Records are emitted on the calling thread,
+ * either in file order (<code>ordered : true</code>, the default) or in the order in which the
+ * splits produce them. In this mode the decoded column Writables are reused once the downstream
+ * commands have returned, so downstream commands that hold on to them beyond that must copy them.
+ * 
  */
 public final class ReadRCFileBuilder implements CommandBuilder {
   
@@ -87,8 +105,15 @@ public final class ReadRCFileBuilder implements CommandBuilder {
     private final RCFileReadMode readMode;
     private final boolean includeMetaData;
     private final Configuration conf = new Configuration();
+    private final boolean hasPassThroughColumns;
+    private final DataInputBuffer inputBuffer = new DataInputBuffer();
+    private final int parallelism;
+    private final long splitSize;
+    private final boolean isOrdered;
+    private ExecutorService executor; // created on first use by parallel mode
 
     private static final Object STREAM_PROTOCOL = "stream://";
+    private static final int NUM_ITEMS_PER_SPLIT = 64;
 
     public ReadRCFile(CommandBuilder builder, Config config, Command parent,
         Command child, MorphlineContext context) {
@@ -100,14 +125,52 @@ public final class ReadRCFileBuilder implements CommandBuilder {
               getConfigs().getString(config, "readMode",
                   RCFileReadMode.row.name()), RCFileReadMode.class);
       
+      ArrayList<Integer> readColumnIDs = new ArrayList();
+      boolean hasPassThroughColumns = false;
       for (Config columnConfig : getConfigs().getConfigList(config, "columns")) {
-        columns.add(new RCFileColumn(columnConfig, conf));
+        RCFileColumn column = new RCFileColumn(columnConfig, conf);
+        columns.add(column);
+        if (!readColumnIDs.contains(column.getInputField())) {
+          readColumnIDs.add(column.getInputField());
+        }
+        hasPassThroughColumns |= column.isPassThrough();
+      }
+      this.hasPassThroughColumns = hasPassThroughColumns;
+      
+      this.parallelism = getConfigs().getInt(config, "parallelism", 1);
+      if (parallelism <= 0) {
+        throw new MorphlineCompilationException("parallelism must be positive: " + parallelism, config);
+      }
+      this.splitSize = getConfigs().getLong(config, "splitSize", 64 * 1024 * 1024);
+      if (splitSize <= 0) {
+        throw new MorphlineCompilationException("splitSize must be positive: " + splitSize, config);
       }
+      this.isOrdered = getConfigs().getBoolean(config, "ordered", true);
+      
+      // tell RCFile.Reader to skip the bytes of all columns that aren't in the column map
+      ColumnProjectionUtils.setReadColumnIDs(conf, readColumnIDs);
       validateArguments();
     }
 
+    @Override
+    protected void doNotify(Record notification) {
+      for (Object event : Notifications.getLifecycleEvents(notification)) {
+        if (event == Notifications.LifecycleEvent.SHUTDOWN && executor != null) {
+          executor.shutdownNow();
+          executor = null;
+        }
+      }
+      super.doNotify(notification);
+    }
+
     @Override
     protected boolean doProcess(Record record, InputStream in) throws IOException {
+      if (parallelism > 1 && readMode == RCFileReadMode.row) {
+        File file = ParallelSplitReader.getLocalFile(record);
+        if (file != null) {
+          return doProcessParallel(record, file);
+        }
+      }
       Path attachmentPath = getAttachmentPath(record);
       SingleStreamFileSystem fs = new SingleStreamFileSystem(in, attachmentPath);
       RCFile.Reader reader = null;
@@ -141,6 +204,98 @@ public final class ReadRCFileBuilder implements CommandBuilder {
       }
     }
 
+    private boolean doProcessParallel(Record record, File file) throws IOException {
+      final Path path = new Path(file.toURI());
+      final long length = file.length();
+      final Record template = record.copy();
+      removeAttachments(template);
+      template.put(Fields.ATTACHMENT_MIME_TYPE, OUTPUT_MEDIA_TYPE);
+      if (includeMetaData) {
+        RCFile.Reader reader = new RCFile.Reader(path.getFileSystem(conf), path, conf);
+        try {
+          SequenceFile.Metadata metadata = reader.getMetadata();
+          if (metadata != null) {
+            template.put(RC_FILE_META_DATA, metadata);
+          }
+        } finally {
+          reader.close();
+        }
+      }
+      
+      int numSplits = (int) Math.max(1, (length + splitSize - 1) / splitSize);
+      return new ParallelSplitReader<Writable[]>(getExecutor(), numSplits, NUM_ITEMS_PER_SPLIT, isOrdered) {
+
+        @Override
+        protected Writable[] newItem() {
+          Writable[] values = new Writable[columns.size()];
+          for (int i = 0; i < values.length; i++) {
+            if (!columns.get(i).isPassThrough()) {
+              values[i] = columns.get(i).newWritable();
+            }
+          }
+          return values;
+        }
+
+        @Override
+        protected void read(Split split) throws Exception {
+          long start = split.getIndex() * splitSize;
+          long end = Math.min(start + splitSize, length);
+          DataInputBuffer buffer = new DataInputBuffer(); // inputBuffer is confined to the calling thread
+          LongWritable rowID = new LongWritable();
+          BytesRefArrayWritable row = new BytesRefArrayWritable();
+          RCFile.Reader splitReader = new RCFile.Reader(path.getFileSystem(conf), path, conf);
+          try {
+            if (start > splitReader.getPosition()) {
+              splitReader.sync(start); // skip to first sync marker of this split
+            }
+            // the row groups after the first sync marker past the end belong to the next split
+            while (splitReader.next(rowID) && splitReader.lastSeenSyncPos() < end) {
+              row.resetValid(columns.size());
+              splitReader.getCurrentRow(row);
+              Writable[] values = split.acquire();
+              for (int i = 0; i < values.length; i++) {
+                RCFileColumn column = columns.get(i);
+                BytesRefWritable columnBytes = row.get(column.getInputField());
+                if (column.isPassThrough()) {
+                  // the row is overwritten by the next call to getCurrentRow(), so emit a copy
+                  int offset = columnBytes.getStart();
+                  values[i] = new BytesRefWritable(
+                      Arrays.copyOfRange(columnBytes.getData(), offset, offset + columnBytes.getLength()));
+                } else {
+                  buffer.reset(columnBytes.getData(), columnBytes.getStart(), columnBytes.getLength());
+                  values[i].readFields(buffer);
+                }
+              }
+              split.emit();
+            }
+          } finally {
+            splitReader.close();
+          }
+        }
+
+        @Override
+        protected boolean process(Writable[] values) {
+          incrementNumRecords();
+          Record outputRecord = template.copy();
+          for (int i = 0; i < values.length; i++) {
+            outputRecord.put(columns.get(i).getOutputField(), values[i]);
+          }
+          
+          // pass record to next command in chain:
+          return getChild().process(outputRecord);
+        }
+        
+      }.run();
+    }
+    
+    private ExecutorService getExecutor() {
+      if (executor == null) {
+        executor = Executors.newFixedThreadPool(parallelism, 
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("morphline-rc-file-reader-%d").build());
+      }
+      return executor;
+    }
+
     private Path getAttachmentPath(Record record) {
       // We have more meaningful RCFile error messages if we have an attachment name
       String attachmentName = (String) record.getFirstValue(Fields.ATTACHMENT_NAME);
@@ -154,6 +309,7 @@ public final class ReadRCFileBuilder implements CommandBuilder {
         throws IOException {
       
       LongWritable rowID = new LongWritable();      
+      BytesRefArrayWritable rowBatchBytes = new BytesRefArrayWritable();
 
       while (true) {
         boolean next;
@@ -170,7 +326,10 @@ public final class ReadRCFileBuilder implements CommandBuilder {
 
         incrementNumRecords();
         Record outputRecord = record.copy();        
-        BytesRefArrayWritable rowBatchBytes = new BytesRefArrayWritable();
+        if (hasPassThroughColumns) { 
+          // the column refs are handed downstream as is, so must not be overwritten by the next row
+          rowBatchBytes = new BytesRefArrayWritable();
+        }
         rowBatchBytes.resetValid(columns.size());
         reader.getCurrentRow(rowBatchBytes);
 
@@ -191,6 +350,8 @@ public final class ReadRCFileBuilder implements CommandBuilder {
     private boolean readColumnWise(RCFile.Reader reader, Record record) throws IOException {
       
       for (RCFileColumn rcColumn : columns) {
+        // not shared across columns, as the refs of a pass through column are handed downstream as is
+        BytesRefArrayWritable rowBatchBytes = null;
         reader.sync(0);
         reader.resetBuffer();
         while (true) {
@@ -206,7 +367,10 @@ public final class ReadRCFileBuilder implements CommandBuilder {
             break;
           }
 
-          BytesRefArrayWritable rowBatchBytes = reader.getColumn(rcColumn.getInputField(), null);
+          if (rcColumn.isPassThrough()) {
+            rowBatchBytes = null; // the column refs are handed downstream as is
+          }
+          rowBatchBytes = reader.getColumn(rcColumn.getInputField(), rowBatchBytes);
           for (int rowIndex = 0; rowIndex < rowBatchBytes.size(); rowIndex++) {
             incrementNumRecords();
             Record outputRecord = record.copy();
@@ -224,17 +388,14 @@ public final class ReadRCFileBuilder implements CommandBuilder {
     }
 
     private Writable updateColumnValue(RCFileColumn column, BytesRefWritable bytesRef) throws IOException {
-      Writable newColumnValue = column.newWritable();
       // Small optimization to bypass DataInput read if the column writable is
-      // BytesRefWritable
-      if (newColumnValue.getClass() == BytesRefWritable.class) {
-        newColumnValue = bytesRef;
-      } else {
-        byte[] currentRowBytes = Arrays.copyOfRange(bytesRef.getData(),
-            bytesRef.getStart(), bytesRef.getStart() + bytesRef.getLength());
-        DataInput dataInput = ByteStreams.newDataInput(currentRowBytes);
-        newColumnValue.readFields(dataInput);
+      // BytesRefWritable; this also defers decompression until the bytes are accessed
+      if (column.isPassThrough()) {
+        return bytesRef;
       }
+      Writable newColumnValue = column.newWritable();
+      inputBuffer.reset(bytesRef.getData(), bytesRef.getStart(), bytesRef.getLength()); // no copy
+      newColumnValue.readFields(inputBuffer);
       return newColumnValue;
     }
 
@@ -296,6 +457,11 @@ public final class ReadRCFileBuilder implements CommandBuilder {
         return outputField;
       }
 
+      /** Returns true if the column bytes are emitted without decoding them into a Writable */
+      public boolean isPassThrough() {
+        return BytesRefWritable.class.equals(writableClass);
+      }
+
       public Writable newWritable() {
         return ReflectionUtils.newInstance(writableClass, conf);
       }
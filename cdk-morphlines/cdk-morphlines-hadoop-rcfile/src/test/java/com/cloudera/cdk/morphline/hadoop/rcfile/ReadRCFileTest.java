@@ -15,6 +15,8 @@
  */
 package com.cloudera.cdk.morphline.hadoop.rcfile;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -28,6 +30,10 @@ import org.apache.hadoop.hive.serde2.columnar.BytesRefArrayWritable;
 import org.apache.hadoop.hive.serde2.columnar.BytesRefWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -35,6 +41,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.cloudera.cdk.morphline.api.AbstractMorphlineTest;
+import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.google.common.collect.Lists;
@@ -111,20 +118,97 @@ public class ReadRCFileTest extends AbstractMorphlineTest {
         NUM_RECORDS, false));
   }
 
+  @Test
+  public void testRCFileRowWiseProjection() throws Exception {
+    // the first column can't be decompressed, so reading succeeds only if the reader skips it
+    String rcFileName = "testRCFileRowWiseProjection.rc";
+    Path inputFile = dfs.makeQualified(new Path(testDirectory, rcFileName));
+    PoisonCodec codec = new PoisonCodec();
+    codec.setConf(new Configuration());
+    createRCFile(dfs, inputFile, NUM_RECORDS, NUM_COLUMNS, -1, codec, 0);
+    
+    morphline = createMorphline("test-morphlines/rcFileMorphlineRowProjection");
+    Record input = new Record();
+    input.put(Fields.ATTACHMENT_NAME, inputFile.toString());
+    input.put(Fields.ATTACHMENT_BODY, readPath(inputFile));
+    startSession();
+    assertEquals(1, collector.getNumStartEvents());
+    assertTrue(morphline.process(input));
+    assertEquals(NUM_RECORDS, collector.getRecords().size());
+    for (int row = 0; row < NUM_RECORDS; row++) {
+      Record actual = collector.getRecords().get(row);
+      assertEquals(new Text("ROW-NUM:" + row + ", COLUMN-NUM:1"), actual.getFirstValue("field2"));
+      assertEquals(new Text("ROW-NUM:" + row + ", COLUMN-NUM:3"), actual.getFirstValue("field4"));
+      assertEquals(0, actual.get("field1").size()); // not projected
+    }
+    
+    // reading all columns decompresses the poisoned one
+    morphline = createMorphline("test-morphlines/rcFileMorphlineRow");
+    input = new Record();
+    input.put(Fields.ATTACHMENT_NAME, inputFile.toString());
+    input.put(Fields.ATTACHMENT_BODY, readPath(inputFile));
+    startSession();
+    try {
+      morphline.process(input);
+      fail();
+    } catch (MorphlineRuntimeException e) {
+      ; // expected
+    }
+  }
+
+  @Test
+  public void testRCFileRowWiseParallel() throws Exception {
+    morphline = createMorphline("test-morphlines/rcFileMorphlineRowParallel");
+    int numRecords = 5000;
+    FileSystem localFs = FileSystem.getLocal(new Configuration());
+    File rcFile = new File(testDirectory.toString(), "testRCFileRowWiseParallel.rc");
+    createRCFile(localFs, new Path(rcFile.getAbsolutePath()), numRecords, NUM_COLUMNS, 100);
+    assertTrue(rcFile.length() > 10 * 4096);
+    Record input = new Record();
+    input.put(Fields.ATTACHMENT_NAME, rcFile.getAbsolutePath());
+    input.put(Fields.ATTACHMENT_BODY, new FileInputStream(rcFile));
+    startSession();
+    assertEquals(1, collector.getNumStartEvents());
+    assertTrue(morphline.process(input));
+    assertEquals(numRecords, collector.getRecords().size());
+    for (int row = 0; row < numRecords; row++) {
+      Record actual = collector.getRecords().get(row);
+      assertEquals("ROW-NUM:" + row + ", COLUMN-NUM:1", actual.getFirstValue("field2"));
+      assertEquals("ROW-NUM:" + row + ", COLUMN-NUM:3", actual.getFirstValue("field4"));
+    }
+  }
+
   private void createRCFile(final String fileName, final int numRecords,
       final int maxColumns) throws IOException {
+    Path inputFile = dfs.makeQualified(new Path(testDirectory, fileName));
+    createRCFile(dfs, inputFile, numRecords, maxColumns, -1);
+  }
+
+  private void createRCFile(final FileSystem fs, final Path inputFile, final int numRecords,
+      final int maxColumns, final int recordInterval) throws IOException {
+    createRCFile(fs, inputFile, numRecords, maxColumns, recordInterval, null, -1);
+  }
+
+  private void createRCFile(final FileSystem fs, final Path inputFile, final int numRecords,
+      final int maxColumns, final int recordInterval, final CompressionCodec codec,
+      final int poisonedColumn) throws IOException {
     // Write the sequence file
     SequenceFile.Metadata metadata = getMetadataForRCFile();
     Configuration conf = new Configuration();
     conf.set(RCFile.COLUMN_NUMBER_CONF_STR, String.valueOf(maxColumns));
-    Path inputFile = dfs.makeQualified(new Path(testDirectory, fileName));
-    RCFile.Writer rcFileWriter = new RCFile.Writer(dfs, conf, inputFile, null,
-        metadata, null);
+    if (recordInterval > 0) {
+      conf.setInt(RCFile.RECORD_INTERVAL_CONF_STR, recordInterval); // rows per row group
+    }
+    RCFile.Writer rcFileWriter = new RCFile.Writer(fs, conf, inputFile, null,
+        metadata, codec);
     for (int row = 0; row < numRecords; row++) {
       BytesRefArrayWritable dataWrite = new BytesRefArrayWritable(maxColumns);
       dataWrite.resetValid(maxColumns);
       for (int column = 0; column < maxColumns; column++) {
         Text sampleText = new Text("ROW-NUM:" + row + ", COLUMN-NUM:" + column);
+        if (column == poisonedColumn) {
+          sampleText = new Text(PoisonCodec.POISON);
+        }
         ByteArrayDataOutput dataOutput = ByteStreams.newDataOutput();
         sampleText.write(dataOutput);
         dataWrite.set(column, new BytesRefWritable(dataOutput.toByteArray()));
@@ -219,4 +303,72 @@ public class ReadRCFileTest extends AbstractMorphlineTest {
     return actual.get(fieldName).equals(expected.get(fieldName));
   }
 
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Zlib codec whose decompressed data must not contain {@link #POISON} */
+  public static final class PoisonCodec extends DefaultCodec {
+    
+    public static final String POISON = "POISON";
+    
+    @Override
+    public CompressionInputStream createInputStream(InputStream in, Decompressor decompressor) throws IOException {
+      return new PoisonDetectingInputStream(super.createInputStream(in, decompressor));
+    }
+    
+    @Override
+    public CompressionInputStream createInputStream(InputStream in) throws IOException {
+      return new PoisonDetectingInputStream(super.createInputStream(in));
+    }
+  }
+  
+  
+  private static final class PoisonDetectingInputStream extends CompressionInputStream {
+    
+    private final CompressionInputStream delegate;
+    private int numMatched = 0; // length of the prefix of POISON matched so far
+    
+    public PoisonDetectingInputStream(CompressionInputStream delegate) throws IOException {
+      super(delegate);
+      this.delegate = delegate;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      int b = delegate.read();
+      if (b >= 0) {
+        check((byte) b);
+      }
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int n = delegate.read(buf, off, len);
+      for (int i = 0; i < n; i++) {
+        check(buf[off + i]);
+      }
+      return n;
+    }
+    
+    private void check(byte b) throws IOException {
+      String poison = PoisonCodec.POISON;
+      if (b == poison.charAt(numMatched)) {
+        numMatched++;
+      } else {
+        numMatched = (b == poison.charAt(0) ? 1 : 0);
+      }
+      if (numMatched == poison.length()) {
+        throw new IOException("Decompressed a column that should have been skipped");
+      }
+    }
+    
+    @Override
+    public void resetState() throws IOException {
+      delegate.resetState();
+      numMatched = 0;
+    }
+  }
+
 }
@@ -16,14 +16,18 @@
 package com.cloudera.cdk.morphline.hadoop.sequencefile;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.avro.file.SeekableInput;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.SequenceFile;
@@ -35,13 +39,25 @@ import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.base.Fields;
+import com.cloudera.cdk.morphline.base.Notifications;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
+import com.cloudera.cdk.morphline.stdio.ParallelSplitReader;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 /**
  * Command that emits one record per sequence file entry in the input stream of the first attachment.
+ * 
+ * If <code>parallelism</code> is greater than one and the {@link Fields#ATTACHMENT_NAME} of the
+ * record is the absolute path or <code>file:</code> URI of a local file, the file is instead read
+ * directly, in sync marker aligned splits of <code>splitSize</code> bytes, on a pool of
+ * <code>parallelism</code> threads. Records are emitted on the calling thread, either in file order
+ * (<code>ordered : true</code>, the default) or in the order in which the splits produce them. In
+ * this mode the key and value Writables are reused once the downstream commands have returned, so
+ * downstream commands that hold on to them beyond that must copy them.
  */
 public final class ReadSequenceFileBuilder implements CommandBuilder {
 
@@ -70,17 +86,49 @@ public final class ReadSequenceFileBuilder implements CommandBuilder {
     private final String keyField;
     private final String valueField;
     private final Configuration conf = new Configuration();
+    private final int parallelism;
+    private final long splitSize;
+    private final boolean isOrdered;
+    private ExecutorService executor; // created on first use by parallel mode
+    
+    private static final int NUM_ITEMS_PER_SPLIT = 64;
   
     public ReadSequenceFile(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);
       this.includeMetaData = getConfigs().getBoolean(config, "includeMetaData", false);
       this.keyField = getConfigs().getString(config, CONFIG_KEY_FIELD, Fields.ATTACHMENT_NAME);
       this.valueField = getConfigs().getString(config, CONFIG_VALUE_FIELD, Fields.ATTACHMENT_BODY);
+      this.parallelism = getConfigs().getInt(config, "parallelism", 1);
+      if (parallelism <= 0) {
+        throw new MorphlineCompilationException("parallelism must be positive: " + parallelism, config);
+      }
+      this.splitSize = getConfigs().getLong(config, "splitSize", 64 * 1024 * 1024);
+      if (splitSize <= 0) {
+        throw new MorphlineCompilationException("splitSize must be positive: " + splitSize, config);
+      }
+      this.isOrdered = getConfigs().getBoolean(config, "ordered", true);
       validateArguments();
     }
   
+    @Override
+    protected void doNotify(Record notification) {
+      for (Object event : Notifications.getLifecycleEvents(notification)) {
+        if (event == Notifications.LifecycleEvent.SHUTDOWN && executor != null) {
+          executor.shutdownNow();
+          executor = null;
+        }
+      }
+      super.doNotify(notification);
+    }
+  
     @Override
     protected boolean doProcess(Record inputRecord, InputStream in) throws IOException {
+      if (parallelism > 1) {
+        File file = ParallelSplitReader.getLocalFile(inputRecord);
+        if (file != null) {
+          return doProcessParallel(inputRecord, file);
+        }
+      }
       FSDataInputStream fsInputStream = new FSDataInputStream(new ForwardOnlySeekable(in));
       Option opt = SequenceFile.Reader.stream(fsInputStream);
       SequenceFile.Metadata sequenceFileMetaData = null;
@@ -128,6 +176,86 @@ public final class ReadSequenceFileBuilder implements CommandBuilder {
       }
       return true;
     }
+    
+    private boolean doProcessParallel(Record inputRecord, File file) throws IOException {
+      final Path path = new Path(file.toURI());
+      final long length = file.length();
+      final Class keyClass;
+      final Class valueClass;
+      SequenceFile.Metadata sequenceFileMetaData = null;
+      SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+      try {
+        keyClass = reader.getKeyClass();
+        valueClass = reader.getValueClass();
+        if (includeMetaData) {
+          sequenceFileMetaData = reader.getMetadata();
+        }
+      } finally {
+        Closeables.closeQuietly(reader);
+      }
+      
+      final Record template = inputRecord.copy();
+      removeAttachments(template);
+      template.put(Fields.ATTACHMENT_MIME_TYPE, OUTPUT_MEDIA_TYPE);
+      if (includeMetaData && sequenceFileMetaData != null) {
+        template.put(SEQUENCE_FILE_META_DATA, sequenceFileMetaData);
+      }
+      
+      int numSplits = (int) Math.max(1, (length + splitSize - 1) / splitSize);
+      return new ParallelSplitReader<Writable[]>(getExecutor(), numSplits, NUM_ITEMS_PER_SPLIT, isOrdered) {
+
+        @Override
+        protected Writable[] newItem() {
+          return new Writable[] {
+              (Writable)ReflectionUtils.newInstance(keyClass, conf), 
+              (Writable)ReflectionUtils.newInstance(valueClass, conf) };
+        }
+
+        @Override
+        protected void read(Split split) throws Exception {
+          long start = split.getIndex() * splitSize;
+          long end = Math.min(start + splitSize, length);
+          SequenceFile.Reader splitReader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+          try {
+            if (start > splitReader.getPosition()) {
+              splitReader.sync(start); // skip to first sync marker of this split
+            }
+            while (true) {
+              Writable[] pair = split.acquire();
+              long pos = splitReader.getPosition();
+              // the entries after the first sync marker past the end belong to the next split
+              if (!splitReader.next(pair[0], pair[1]) || (pos >= end && splitReader.syncSeen())) {
+                split.release();
+                break;
+              }
+              split.emit();
+            }
+          } finally {
+            Closeables.closeQuietly(splitReader);
+          }
+        }
+
+        @Override
+        protected boolean process(Writable[] pair) {
+          incrementNumRecords();
+          Record outputRecord = template.copy();
+          outputRecord.put(keyField, pair[0]);
+          outputRecord.put(valueField, pair[1]);
+          
+          // pass record to next command in chain:
+          return getChild().process(outputRecord);
+        }
+        
+      }.run();
+    }
+    
+    private ExecutorService getExecutor() {
+      if (executor == null) {
+        executor = Executors.newFixedThreadPool(parallelism, 
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("morphline-sequence-file-reader-%d").build());
+      }
+      return executor;
+    }
   }
 
   
@@ -111,6 +111,35 @@ public class ReadSequenceFileTest extends AbstractMorphlineTest {
     assertTrue(areFieldsEqual(expected, collector.getRecords()));
   }
 
+  /**
+   * Test that a local SequenceFile that spans many splits is read in parallel, emitting each entry
+   * exactly once and in file order.
+   */
+  @Test
+  public void testSequenceFileContentParallel() throws Exception {
+    morphline = createMorphline("test-morphlines/sequenceFileMorphlineParallel");
+    String path = RESOURCES_DIR;
+    File sequenceFile = new File(path, "testSequenceFileContentParallel.seq");
+    int numRecords = 5000;
+    createTextSequenceFile(sequenceFile, numRecords);
+    assertTrue(sequenceFile.length() > 10 * 4096);
+    InputStream in = new FileInputStream(sequenceFile.getAbsolutePath());
+    Record record = new Record();
+    record.put(Fields.ATTACHMENT_BODY, in);
+    record.put(Fields.ATTACHMENT_NAME, sequenceFile.getAbsolutePath());
+    startSession();
+
+    assertEquals(1, collector.getNumStartEvents());
+    assertTrue(morphline.process(record));
+    assertEquals(numRecords, collector.getRecords().size());
+    for (int i = 0; i < numRecords; i++) {
+      Record actual = collector.getRecords().get(i);
+      assertEquals("key" + i, actual.getFirstValue("key"));
+      assertEquals("value" + i, actual.getFirstValue("value"));
+    }
+    in.close();
+  }
+
   /**
    * return a mapping of expected keys -> records
    */
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.Configs;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+
+/**
+ * Compiles a set of JSON path expressions into a single trie, such that all paths are evaluated in
+ * one pass over a JSON document, regardless of the number of paths.
+ *
+ * The trie can be evaluated against an already parsed {@link JsonNode} tree, or against the token
+ * stream of a {@link JsonParser}, in which case only the values that are actually selected by a
+ * path are materialized as a tree, and all other subtrees are skipped without allocating objects
+ * for them.
+ */
+final class JsonPathMatcher {
+
+  private final PathNode root = new PathNode(null);
+  private final boolean flatten;
+
+  private static final String ARRAY_TOKEN = "[]";
+
+  public JsonPathMatcher(Config paths, boolean flatten, Config config) {
+    this.flatten = flatten;
+    for (Map.Entry<String, Object> entry : new Configs().getEntrySet(paths)) {
+      String fieldName = entry.getKey();
+      String path = entry.getValue().toString().trim();
+      if (path.contains("//")) {
+        throw new MorphlineCompilationException("No support for descendant axis available yet", config);
+      }
+      if (path.startsWith("/")) {
+        path = path.substring(1);
+      }
+      if (path.endsWith("/")) {
+        path = path.substring(0, path.length() - 1);
+      }
+      path = path.trim();
+      PathNode node = root;
+      for (String step : path.split("/")) {
+        step = step.trim();
+        if (step.length() > ARRAY_TOKEN.length() && step.endsWith(ARRAY_TOKEN)) {
+          step = step.substring(0,  step.length() - ARRAY_TOKEN.length());
+          node = node.getOrCreateChild(step);
+          node = node.getOrCreateChild(ARRAY_TOKEN);
+        } else {
+          node = node.getOrCreateChild(step);
+        }
+      }
+      node.fieldNames.add(fieldName);
+    }
+  }
+
+  /** Adds the values selected by the paths within the given JSON tree to the given record */
+  public void extract(JsonNode datum, Record record) {
+    extractChildren(root, datum, record);
+  }
+
+  /**
+   * Adds the values selected by the paths within the JSON value that starts at the current token of
+   * the given parser to the given record. On return the parser is positioned at the last token of
+   * that value.
+   */
+  public void extract(JsonParser parser, ObjectMapper mapper, Record record) throws IOException {
+    extractChildren(root, parser, mapper, record);
+  }
+
+  /** Applies the child steps of the given trie node to the given tree */
+  private void extractChildren(PathNode node, JsonNode datum, Record record) {
+    if (datum.isObject()) {
+      for (PathNode child : node.children.values()) {
+        JsonNode value = datum.get(child.step);
+        if (value != null) {
+          match(child, value, record);
+        }
+      }
+    } else if (datum.isArray() && node.arrayChild != null) {
+      match(node.arrayChild, datum, record);
+    }
+  }
+
+  /** Called if the given trie node selects the given tree */
+  private void match(PathNode node, JsonNode value, Record record) {
+    for (String fieldName : node.fieldNames) {
+      resolve(value, record, fieldName);
+    }
+    if (node.step == ARRAY_TOKEN) {
+      if (node.hasChildren()) {
+        Iterator<JsonNode> iter = value.elements();
+        while (iter.hasNext()) {
+          extractChildren(node, iter.next(), record);
+        }
+      }
+    } else {
+      extractChildren(node, value, record);
+    }
+  }
+
+  /** Applies the child steps of the given trie node to the value at the current parser token */
+  private void extractChildren(PathNode node, JsonParser parser, ObjectMapper mapper, Record record)
+      throws IOException {
+
+    JsonToken token = parser.getCurrentToken();
+    if (token == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        PathNode child = node.children.get(parser.getCurrentName());
+        parser.nextToken();
+        if (child == null) {
+          parser.skipChildren();
+        } else if (child.fieldNames.size() > 0) {
+          match(child, (JsonNode) mapper.readTree(parser), record);
+        } else if (child.hasChildren()) {
+          extractChildren(child, parser, mapper, record);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else if (token == JsonToken.START_ARRAY) {
+      PathNode child = node.arrayChild;
+      if (child == null) {
+        parser.skipChildren();
+      } else if (child.fieldNames.size() > 0) {
+        match(child, (JsonNode) mapper.readTree(parser), record);
+      } else {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          extractChildren(child, parser, mapper, record);
+        }
+      }
+    }
+  }
+
+  private void resolve(JsonNode datum, Record record, String fieldName) {
+    if (datum == null) {
+      return;
+    }
+
+    if (flatten) {
+      flatten(datum, record.get(fieldName));
+      return;
+    }
+
+    if (datum.isObject()) {
+      record.put(fieldName, datum);
+    } else if (datum.isArray()) {
+      record.put(fieldName, datum);
+    } else if (datum.isTextual()) {
+      record.put(fieldName, datum.asText());
+    } else if (datum.isBoolean()) {
+      record.put(fieldName, datum.asBoolean());
+    } else if (datum.isInt()) {
+      record.put(fieldName, datum.asInt());
+    } else if (datum.isLong()) {
+      record.put(fieldName, datum.asLong());
+    } else if (datum.isShort()) {
+      record.put(fieldName, datum.shortValue());
+    } else if (datum.isDouble()) {
+      record.put(fieldName, datum.asDouble());
+    } else if (datum.isFloat()) {
+      record.put(fieldName, datum.floatValue());
+    } else if (datum.isBigInteger()) {
+      record.put(fieldName, datum.bigIntegerValue());
+    } else if (datum.isBigDecimal()) {
+      record.put(fieldName, datum.decimalValue());
+    } else if (datum.isNull()) {
+      ; // ignore
+    } else {
+      record.put(fieldName, datum.toString());
+    }
+  }
+
+  private void flatten(JsonNode datum, List list) {
+    if (datum == null) {
+      return;
+    }
+
+    if (datum.isObject()) {
+      for (JsonNode child : datum) {
+        flatten(child, list);
+      }
+    } else if (datum.isArray()) {
+      Iterator<JsonNode> iter = datum.elements();
+      while (iter.hasNext()) {
+        flatten(iter.next(), list);
+      }
+    } else if (datum.isTextual()) {
+      list.add(datum.asText());
+    } else if (datum.isBoolean()) {
+      list.add(datum.asBoolean());
+    } else if (datum.isInt()) {
+      list.add(datum.asInt());
+    } else if (datum.isLong()) {
+      list.add(datum.asLong());
+    } else if (datum.isShort()) {
+      list.add(datum.shortValue());
+    } else if (datum.isDouble()) {
+      list.add(datum.asDouble());
+    } else if (datum.isFloat()) {
+      list.add(datum.floatValue());
+    } else if (datum.isBigInteger()) {
+      list.add(datum.bigIntegerValue());
+    } else if (datum.isBigDecimal()) {
+      list.add(datum.decimalValue());
+    } else if (datum.isNull()) {
+      ; // ignore
+    } else {
+      list.add(datum.toString());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return root.toString();
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * A step of one or more paths; a JSON value is selected by this node if it is reached from a
+   * value selected by the parent node via this step.
+   */
+  private static final class PathNode {
+
+    private final String step; // the interned ARRAY_TOKEN for array steps
+    private final Map<String, PathNode> children = new LinkedHashMap(); // object field steps
+    private PathNode arrayChild; // the array step, if any
+    private final List<String> fieldNames = new ArrayList(); // output fields of paths ending here
+
+    public PathNode(String step) {
+      this.step = step;
+    }
+
+    public PathNode getOrCreateChild(String childStep) {
+      if (ARRAY_TOKEN.equals(childStep)) {
+        if (arrayChild == null) {
+          arrayChild = new PathNode(ARRAY_TOKEN);
+        }
+        return arrayChild;
+      }
+      PathNode child = children.get(childStep);
+      if (child == null) {
+        child = new PathNode(childStep);
+        children.put(childStep, child);
+      }
+      return child;
+    }
+
+    public boolean hasChildren() {
+      return arrayChild != null || children.size() > 0;
+    }
+
+    @Override
+    public String toString() {
+      return "{step:" + step + ", fieldNames:" + fieldNames + ", children:" + children.values()
+          + (arrayChild == null ? "" : ", arrayChild:" + arrayChild) + "}";
+    }
+
+  }
+
+}
@@ -28,6 +28,7 @@ import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -38,6 +39,14 @@ import com.typesafe.config.Config;
  * Command that parses an InputStream that contains JSON data; for each JSON object in the stream,
  * the command emits a morphline record containing the object as an attachment in
  * {@link Fields#ATTACHMENT_BODY}.
+ * 
+ * Optionally, the command can instead evaluate a set of JSON path expressions in a single streaming
+ * pass over each JSON object, using the same <code>paths</code> and <code>flatten</code> parameters
+ * and the same semantics as the <code>extractJsonPaths</code> command. In this mode the command
+ * doesn't materialize the full JSON object as a tree; only the values that match a path are
+ * materialized, and added to the output record, and the output record has no attachment. This is
+ * much more efficient if only a small part of each JSON object is of interest. Concatenated as well
+ * as newline delimited JSON objects are supported in both modes.
  */
 public final class ReadJsonBuilder implements CommandBuilder {
 
@@ -61,6 +70,8 @@ public final class ReadJsonBuilder implements CommandBuilder {
   private static final class ReadJson extends AbstractParser {
 
     private final ObjectReader reader;
+    private final ObjectMapper objectMapper;
+    private final JsonPathMatcher matcher; // null unless in streaming mode
 
     public ReadJson(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);
@@ -76,7 +87,6 @@ public final class ReadJsonBuilder implements CommandBuilder {
       }
       
       String objectMapperClassName = getConfigs().getString(config, "objectMapper", null);
-      ObjectMapper objectMapper = null;
       if (objectMapperClassName != null) {
         try {
           objectMapper = (ObjectMapper) Class.forName(objectMapperClassName).newInstance();
@@ -96,11 +106,18 @@ public final class ReadJsonBuilder implements CommandBuilder {
       }
       
       reader = objectMapper.reader(outputClass);
+      
+      Config paths = getConfigs().getConfig(config, "paths", null);
+      boolean flatten = getConfigs().getBoolean(config, "flatten", true);
+      matcher = paths == null ? null : new JsonPathMatcher(paths, flatten, config);
       validateArguments();
     }
 
     @Override
     protected boolean doProcess(Record inputRecord, InputStream in) throws IOException {
+      if (matcher != null) {
+        return doProcessStreaming(inputRecord, in);
+      }
       MappingIterator iter = reader.readValues(in);
       try {
         while (iter.hasNextValue()) {
@@ -123,5 +140,25 @@ public final class ReadJsonBuilder implements CommandBuilder {
         iter.close();
       }
     }
+
+    private boolean doProcessStreaming(Record inputRecord, InputStream in) throws IOException {
+      JsonParser parser = objectMapper.getFactory().createParser(in);
+      try {
+        while (parser.nextToken() != null) { // for each JSON object in the stream
+          incrementNumRecords();
+          Record outputRecord = inputRecord.copy();
+          removeAttachments(outputRecord);
+          matcher.extract(parser, objectMapper, outputRecord);
+          
+          // pass record to next command in chain:
+          if (!getChild().process(outputRecord)) {
+            return false;
+          }
+        }
+        return true;
+      } finally {
+        parser.close();
+      }
+    }
   }
 }
@@ -218,6 +218,68 @@ public class JsonMorphlineTest extends AbstractMorphlineTest {
     in.close();
   }
 
+  @Test
+  public void testReadJsonPaths() throws Exception {
+    // streaming mode must produce the same results as readJson followed by extractJsonPaths
+    for (String doc : new String[] {"arrays.json", "complex.json"}) {
+      File file = new File(RESOURCES_DIR + "/test-documents/" + doc);
+      morphline = createMorphline("test-morphlines/extractJsonPaths");
+      collector.reset();
+      InputStream in = new FileInputStream(file);
+      Record record = new Record();
+      record.put(Fields.ATTACHMENT_BODY, in);
+      assertTrue(morphline.process(record));
+      in.close();
+      assertEquals(1, collector.getRecords().size());
+      Record expected = collector.getFirstRecord();
+      expected.removeAll(Fields.ATTACHMENT_BODY);
+      expected.removeAll(Fields.ATTACHMENT_MIME_TYPE);
+      
+      morphline = createMorphline("test-morphlines/readJsonPaths");
+      for (int j = 0; j < 3; j++) { // also test reuse of compiled paths
+        collector.reset();
+        in = new FileInputStream(file);
+        record = new Record();
+        record.put(Fields.ATTACHMENT_BODY, in);
+        assertTrue(morphline.process(record));
+        in.close();
+        assertEquals(1, collector.getRecords().size());
+        assertEquals(expected, collector.getFirstRecord());
+      }
+    }
+  }
+  
+  @Test
+  public void testReadJsonPathsStream() throws Exception {
+    morphline = createMorphline("test-morphlines/readJsonPaths");
+    InputStream in = new FileInputStream(new File(RESOURCES_DIR + "/test-documents/stream.json"));
+    Record record = new Record();
+    record.put(Fields.ATTACHMENT_BODY, in);
+    
+    startSession();
+    assertEquals(1, collector.getNumStartEvents());
+    assertTrue(morphline.process(record));
+    in.close();
+    
+    assertEquals(2, collector.getRecords().size());
+    Record expected = new Record();
+    expected.put("/firstObject", "foo");
+    assertEquals(expected, collector.getRecords().get(0));
+    expected = new Record();
+    expected.put("/secondObject", "bar");
+    assertEquals(expected, collector.getRecords().get(1));
+    
+    // newline delimited JSON objects without any whitespace between them
+    collector.reset();
+    record = new Record();
+    record.put(Fields.ATTACHMENT_BODY, "{\"docId\":1}\n{\"docId\":2}{\"docId\":3}".getBytes("UTF-8"));
+    assertTrue(morphline.process(record));
+    assertEquals(3, collector.getRecords().size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Arrays.asList(i + 1), collector.getRecords().get(i).get("/docId"));
+    }
+  }
+
   @Test
   @Ignore
   public void benchmarkJson() throws Exception {
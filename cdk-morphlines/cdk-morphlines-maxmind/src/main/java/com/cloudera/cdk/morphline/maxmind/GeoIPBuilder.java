@@ -20,6 +20,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
@@ -30,15 +36,25 @@ import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.base.Notifications;
+import com.cloudera.cdk.morphline.base.Validator;
+import com.codahale.metrics.Meter;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.net.InetAddresses;
 import com.maxmind.db.Reader;
+import com.maxmind.db.Reader.FileMode;
 import com.typesafe.config.Config;
 
 /**
  * Command that returns Geolocation information for a given IP address, using an efficient in-memory
  * Maxmind database lookup.
+ * 
+ * Database readers are shared by all geoIP commands of the JVM that use the same database file and
+ * file mode. Lookup results are cached per command, keyed by IP address. Each record gets its own
+ * copy of the cached tree, so downstream commands may modify it.
  */
 public final class GeoIPBuilder implements CommandBuilder {
 
@@ -59,8 +75,12 @@ public final class GeoIPBuilder implements CommandBuilder {
   private static final class GeoIP extends AbstractCommand {
 
     private final String inputFieldName;
-    private final File databaseFile;
-    private final Reader databaseReader;
+    private final SharedReader databaseReader;
+    private final List<String> projection;
+    private final Cache<InetAddress, JsonNode> cache;
+    private final Meter numCacheHits;
+    private final Meter numCacheMisses;
+    private boolean isClosed = false;
     
     
     public GeoIP(CommandBuilder builder, Config config, Command parent, 
@@ -68,12 +88,22 @@ public final class GeoIPBuilder implements CommandBuilder {
       
       super(builder, config, parent, child, context);      
       this.inputFieldName = getConfigs().getString(config, "inputField");
-      this.databaseFile = new File(getConfigs().getString(config, "database", "GeoLite2-City.mmdb"));
+      File databaseFile = new File(getConfigs().getString(config, "database", "GeoLite2-City.mmdb"));
+      FileMode fileMode = new Validator<DatabaseFileMode>().validateEnum(
+          config,
+          getConfigs().getString(config, "fileMode", DatabaseFileMode.memoryMapped.toString()),
+          DatabaseFileMode.class).getFileMode();
       try {
-        this.databaseReader = new Reader(databaseFile);
+        this.databaseReader = SharedReader.acquire(databaseFile, fileMode);
       } catch (IOException e) {
         throw new MorphlineCompilationException("Cannot read Maxmind database: " + databaseFile, config, e);
       }
+      List<String> paths = getConfigs().getStringList(config, "projection", Collections.<String>emptyList());
+      this.projection = paths.size() == 0 ? null : paths;
+      int cacheCapacity = getConfigs().getInt(config, "cacheCapacity", 1000);
+      this.cache = cacheCapacity <= 0 ? null : CacheBuilder.newBuilder().maximumSize(cacheCapacity).<InetAddress, JsonNode>build();
+      this.numCacheHits = getMeter("numCacheHits");
+      this.numCacheMisses = getMeter("numCacheMisses");
       validateArguments();
     }
 
@@ -92,24 +122,18 @@ public final class GeoIPBuilder implements CommandBuilder {
           }   
         }
         
-        JsonNode json;
-        try {
-          json = databaseReader.get(addr);
-        } catch (IOException e) {
-          throw new MorphlineRuntimeException("Cannot perform GeoIP lookup for IP: " + addr, e);
-        }
-        
-        ObjectNode location = (ObjectNode) json.get("location");
-        if (location != null) {
-          JsonNode jlatitude = location.get("latitude");
-          JsonNode jlongitude = location.get("longitude");
-          if (jlatitude != null && jlongitude != null) {
-            String latitude = jlatitude.toString();
-            String longitude = jlongitude.toString();
-            location.put("latitude_longitude", latitude + "," + longitude);
-            location.put("longitude_latitude", longitude + "," + latitude);
+        JsonNode json = cache == null ? null : cache.getIfPresent(addr);
+        if (json == null) { // cache miss
+          numCacheMisses.mark();
+          json = lookup(addr);
+          if (cache != null) {
+            cache.put(addr, json);
+            json = json.deepCopy(); // keep the cached tree pristine
           }
-        }        
+        } else {
+          numCacheHits.mark();
+          json = json.deepCopy();
+        }
         record.put(Fields.ATTACHMENT_BODY, json);
       }
       
@@ -117,18 +141,159 @@ public final class GeoIPBuilder implements CommandBuilder {
       return super.doProcess(record);
     }
     
+    private JsonNode lookup(InetAddress addr) {
+      JsonNode json;
+      try {
+        json = databaseReader.getReader().get(addr);
+      } catch (IOException e) {
+        throw new MorphlineRuntimeException("Cannot perform GeoIP lookup for IP: " + addr, e);
+      }
+      if (json == null) {
+        json = JsonNodeFactory.instance.objectNode(); // address not found in database
+      }
+      
+      ObjectNode location = (ObjectNode) json.get("location");
+      if (location != null) {
+        JsonNode jlatitude = location.get("latitude");
+        JsonNode jlongitude = location.get("longitude");
+        if (jlatitude != null && jlongitude != null) {
+          String latitude = jlatitude.toString();
+          String longitude = jlongitude.toString();
+          location.put("latitude_longitude", latitude + "," + longitude);
+          location.put("longitude_latitude", longitude + "," + latitude);
+        }
+      }
+      
+      if (projection != null) {
+        json = project(json);
+      }
+      return json;
+    }
+    
+    /** Returns a tree that only contains the subtrees at the projection paths, e.g. /country/iso_code */
+    private JsonNode project(JsonNode json) {
+      ObjectNode result = JsonNodeFactory.instance.objectNode();
+      for (String path : projection) {
+        JsonNode src = json;
+        ObjectNode dst = result;
+        String[] steps = path.split("/");
+        for (int i = 0; i < steps.length && src != null; i++) {
+          String step = steps[i];
+          if (step.length() == 0) {
+            continue;
+          }
+          src = src.get(step);
+          if (src == null) {
+            break;
+          } else if (isLastStep(steps, i)) {
+            dst.put(step, src);
+          } else {
+            JsonNode child = dst.get(step);
+            if (!(child instanceof ObjectNode)) {
+              child = dst.putObject(step);
+            }
+            dst = (ObjectNode) child;
+          }
+        }
+      }
+      return result;
+    }
+    
+    private boolean isLastStep(String[] steps, int i) {
+      for (int j = i + 1; j < steps.length; j++) {
+        if (steps[j].length() > 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
     @Override
     protected void doNotify(Record notification) {      
       for (Object event : Notifications.getLifecycleEvents(notification)) {
-        if (event == Notifications.LifecycleEvent.SHUTDOWN) {
+        if (event == Notifications.LifecycleEvent.SHUTDOWN && !isClosed) {
+          isClosed = true;
+          databaseReader.release();
+        }
+      }
+      super.doNotify(notification);
+    }
+    
+  }
+  
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static enum DatabaseFileMode {
+    memoryMapped(FileMode.MEMORY_MAPPED),
+    memory(FileMode.MEMORY);
+    
+    private final FileMode fileMode;
+    
+    private DatabaseFileMode(FileMode fileMode) {
+      this.fileMode = fileMode;
+    }
+    
+    public FileMode getFileMode() {
+      return fileMode;
+    }
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * A thread-safe database reader that is shared across the JVM, keyed by database file and file
+   * mode. The reader is closed once the last command that uses it has been shut down.
+   */
+  private static final class SharedReader {
+    
+    private final String key;
+    private final File databaseFile;
+    private final Reader reader;
+    private int refCount = 0;
+    
+    private static final Map<String, SharedReader> INSTANCES = new HashMap();
+    
+    private static final Logger LOG = LoggerFactory.getLogger(SharedReader.class);
+    
+    public static SharedReader acquire(File databaseFile, FileMode fileMode) throws IOException {
+      synchronized (INSTANCES) {
+        String key = databaseFile.getCanonicalPath() + "#" + fileMode;
+        SharedReader instance = INSTANCES.get(key);
+        if (instance == null) {
+          instance = new SharedReader(key, databaseFile, new Reader(databaseFile, fileMode));
+          INSTANCES.put(key, instance);
+        }
+        instance.refCount++;
+        return instance;
+      }
+    }
+    
+    private SharedReader(String key, File databaseFile, Reader reader) {
+      this.key = key;
+      this.databaseFile = databaseFile;
+      this.reader = reader;
+    }
+    
+    public Reader getReader() {
+      return reader;
+    }
+    
+    public void release() {
+      synchronized (INSTANCES) {
+        if (--refCount == 0) {
+          INSTANCES.remove(key);
           try {
-            databaseReader.close();
+            reader.close();
           } catch (IOException e) {
             LOG.warn("Cannot close Maxmind database: " + databaseFile, e);
           }
         }
       }
-      super.doNotify(notification);
     }
     
   }
@@ -22,6 +22,7 @@ import com.cloudera.cdk.morphline.api.AbstractMorphlineTest;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.base.Notifications;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class MaxmindMorphlineTest extends AbstractMorphlineTest {
 
@@ -73,6 +74,47 @@ public class MaxmindMorphlineTest extends AbstractMorphlineTest {
     Notifications.notifyShutdown(morphline);
   }
   
+  @Test
+  public void testCacheAndProjection() throws Exception {
+    morphline = createMorphline("test-morphlines/geoIPWithProjection");    
+    
+    for (int i = 0; i < 2; i++) {
+      Record record = new Record();
+      String ip = "128.101.101.101";
+      record.put("ip", ip);
+      Record expected = new Record();
+      expected.put("ip", ip);
+      expected.put("/country/iso_code", "US");
+      expected.put("/continent/code", "NA");
+      expected.put("/continent/names/en", "North America");
+      processAndVerifySuccess(record, expected, false);
+    }
+    assertEquals(1, morphContext.getMetricRegistry().getMeters().get("morphline.geoIP.numCacheHits").getCount());
+    assertEquals(1, morphContext.getMetricRegistry().getMeters().get("morphline.geoIP.numCacheMisses").getCount());
+    Notifications.notifyShutdown(morphline);
+  }
+  
+  @Test
+  public void testCachedResultIsNotShared() throws Exception {
+    morphline = createMorphline("test-morphlines/geoIPWithProjection");    
+    
+    for (int i = 0; i < 3; i++) {
+      Record record = new Record();
+      record.put("ip", "128.101.101.101");
+      collector.reset();
+      startSession();
+      assertTrue(morphline.process(record));
+      ObjectNode json = (ObjectNode) collector.getFirstRecord().getFirstValue(Fields.ATTACHMENT_BODY);
+      assertEquals("US", json.get("country").get("iso_code").textValue());
+      
+      // a downstream command that modifies the tree must not affect subsequent records
+      ((ObjectNode) json.get("country")).put("iso_code", "XX");
+      json.remove("continent");
+    }
+    assertEquals(2, morphContext.getMetricRegistry().getMeters().get("morphline.geoIP.numCacheHits").getCount());
+    Notifications.notifyShutdown(morphline);
+  }
+  
   private void processAndVerifySuccess(Record input, Record expected, boolean isSame) {
     collector.reset();
     startSession();
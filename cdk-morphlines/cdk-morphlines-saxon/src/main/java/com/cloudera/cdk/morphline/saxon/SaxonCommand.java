@@ -20,10 +20,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.ErrorListener;
@@ -37,11 +44,17 @@ import net.sf.saxon.s9api.XdmNode;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.cloudera.cdk.morphline.stdio.AbstractParser;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
@@ -52,19 +65,65 @@ abstract class SaxonCommand extends AbstractParser {
   protected final DocumentBuilder documentBuilder;
   protected final Processor processor;
   protected final boolean isTracing;
+  private final SharedProcessor sharedProcessor;
+  private final Meter numExecutableCacheHits;
+  private final Meter numExecutableCacheMisses;
 
   public SaxonCommand(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
     super(builder, config, parent, child, context);
     
     this.isTracing = getConfigs().getBoolean(config, "isTracing", false);
     boolean isLicensedSaxonEdition = getConfigs().getBoolean(config, "isLicensedSaxonEdition", false);
-    this.processor = new Processor(isLicensedSaxonEdition);
+    Config features = getConfigs().getConfig(config, "features", ConfigFactory.empty());
+    this.sharedProcessor = SharedProcessor.getInstance(isLicensedSaxonEdition, features);
+    this.processor = sharedProcessor.getProcessor();
     this.documentBuilder = processor.newDocumentBuilder();
+    this.numExecutableCacheHits = getMeter("numExecutableCacheHits");
+    this.numExecutableCacheMisses = getMeter("numExecutableCacheMisses");
+  }
+  
+  /**
+   * Returns a key that identifies the executable compiled from the given query string or query
+   * file with the given options, for use with {@link #getCachedExecutable(List)}.
+   */
+  protected List getExecutableCacheKey(String kind, String languageVersion, String query, String queryFile) 
+      throws IOException {
     
-    Config features = getConfigs().getConfig(config, "features", ConfigFactory.empty());
-    for (Map.Entry<String, Object> entry : new Configs().getEntrySet(features)) {
-      processor.setConfigurationProperty(entry.getKey(), entry.getValue());
+    List key = new ArrayList();
+    key.add(kind);
+    key.add(languageVersion);
+    key.add(isTracing);
+    if (query != null) {
+      key.add(Hashing.sha1().hashString(query, Charsets.UTF_8).toString());
+    } else {
+      File file = new File(queryFile);
+      key.add(file.getCanonicalPath());
+      key.add(file.length());
+      key.add(file.lastModified());
     }
+    return key;
+  }
+  
+  /**
+   * Returns the compiled XQueryExecutable or XsltExecutable for the given key, or null if no
+   * command in this JVM with the same processor configuration has compiled it yet.
+   */
+  protected Object getCachedExecutable(List key) {
+    Object executable = sharedProcessor.getExecutable(key);
+    if (executable == null) {
+      numExecutableCacheMisses.mark();
+    } else {
+      numExecutableCacheHits.mark();
+    }
+    return executable;
+  }
+  
+  /**
+   * Makes the given compiled XQueryExecutable or XsltExecutable available to other commands in this
+   * JVM. Executables are immutable and thread-safe; each command loads its own evaluator from it.
+   */
+  protected void putCachedExecutable(List key, Object executable) {
+    sharedProcessor.putExecutable(key, executable);
   }
 
   @Override
@@ -102,10 +161,159 @@ abstract class SaxonCommand extends AbstractParser {
     return document;
   }
   
+  /**
+   * Parses the given XML document with StAX and builds a separate small document for each element
+   * that matches the given fragment path, passing each fragment document to the given handler
+   * before building the next one. This way memory consumption is bounded by the size of a fragment
+   * rather than the size of the entire document.
+   * 
+   * Returns false as soon as the handler returns false.
+   */
+  protected boolean parseXmlFragments(InputStream stream, FragmentPath fragmentPath, FragmentHandler handler) 
+      throws XMLStreamException, SaxonApiException {
+    
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(null, stream);
+    try {
+      int depth = 0;
+      int matchedDepth = 0; // number of leading path steps matched by the ancestors of the cursor
+      while (reader.hasNext()) {
+        int ev = reader.next();
+        if (ev == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          if (matchedDepth == depth - 1 && fragmentPath.matches(depth - 1, reader.getLocalName())) {
+            matchedDepth = depth;
+            if (depth == fragmentPath.size()) {
+              BuildingStreamWriterImpl writer = documentBuilder.newBuildingStreamWriter();
+              writer.writeStartDocument();
+              new XMLStreamCopier(reader, writer).copy(true); // consumes fragment up to its end element
+              writer.writeEndDocument();
+              writer.close();
+              depth--;
+              matchedDepth--;
+              if (!handler.process(writer.getDocumentNode())) {
+                return false;
+              }
+            }
+          }
+        } else if (ev == XMLStreamConstants.END_ELEMENT) {
+          if (matchedDepth == depth) {
+            matchedDepth--;
+          }
+          depth--;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return true;
+  }
+  
+  /** Parses the given fragmentPath parameter */
+  protected FragmentPath parseFragmentPath(String fragmentPath, Config config) {
+    if (!fragmentPath.startsWith("/")) {
+      throw new MorphlineCompilationException("fragmentPath must be absolute: " + fragmentPath, config);
+    }
+    if (fragmentPath.equals("/")) {
+      return new FragmentPath(new String[0]);
+    }
+    String[] steps = SLASH.split(fragmentPath.substring(1), -1);
+    for (String step : steps) {
+      if (step.length() == 0) {
+        throw new MorphlineCompilationException("fragmentPath must not contain empty steps: " + fragmentPath, config);
+      }
+    }
+    return new FragmentPath(steps);
+  }
+  
+  private static final Pattern SLASH = Pattern.compile("/");
+  
   
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////    
+  /**
+   * Absolute path of element names, for example <code>/tweets/tweet</code>, where the step
+   * <code>*</code> matches any element. Names are matched against the local name of elements,
+   * ignoring namespaces. The root path <code>/</code> denotes the entire document.
+   */
+  static final class FragmentPath {
+    
+    private final String[] steps;
+    
+    private FragmentPath(String[] steps) {
+      this.steps = steps;
+    }
+    
+    public boolean isRoot() {
+      return steps.length == 0;
+    }
+    
+    public int size() {
+      return steps.length;
+    }
+    
+    public boolean matches(int step, String localName) {
+      return step < steps.length && (steps[step].equals("*") || steps[step].equals(localName));
+    }
+  }
+  
+  
+  /** Callback that receives the fragment documents built by parseXmlFragments() */
+  interface FragmentHandler {
+    
+    boolean process(XdmNode fragment) throws SaxonApiException, XMLStreamException;
+  }
+  
+  
+  /**
+   * A Saxon processor plus the executables compiled with it, shared across all commands in the JVM
+   * that use the same processor configuration, such that identical morphlines don't compile the same
+   * query more than once, and don't each keep their own NamePool.
+   */
+  private static final class SharedProcessor {
+    
+    private final Processor processor;
+    
+    /** Bounded because every edit of a query file changes its key (length and mtime) */
+    private final Cache<List, Object> executables = CacheBuilder.newBuilder().maximumSize(100).build();
+    
+    private static final Map<List, SharedProcessor> INSTANCES = new HashMap();
+    
+    public static synchronized SharedProcessor getInstance(boolean isLicensedSaxonEdition, Config features) {
+      Map<String, Object> featureMap = new TreeMap();
+      for (Map.Entry<String, Object> entry : new Configs().getEntrySet(features)) {
+        featureMap.put(entry.getKey(), entry.getValue());
+      }
+      List key = Arrays.asList(isLicensedSaxonEdition, featureMap);
+      SharedProcessor instance = INSTANCES.get(key);
+      if (instance == null) {
+        instance = new SharedProcessor(isLicensedSaxonEdition, featureMap);
+        INSTANCES.put(key, instance);
+      }
+      return instance;
+    }
+    
+    private SharedProcessor(boolean isLicensedSaxonEdition, Map<String, Object> features) {
+      this.processor = new Processor(isLicensedSaxonEdition);
+      for (Map.Entry<String, Object> entry : features.entrySet()) {
+        processor.setConfigurationProperty(entry.getKey(), entry.getValue());
+      }
+    }
+    
+    public Processor getProcessor() {
+      return processor;
+    }
+    
+    public Object getExecutable(List key) {
+      return executables.getIfPresent(key);
+    }
+    
+    public void putExecutable(List key, Object executable) {
+      executables.put(key, executable);
+    }
+  }
+  
+  
   final class DefaultErrorListener implements ErrorListener {
 
     public void error(TransformerException e) throws TransformerException {
@@ -53,6 +53,10 @@ import com.typesafe.config.ConfigFactory;
  * Command that parses an InputStream that contains an XML document and runs the given XQuery over
  * the XML document. For each item in the query result sequence, the command emits a morphline record
  * containing the item's name-value pairs.
+ * 
+ * If the fragmentPath is not the root path <code>/</code>, the document is streamed, and the query
+ * is run separately over each fragment (i.e. element) that matches the path, such that memory
+ * consumption is bounded by the size of a fragment rather than the size of the document.
  */
 public final class XQueryBuilder implements CommandBuilder {
 
@@ -81,8 +85,6 @@ public final class XQueryBuilder implements CommandBuilder {
   private static final class XQuery extends SaxonCommand {
     
     /*
-     * TODO: Add option to support streaming via fragmentPath.
-     * 
      * TODO: Add option to support serializing each item in the result sequence according to the XML
      * Output Method of the <a target="_blank" href="http://www.w3.org/TR/xslt-xquery-serialization-30/">
      * W3C XQuery/XSLT2 Serialization Spec</a>, with sequence normalization as defined therein.
@@ -101,31 +103,32 @@ public final class XQueryBuilder implements CommandBuilder {
         throw new MorphlineCompilationException("More than one fragment is not yet supported", config);
       }
       for (Config fragment : fragmentConfigs) {
-        String fragmentPath = getConfigs().getString(fragment, "fragmentPath");
-        if (!fragmentPath.equals("/")) {
-          throw new MorphlineCompilationException("Non-root fragment paths are not yet supported", config);
-        }  
+        FragmentPath fragmentPath = parseFragmentPath(getConfigs().getString(fragment, "fragmentPath"), config);
         
-        XQueryCompiler compiler = processor.newXQueryCompiler();
-        compiler.setErrorListener(new DefaultErrorListener());
-        compiler.setCompileWithTracing(isTracing);
-        compiler.setLanguageVersion(getConfigs().getString(config, "languageVersion", "1.0"));
-        
-        XQueryExecutable executable = null;
         String query = getConfigs().getString(fragment, "queryString", null);
-        if (query != null) {
-          executable = compiler.compile(query);     
-        }
         String queryFile = getConfigs().getString(fragment, "queryFile", null);
-        if (queryFile != null) {
-          executable = compiler.compile(new File(queryFile));
-        }
         if (query == null && queryFile == null) {
           throw new MorphlineCompilationException("Either query or queryFile must be defined", config);
         }
         if (query != null && queryFile != null) {
           throw new MorphlineCompilationException("Must not define both query and queryFile at the same time", config);
         }
+        String languageVersion = getConfigs().getString(config, "languageVersion", "1.0");
+        
+        List cacheKey = getExecutableCacheKey("xquery", languageVersion, query, queryFile);
+        XQueryExecutable executable = (XQueryExecutable) getCachedExecutable(cacheKey);
+        if (executable == null) {
+          XQueryCompiler compiler = processor.newXQueryCompiler();
+          compiler.setErrorListener(new DefaultErrorListener());
+          compiler.setCompileWithTracing(isTracing);
+          compiler.setLanguageVersion(languageVersion);
+          if (query != null) {
+            executable = compiler.compile(query);     
+          } else {
+            executable = compiler.compile(new File(queryFile));
+          }
+          putCachedExecutable(cacheKey, executable);
+        }
         
         XQueryEvaluator evaluator = executable.load();
         Config variables = getConfigs().getConfig(fragment, "externalVariables", ConfigFactory.empty());
@@ -151,39 +154,58 @@ public final class XQueryBuilder implements CommandBuilder {
     @Override
     protected boolean doProcess2(Record inputRecord, InputStream stream) throws SaxonApiException, XMLStreamException {
       incrementNumRecords();      
-      for (Fragment fragment : fragments) {
-        Record template = inputRecord.copy();
+      for (final Fragment fragment : fragments) {
+        final Record template = inputRecord.copy();
         removeAttachments(template);
-        XdmNode document = parseXmlDocument(stream);
-        LOG.trace("XQuery input document: {}", document);
-        XQueryEvaluator evaluator = fragment.xQueryEvaluator;
-        evaluator.setContextItem(document);
-        
-        int i = 0;
-        for (XdmItem item : evaluator) {
-          i++;
-          if (LOG.isTraceEnabled()) {
-            LOG.trace("XQuery result sequence item #{} is of class: {} with value: {}", new Object[] { i,
-                item.getUnderlyingValue().getClass().getName(), item });
+        if (fragment.fragmentPath.isRoot()) {
+          XdmNode document = parseXmlDocument(stream);
+          if (!processDocument(document, fragment, template)) {
+            return false;
           }
-          if (item.isAtomicValue()) {
-            LOG.debug("Ignoring atomic value in result sequence: {}", item);
-            continue;
-          }
-          XdmNode node = (XdmNode) item;
-          Record outputRecord = template.copy();
-          boolean isNonEmpty = addRecordValues(node, Axis.SELF, XdmNodeKind.ATTRIBUTE, outputRecord);
-          isNonEmpty = addRecordValues(node, Axis.ATTRIBUTE, XdmNodeKind.ATTRIBUTE, outputRecord) || isNonEmpty;
-          isNonEmpty = addRecordValues(node, Axis.CHILD, XdmNodeKind.ELEMENT, outputRecord) || isNonEmpty;
-          if (isNonEmpty) { // pass record to next command in chain   
-            if (!getChild().process(outputRecord)) { 
-              return false;
+        } else {
+          boolean success = parseXmlFragments(stream, fragment.fragmentPath, new FragmentHandler() {
+            @Override
+            public boolean process(XdmNode fragmentDocument) throws SaxonApiException {
+              return processDocument(fragmentDocument, fragment, template);
             }
+          });
+          if (!success) {
+            return false;
           }
         }
       }      
       return true;
     }
+    
+    private boolean processDocument(XdmNode document, Fragment fragment, Record template) throws SaxonApiException {
+      LOG.trace("XQuery input document: {}", document);
+      XQueryEvaluator evaluator = fragment.xQueryEvaluator;
+      evaluator.setContextItem(document);
+      
+      int i = 0;
+      for (XdmItem item : evaluator) {
+        i++;
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("XQuery result sequence item #{} is of class: {} with value: {}", new Object[] { i,
+              item.getUnderlyingValue().getClass().getName(), item });
+        }
+        if (item.isAtomicValue()) {
+          LOG.debug("Ignoring atomic value in result sequence: {}", item);
+          continue;
+        }
+        XdmNode node = (XdmNode) item;
+        Record outputRecord = template.copy();
+        boolean isNonEmpty = addRecordValues(node, Axis.SELF, XdmNodeKind.ATTRIBUTE, outputRecord);
+        isNonEmpty = addRecordValues(node, Axis.ATTRIBUTE, XdmNodeKind.ATTRIBUTE, outputRecord) || isNonEmpty;
+        isNonEmpty = addRecordValues(node, Axis.CHILD, XdmNodeKind.ELEMENT, outputRecord) || isNonEmpty;
+        if (isNonEmpty) { // pass record to next command in chain   
+          if (!getChild().process(outputRecord)) { 
+            return false;
+          }
+        }
+      }
+      return true;
+    }
 
     // extract fields from query result sequence
     protected boolean addRecordValues(XdmNode node, Axis axis, XdmNodeKind nodeTest, Record record) {
@@ -208,10 +230,10 @@ public final class XQueryBuilder implements CommandBuilder {
     ///////////////////////////////////////////////////////////////////////////////    
     private static final class Fragment {
       
-      private final String fragmentPath;     
+      private final FragmentPath fragmentPath;     
       private final XQueryEvaluator xQueryEvaluator;     
       
-      public Fragment(String fragmentPath, XQueryEvaluator xQueryEvaluator) {
+      public Fragment(FragmentPath fragmentPath, XQueryEvaluator xQueryEvaluator) {
         this.fragmentPath = fragmentPath;
         this.xQueryEvaluator = xQueryEvaluator;
       }
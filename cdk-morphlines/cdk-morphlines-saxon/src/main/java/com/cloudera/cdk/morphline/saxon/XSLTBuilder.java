@@ -56,7 +56,9 @@ import com.typesafe.config.ConfigFactory;
  * over the XML document. For each item in the query result sequence, the command emits a morphline
  * record containing the item's name-value pairs.
  * 
- * TODO: Add support for streaming via fragmentPath.
+ * If the fragmentPath is not the root path <code>/</code>, the document is streamed, and the
+ * transform is run separately over each fragment (i.e. element) that matches the path, such that
+ * memory consumption is bounded by the size of a fragment rather than the size of the document.
  */
 public final class XSLTBuilder implements CommandBuilder {
 
@@ -97,34 +99,34 @@ public final class XSLTBuilder implements CommandBuilder {
         throw new MorphlineCompilationException("More than one fragment is not yet supported", config);
       }
       for (Config fragment : fragmentConfigs) {
-        String fragmentPath = getConfigs().getString(fragment, "fragmentPath");
-        if (!fragmentPath.equals("/")) {
-          throw new MorphlineCompilationException("Non-root fragment paths are not yet supported", config);
-        }  
+        FragmentPath fragmentPath = parseFragmentPath(getConfigs().getString(fragment, "fragmentPath"), config);
         
-        XsltCompiler compiler = processor.newXsltCompiler();
-        compiler.setErrorListener(new DefaultErrorListener());
-        compiler.setCompileWithTracing(isTracing);
-        String version = getConfigs().getString(config, "languageVersion", null);
-        if (version != null) {
-          compiler.setXsltLanguageVersion(version);
-        }
-        
-        XsltExecutable executable = null;
         String query = getConfigs().getString(fragment, "queryString", null);
-        if (query != null) {
-          executable = compiler.compile(new StreamSource(new StringReader(query)));     
-        }
         String queryFile = getConfigs().getString(fragment, "queryFile", null);
-        if (queryFile != null) {
-          executable = compiler.compile(new StreamSource(new File(queryFile)));     
-        }
         if (query == null && queryFile == null) {
           throw new MorphlineCompilationException("Either query or queryFile must be defined", config);
         }
         if (query != null && queryFile != null) {
           throw new MorphlineCompilationException("Must not define both query and queryFile at the same time", config);
         }
+        String version = getConfigs().getString(config, "languageVersion", null);
+        
+        List cacheKey = getExecutableCacheKey("xslt", version, query, queryFile);
+        XsltExecutable executable = (XsltExecutable) getCachedExecutable(cacheKey);
+        if (executable == null) {
+          XsltCompiler compiler = processor.newXsltCompiler();
+          compiler.setErrorListener(new DefaultErrorListener());
+          compiler.setCompileWithTracing(isTracing);
+          if (version != null) {
+            compiler.setXsltLanguageVersion(version);
+          }
+          if (query != null) {
+            executable = compiler.compile(new StreamSource(new StringReader(query)));     
+          } else {
+            executable = compiler.compile(new StreamSource(new File(queryFile)));     
+          }
+          putCachedExecutable(cacheKey, executable);
+        }
         
         XsltTransformer evaluator = executable.load();
         Config variables = getConfigs().getConfig(fragment, "parameters", ConfigFactory.empty());
@@ -150,19 +152,33 @@ public final class XSLTBuilder implements CommandBuilder {
     @Override
     protected boolean doProcess2(Record inputRecord, InputStream stream) throws SaxonApiException, XMLStreamException {
       incrementNumRecords();      
-      for (Fragment fragment : fragments) {
+      for (final Fragment fragment : fragments) {
         Record outputRecord = inputRecord.copy();
         removeAttachments(outputRecord);   
-        XdmNode document = parseXmlDocument(stream);
-        LOG.trace("XSLT input document: {}", document);
-        XsltTransformer evaluator = fragment.transformer;
-        evaluator.setInitialContextNode(document);
-        XMLStreamWriter morphlineWriter = new MorphlineXMLStreamWriter(getChild(), outputRecord);
-        evaluator.setDestination(new XMLStreamWriterDestination(morphlineWriter));
-        evaluator.transform(); //  run the query and push into child via RecordXMLStreamWriter
+        final XMLStreamWriter morphlineWriter = new MorphlineXMLStreamWriter(getChild(), outputRecord);
+        if (fragment.fragmentPath.isRoot()) {
+          XdmNode document = parseXmlDocument(stream);
+          transform(document, fragment, morphlineWriter);
+        } else {
+          parseXmlFragments(stream, fragment.fragmentPath, new FragmentHandler() {
+            @Override
+            public boolean process(XdmNode fragmentDocument) throws SaxonApiException {
+              transform(fragmentDocument, fragment, morphlineWriter);
+              return true;
+            }
+          });
+        }
       }      
       return true;
     }
+    
+    private void transform(XdmNode document, Fragment fragment, XMLStreamWriter morphlineWriter) throws SaxonApiException {
+      LOG.trace("XSLT input document: {}", document);
+      XsltTransformer evaluator = fragment.transformer;
+      evaluator.setInitialContextNode(document);
+      evaluator.setDestination(new XMLStreamWriterDestination(morphlineWriter));
+      evaluator.transform(); //  run the query and push into child via RecordXMLStreamWriter
+    }
 
 
     ///////////////////////////////////////////////////////////////////////////////
@@ -170,10 +186,10 @@ public final class XSLTBuilder implements CommandBuilder {
     ///////////////////////////////////////////////////////////////////////////////    
     private static final class Fragment {
       
-      private final String fragmentPath;     
+      private final FragmentPath fragmentPath;     
       private final XsltTransformer transformer;     
       
-      public Fragment(String fragmentPath, XsltTransformer transformer) {
+      public Fragment(FragmentPath fragmentPath, XsltTransformer transformer) {
         this.fragmentPath = fragmentPath;
         this.transformer = transformer;
       }
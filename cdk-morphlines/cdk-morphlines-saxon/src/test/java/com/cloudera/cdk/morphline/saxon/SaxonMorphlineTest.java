@@ -53,6 +53,54 @@ public class SaxonMorphlineTest extends AbstractMorphlineTest {
     in.close();
   }  
 
+  @Test
+  public void testXQueryTweetTextsStreaming() throws Exception {
+    morphline = createMorphline("test-morphlines/xquery-tweet-texts-streaming");
+    InputStream in = new FileInputStream(new File(RESOURCES_DIR + "/test-documents/sample-statuses-20120906-141433.xml"));
+    Record record = new Record();
+    record.put("id", "123");
+    record.put(Fields.ATTACHMENT_BODY, in);
+    processAndVerifySuccess(record,
+        ImmutableMultimap.of("id", "123", "text", "sample tweet one"),
+        ImmutableMultimap.of("id", "123", "text", "sample tweet two")
+        );
+    in.close();
+  }
+
+  @Test
+  public void testXQueryWithSharedExecutable() throws Exception {
+    for (int i = 0; i < 2; i++) { // second morphline reuses the executable compiled by the first
+      morphline = createMorphline("test-morphlines/xquery-tweet-texts");
+      InputStream in = new FileInputStream(new File(RESOURCES_DIR + "/test-documents/sample-statuses-20120906-141433.xml"));
+      Record record = new Record();
+      record.put("id", "123");
+      record.put(Fields.ATTACHMENT_BODY, in);
+      processAndVerifySuccess(record,
+          ImmutableMultimap.of("id", "123", "text", "sample tweet one"),
+          ImmutableMultimap.of("id", "123", "text", "sample tweet two")
+          );
+      in.close();
+      if (i > 0) {
+        assertEquals(1, morphContext.getMetricRegistry().getMeters().get("morphline.xquery.numExecutableCacheHits").getCount());
+        assertEquals(0, morphContext.getMetricRegistry().getMeters().get("morphline.xquery.numExecutableCacheMisses").getCount());
+      }
+    }
+  }
+
+  @Test
+  public void testXsltTweetUsersStreaming() throws Exception {
+    morphline = createMorphline("test-morphlines/xslt-tweet-users-streaming");
+    InputStream in = new FileInputStream(new File(RESOURCES_DIR + "/test-documents/sample-statuses-20120906-141433.xml"));
+    Record record = new Record();
+    record.put("id", "123");
+    record.put(Fields.ATTACHMENT_BODY, in);
+    processAndVerifySuccess(record,
+        ImmutableMultimap.of("id", "123", "screen_name", "fake_user1", "followers_count", "111"),
+        ImmutableMultimap.of("id", "123", "screen_name", "fake_user2", "followers_count", "222")
+        );
+    in.close();
+  }
+
   @Test
   public void testXQueryTweetUsers() throws Exception {
     morphline = createMorphline("test-morphlines/xquery-tweet-users");    
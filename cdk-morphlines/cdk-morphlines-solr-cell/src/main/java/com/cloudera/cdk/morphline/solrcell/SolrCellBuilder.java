@@ -44,6 +44,7 @@ import org.apache.tika.mime.MediaType;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.TeeContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.apache.tika.sax.XHTMLContentHandler;
 import org.apache.tika.sax.xpath.Matcher;
 import org.apache.tika.sax.xpath.MatchingContentHandler;
@@ -77,6 +78,9 @@ import com.typesafe.config.Config;
  * The Tika parser is chosen from the configurable list of parsers, depending on the MIME type
  * specified in the input record. Typically, this requires an upstream DetectMimeTypeBuilder
  * in a prior command.
+ * <p>
+ * If <code>maxContentLength</code> is set, parsing stops as soon as the given number of characters
+ * of text has been extracted, and the document is emitted with the text extracted so far.
  */
 public final class SolrCellBuilder implements CommandBuilder {
 
@@ -99,11 +103,16 @@ public final class SolrCellBuilder implements CommandBuilder {
     private final IndexSchema schema;
     private final List<String> dateFormats;
     private final String xpathExpr;
+    private final Matcher xpathMatcher;
+    private final int maxContentLength;
     private final List<Parser> parsers = new ArrayList();
     private final SolrContentHandlerFactory solrContentHandlerFactory;
     
     private final SolrParams solrParams;
     private final Map<MediaType, Parser> mediaTypeToParserMap;
+    private final Map<MediaType, Parser> resolvedParsers = new HashMap(); // cache of detectParser() results
+    
+    private static final int MAX_RESOLVED_PARSERS = 1000; // bounds the cache for arbitrary input MIME types
     
     private static final XPathParser PARSER = new XPathParser("xhtml", XHTMLContentHandler.XHTML);
         
@@ -148,7 +157,11 @@ public final class SolrCellBuilder implements CommandBuilder {
       xpathExpr = getConfigs().getString(config, ExtractingParams.XPATH_EXPRESSION, null);
       if (xpathExpr != null) {
         cellParams.put(ExtractingParams.XPATH_EXPRESSION, xpathExpr);
+        this.xpathMatcher = PARSER.parse(xpathExpr);
+      } else {
+        this.xpathMatcher = null;
       }
+      this.maxContentLength = getConfigs().getInt(config, "maxContentLength", -1);
       
       this.dateFormats = getConfigs().getStringList(config, "dateFormats", new ArrayList<String>(DateUtil.DEFAULT_DATE_FORMATS));
       
@@ -232,6 +245,12 @@ public final class SolrCellBuilder implements CommandBuilder {
         inputStream = TikaInputStream.get(inputStream);
 
         ContentHandler parsingHandler = handler;
+        WriteOutContentHandler limitingHandler = null;
+        if (maxContentLength >= 0) {
+          // aborts parsing with a SAXException once the limit is reached
+          limitingHandler = new WriteOutContentHandler(parsingHandler, maxContentLength);
+          parsingHandler = limitingHandler;
+        }
         StringWriter debugWriter = null;
         if (LOG.isTraceEnabled()) {
           debugWriter = new StringWriter();
@@ -240,9 +259,8 @@ public final class SolrCellBuilder implements CommandBuilder {
         }
 
         // String xpathExpr = "/xhtml:html/xhtml:body/xhtml:div/descendant:node()";
-        if (xpathExpr != null) {
-          Matcher matcher = PARSER.parse(xpathExpr);
-          parsingHandler = new MatchingContentHandler(parsingHandler, matcher);
+        if (xpathMatcher != null) {
+          parsingHandler = new MatchingContentHandler(parsingHandler, xpathMatcher);
         }
 
         try {
@@ -250,9 +268,15 @@ public final class SolrCellBuilder implements CommandBuilder {
         } catch (IOException e) {
           throw new MorphlineRuntimeException("Cannot parse", e);
         } catch (SAXException e) {
-          throw new MorphlineRuntimeException("Cannot parse", e);
-        } catch (TikaException e) {
-          throw new MorphlineRuntimeException("Cannot parse", e);
+          if (limitingHandler == null || !limitingHandler.isWriteLimitReached(e)) {
+            throw new MorphlineRuntimeException("Cannot parse", e);
+          }
+          LOG.debug("Stopped parsing after reaching maxContentLength: {}", maxContentLength);
+        } catch (TikaException e) { // some parsers wrap the SAXException
+          if (limitingHandler == null || !limitingHandler.isWriteLimitReached(e)) {
+            throw new MorphlineRuntimeException("Cannot parse", e);
+          }
+          LOG.debug("Stopped parsing after reaching maxContentLength: {}", maxContentLength);
         }
         
         LOG.trace("debug XML doc: {}", debugWriter);
@@ -280,12 +304,23 @@ public final class SolrCellBuilder implements CommandBuilder {
       if (parser != null) {
         return parser;
       }
-      // wildcard matching
-      for (Map.Entry<MediaType, Parser> entry : mediaTypeToParserMap.entrySet()) {
-        if (isMediaTypeMatch(mediaType, entry.getKey())) {
-          return entry.getValue();
+      if (resolvedParsers.containsKey(mediaType)) {
+        parser = resolvedParsers.get(mediaType);
+      } else {
+        // wildcard matching
+        for (Map.Entry<MediaType, Parser> entry : mediaTypeToParserMap.entrySet()) {
+          if (isMediaTypeMatch(mediaType, entry.getKey())) {
+            parser = entry.getValue();
+            break;
+          }
+        }
+        if (resolvedParsers.size() < MAX_RESOLVED_PARSERS) {
+          resolvedParsers.put(mediaType, parser); // remember negative results, too
         }
       }
+      if (parser != null) {
+        return parser;
+      }
       if (LOG.isDebugEnabled()) {
         LOG.debug("No supported MIME type parser found for " + Fields.ATTACHMENT_MIME_TYPE + "=" + mediaTypeStr);
       }
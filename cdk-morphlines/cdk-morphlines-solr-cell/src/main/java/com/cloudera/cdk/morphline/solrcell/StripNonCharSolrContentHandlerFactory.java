@@ -25,7 +25,7 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.tika.metadata.Metadata;
 
 /**
- * SolrContentHandler and associated factory that strips non-characters anhd trims on output.
+ * SolrContentHandler and associated factory that strips non-characters and trims on output.
  * This prevents exceptions on parsing integer fields inside Solr server.
  */
 public class StripNonCharSolrContentHandlerFactory extends SolrContentHandlerFactory {
@@ -39,6 +39,49 @@ public class StripNonCharSolrContentHandlerFactory extends SolrContentHandlerFac
     return new StripNonCharSolrContentHandler(metadata, params, schema, dateFormats);
   }
 
+  /**
+   * Trims the input and then strips all non-characters, which can cause SolrReducer problems if
+   * present. Non-characters that surround whitespace are stripped but the whitespace isn't trimmed.
+   * This is borrowed from Apache Nutch, and fused into a single pass over the input that returns
+   * the input itself if there is nothing to trim or strip.
+   */
+  static String trimAndStripNonCharCodepoints(String input) {
+    int len = input.length();
+    int begin = 0;
+    while (begin < len && input.charAt(begin) <= ' ') {
+      begin++; // skip leading whitespace, as in String.trim()
+    }
+    int end = len;
+    while (end > begin && input.charAt(end - 1) <= ' ') {
+      end--; // skip trailing whitespace, as in String.trim()
+    }
+    StringBuilder stripped = null;
+    for (int i = begin; i < end; i++) {
+      char ch = input.charAt(i);
+      if (!isValidChar(ch)) {
+        if (stripped == null) {
+          stripped = new StringBuilder(end - begin);
+          stripped.append(input, begin, i);
+        }
+      } else if (stripped != null) {
+        stripped.append(ch);
+      }
+    }
+    if (stripped != null) {
+      return stripped.toString();
+    }
+    return input.substring(begin, end);
+  }
+
+  private static boolean isValidChar(char ch) {
+    // Strip all non-characters http://unicode.org/cldr/utility/list-unicodeset.jsp?a=[:Noncharacter_Code_Point=True:]
+    // and non-printable control characters except tabulator, new line and carriage return
+    return ch % 0x10000 != 0xffff && // 0xffff - 0x10ffff range step 0x10000
+      ch % 0x10000 != 0xfffe && // 0xfffe - 0x10fffe range
+      (ch <= 0xfdd0 || ch >= 0xfdef) && // 0xfdd0 - 0xfdef
+      (ch > 0x1F || ch == 0x9 || ch == 0xa || ch == 0xd);
+  }
+
 
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
@@ -49,32 +92,9 @@ public class StripNonCharSolrContentHandlerFactory extends SolrContentHandlerFac
       super(metadata, params, schema, dateFormats);
     }
 
-    /**
-     * Strip all non-characters, which can cause SolrReducer problems if present.
-     * This is borrowed from Apache Nutch.
-     */
-    private static String stripNonCharCodepoints(String input) {
-      StringBuilder stripped = new StringBuilder(input.length());
-      char ch;
-      for (int i = 0; i < input.length(); i++) {
-        ch = input.charAt(i);
-        // Strip all non-characters http://unicode.org/cldr/utility/list-unicodeset.jsp?a=[:Noncharacter_Code_Point=True:]
-        // and non-printable control characters except tabulator, new line and carriage return
-        if (ch % 0x10000 != 0xffff && // 0xffff - 0x10ffff range step 0x10000
-          ch % 0x10000 != 0xfffe && // 0xfffe - 0x10fffe range
-          (ch <= 0xfdd0 || ch >= 0xfdef) && // 0xfdd0 - 0xfdef
-          (ch > 0x1F || ch == 0x9 || ch == 0xa || ch == 0xd)) {
-          stripped.append(ch);
-        }
-      }
-      return stripped.toString();
-    }
-
     @Override
     protected String transformValue(String val, SchemaField schemaField) {
-      String ret = super.transformValue(val, schemaField).trim();
-      ret = stripNonCharCodepoints(ret);
-      return ret;
+      return trimAndStripNonCharCodepoints(super.transformValue(val, schemaField));
     }
   }
 }
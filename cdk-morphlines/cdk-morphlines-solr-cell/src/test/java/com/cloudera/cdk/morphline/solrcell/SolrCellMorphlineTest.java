@@ -15,6 +15,7 @@
  */
 package com.cloudera.cdk.morphline.solrcell;
 
+import java.io.ByteArrayInputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,6 +28,8 @@ import org.apache.tika.metadata.Metadata;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.solr.AbstractSolrMorphlineTest;
 import com.cloudera.cdk.morphline.solrcell.StripNonCharSolrContentHandlerFactory;
 
@@ -189,6 +192,50 @@ public class SolrCellMorphlineTest extends AbstractSolrMorphlineTest {
     assertTrue("foobar".equals(foobar));
   }
 
+  @Test
+  public void testSolrCellMaxContentLength() throws Exception {
+    morphline = createMorphline("test-morphlines/solrCellMaxContentLength");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("word" + i + " ");
+    }
+    for (int i = 0; i < 2; i++) {
+      collector.reset();
+      Record record = new Record();
+      record.put(Fields.ATTACHMENT_BODY, new ByteArrayInputStream(text.toString().getBytes("UTF-8")));
+      record.put(Fields.ATTACHMENT_MIME_TYPE, "text/plain");
+      assertTrue(morphline.process(record)); // parsing is aborted, yet the record is emitted
+      assertEquals(1, collector.getRecords().size());
+      String content = (String) collector.getFirstRecord().getFirstValue("text");
+      assertTrue(content.length() > 0);
+      assertTrue(content.length() <= 20);
+      assertTrue(text.toString().startsWith(content));
+    }
+    
+    // unsupported MIME type
+    Record record = new Record();
+    record.put(Fields.ATTACHMENT_BODY, new ByteArrayInputStream(new byte[0]));
+    record.put(Fields.ATTACHMENT_MIME_TYPE, "application/x-unknown");
+    assertFalse(morphline.process(record));
+  }
+
+  /**
+   * Test that the ContentHandler strips illegal characters and trims in a single pass
+   */
+  @Test
+  public void testTransformValueWithWhitespace() {
+    String fieldName = "user_name";
+    Metadata metadata = new Metadata();
+    metadata.set(fieldName, "  \uffff " + getFoobarWithNonChars().replace("bar", "\u0001bar") + " \t\uffff ");
+    StripNonCharSolrContentHandlerFactory contentHandlerFactory =
+      new StripNonCharSolrContentHandlerFactory(DateUtil.DEFAULT_DATE_FORMATS);
+    IndexSchema schema = h.getCore().getLatestSchema();
+    SolrContentHandler contentHandler =
+      contentHandlerFactory.createSolrContentHandler(metadata, new MapSolrParams(new HashMap()), schema);
+    SolrInputDocument doc = contentHandler.newDocument();
+    assertEquals("foobar", doc.getFieldValue(fieldName).toString());
+  }
+
   /**
    * Returns string "foobar" with illegal characters interspersed.
    */
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.solrcell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class StripNonCharSolrContentHandlerFactoryTest {
+
+  @Test
+  public void testTrimAndStripNonCharCodepoints() throws Exception {
+    String input = "abc";
+    assertSame(input, StripNonCharSolrContentHandlerFactory.trimAndStripNonCharCodepoints(input));
+    assertTrimAndStrip("", "");
+    assertTrimAndStrip("", " \t\n ");
+    assertTrimAndStrip("abc", " \tabc\r\n");
+    assertTrimAndStrip("a\tb\nc", "a\tb\nc");
+    assertTrimAndStrip("ab", "a\u0001b");
+    assertTrimAndStrip("abc", "\u0001abc\u001F"); // control characters are trimmed first
+    assertTrimAndStrip("ab", "a\uFFFE\uFDD5b\uFFFF");
+    assertTrimAndStrip("", "\uFFFF");
+    
+    // whitespace that only becomes leading or trailing after stripping isn't trimmed
+    assertTrimAndStrip(" abc", "\uFFFF abc");
+    assertTrimAndStrip("abc ", "abc \uFFFF");
+    assertTrimAndStrip(" ", " \uFFFF \uFFFF ");
+  }
+
+  private void assertTrimAndStrip(String expected, String input) {
+    assertEquals(expected, StripNonCharSolrContentHandlerFactory.trimAndStripNonCharCodepoints(input));
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.solr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.FastOutputStream;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import com.cloudera.cdk.morphline.api.Record;
+
+/**
+ * Encodes records straight into the javabin wire format of a Solr update request, without
+ * materializing an intermediate {@link org.apache.solr.common.SolrInputDocument} per record.
+ *
+ * The encoding is the same as the one produced by
+ * {@link org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec} for an
+ * {@link org.apache.solr.client.solrj.request.UpdateRequest} containing the equivalent documents,
+ * i.e. a named list with the (empty) request params followed by an iterator over the documents.
+ * Values of types that javabin doesn't know are sent as strings, like the XML request writer does.
+ */
+final class JavaBinUpdateBuffer {
+
+  private ExposedByteArrayOutputStream bytes;
+  private FastOutputStream out;
+  private JavaBinCodec codec;
+  private int numDocs;
+
+  private static final byte VERSION = 2; // same as JavaBinCodec.VERSION, which isn't public
+  private static final String CONTENT_TYPE = "application/javabin";
+  private static final String UPDATE_PATH = "/update";
+
+  private static final JavaBinCodec.ObjectResolver TO_STRING_RESOLVER = new JavaBinCodec.ObjectResolver() {
+    @Override
+    public Object resolve(Object o, JavaBinCodec codec) {
+      return o.toString();
+    }
+  };
+
+  /**
+   * Returns whether the given server handles the requests returned by {@link #toUpdateRequest()}
+   * like documents added via {@link SolrServer#add(java.util.Collection)}. This is not the case for
+   * a {@link CloudSolrServer}, which only routes an {@link UpdateRequest} to the shard leaders, and
+   * sends any other request to a single random node, nor for a {@link ConcurrentUpdateSolrServer},
+   * which only queues an {@link UpdateRequest} and sends any other request synchronously.
+   */
+  public static boolean isSupportedBy(SolrServer server) {
+    return !(server instanceof CloudSolrServer || server instanceof ConcurrentUpdateSolrServer);
+  }
+
+  /** Returns the number of records added since the last call to {@link #toUpdateRequest()} */
+  public int size() {
+    return numDocs;
+  }
+
+  /** Appends the given record as a document, with field boosts taken from the given map */
+  public void add(Record record, Map<String, Float> boosts) throws IOException {
+    if (codec == null) {
+      begin();
+    }
+    Map<String, Collection<Object>> fields = record.getFields().asMap();
+    codec.writeTag(JavaBinCodec.SOLRINPUTDOC, fields.size());
+    codec.writeFloat(1.0f); // document boost
+    for (Map.Entry<String, Collection<Object>> entry : fields.entrySet()) {
+      String key = entry.getKey();
+      if (boosts.size() > 0) {
+        Float boost = boosts.get(key);
+        if (boost != null && boost.floatValue() != 1.0f) {
+          codec.writeFloat(boost.floatValue()); // field boost precedes the field name
+        }
+      }
+      codec.writeExternString(key); // field names are sent once per request, then referenced
+      codec.writeVal(entry.getValue());
+    }
+    numDocs++;
+  }
+
+  /**
+   * Returns an update request that sends the documents added so far, and resets this buffer. The
+   * request remains valid after subsequent calls to {@link #add(Record, Map)}.
+   */
+  public AbstractUpdateRequest toUpdateRequest() throws IOException {
+    if (codec == null) {
+      begin();
+    }
+    codec.writeVal(JavaBinCodec.END_OBJ); // end of document iterator
+    out.flushBuffer();
+    JavaBinUpdateRequest request = new JavaBinUpdateRequest(bytes);
+    codec = null;
+    out = null;
+    bytes = null;
+    numDocs = 0;
+    return request;
+  }
+
+  /** Discards the documents added so far */
+  public void clear() {
+    codec = null;
+    out = null;
+    bytes = null;
+    numDocs = 0;
+  }
+
+  private void begin() throws IOException {
+    bytes = new ExposedByteArrayOutputStream();
+    out = FastOutputStream.wrap(bytes);
+    codec = new JavaBinCodec(TO_STRING_RESOLVER); // fresh codec per request as extern strings are per stream
+    codec.init(out);
+    out.writeByte(VERSION);
+    codec.writeTag(JavaBinCodec.NAMED_LST, 2);
+    codec.writeExternString("params");
+    codec.writeNamedList(new NamedList());
+    codec.writeExternString("docs");
+    codec.writeTag(JavaBinCodec.ITERATOR);
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static final class JavaBinUpdateRequest extends AbstractUpdateRequest {
+
+    private final ContentStream stream;
+
+    public JavaBinUpdateRequest(ExposedByteArrayOutputStream bytes) {
+      super(METHOD.POST, UPDATE_PATH);
+      this.stream = new JavaBinContentStream(bytes);
+    }
+
+    @Override
+    public Collection<ContentStream> getContentStreams() {
+      return Collections.singletonList(stream);
+    }
+  }
+
+
+  private static final class JavaBinContentStream extends ContentStreamBase {
+
+    private final ExposedByteArrayOutputStream bytes;
+
+    public JavaBinContentStream(ExposedByteArrayOutputStream bytes) {
+      this.bytes = bytes;
+      this.contentType = CONTENT_TYPE;
+      this.size = Long.valueOf(bytes.size());
+      this.name = "javabin";
+      this.sourceInfo = "morphline";
+    }
+
+    @Override
+    public InputStream getStream() {
+      return bytes.toInputStream(); // no copy
+    }
+  }
+
+
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream() {
+      super(8 * 1024);
+    }
+
+    public InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+}
@@ -16,9 +16,11 @@
 package com.cloudera.cdk.morphline.solr;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.solr.client.solrj.SolrServerException;
@@ -26,6 +28,7 @@ import org.apache.solr.common.SolrInputDocument;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
@@ -39,6 +42,15 @@ import com.typesafe.config.ConfigFactory;
 
 /**
  * A command that loads a record into a SolrServer or MapReduce SolrOutputFormat.
+ * 
+ * If <code>encodeJavaBin</code> is true and the loader is a {@link RecordDocumentLoader}, the
+ * record is encoded straight into a javabin update request instead of first being converted into a
+ * {@link SolrInputDocument}. This isn't supported for loaders whose SolrServer would handle such
+ * requests differently from added documents: a CloudSolrServer sends them to a random node instead of
+ * routing the documents to their shard leaders, and a ConcurrentUpdateSolrServer sends them
+ * synchronously instead of queueing them. Hence a solrLocator with a <code>zkHost</code> or a
+ * <code>solrUrl</code> can't be combined with <code>encodeJavaBin : true</code>, and such a
+ * morphline fails to compile.
  */
 public final class LoadSolrBuilder implements CommandBuilder {
 
@@ -60,6 +72,7 @@ public final class LoadSolrBuilder implements CommandBuilder {
     
     private final DocumentLoader loader;
     private final Map<String, Float> boosts = new HashMap();
+    private final boolean encodeJavaBin;
     private final Timer elapsedTime;    
     
     public LoadSolr(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
@@ -74,6 +87,12 @@ public final class LoadSolrBuilder implements CommandBuilder {
         float boost = Float.parseFloat(entry.getValue().toString().trim());
         boosts.put(fieldName, boost);
       }
+      this.encodeJavaBin = getConfigs().getBoolean(config, "encodeJavaBin", false);
+      if (encodeJavaBin && !(loader instanceof RecordDocumentLoader 
+          && ((RecordDocumentLoader) loader).isRecordLoadingSupported())) {
+        throw new MorphlineCompilationException(
+            "encodeJavaBin is not supported by the loader of this solrLocator: " + loader, config);
+      }
       validateArguments();
       this.elapsedTime = getTimer(Metrics.ELAPSED_TIME);
     }
@@ -123,9 +142,12 @@ public final class LoadSolrBuilder implements CommandBuilder {
     @Override
     protected boolean doProcess(Record record) {
       Timer.Context timerContext = elapsedTime.time();
-      SolrInputDocument doc = convert(record);
       try {
-        loader.load(doc);
+        if (encodeJavaBin) {
+          ((RecordDocumentLoader) loader).load(record, boosts);
+        } else {
+          loader.load(convert(record));
+        }
       } catch (IOException e) {
         throw new MorphlineRuntimeException(e);
       } catch (SolrServerException e) {
@@ -143,11 +165,32 @@ public final class LoadSolrBuilder implements CommandBuilder {
       SolrInputDocument doc = new SolrInputDocument(new HashMap(2 * map.size()));
       for (Map.Entry<String, Collection<Object>> entry : map.entrySet()) {
         String key = entry.getKey();
-        doc.setField(key, entry.getValue(), getBoost(key));
+        doc.setField(key, toStrings(entry.getValue()), getBoost(key));
       }
       return doc;
     }
 
+    /**
+     * Returns the given values, with CharSequences that aren't Strings converted into Strings. Such
+     * values may be views into buffers that are reused for the next record (e.g. the tokens emitted
+     * by tokenizeText with reuseTokens : true), whereas the loader may hold the document until its
+     * batch is sent.
+     */
+    private Collection<Object> toStrings(Collection<Object> values) {
+      List<Object> copy = null;
+      int i = 0;
+      for (Object value : values) {
+        if (value instanceof CharSequence && !(value instanceof String)) {
+          if (copy == null) {
+            copy = new ArrayList(values);
+          }
+          copy.set(i, value.toString());
+        }
+        i++;
+      }
+      return copy == null ? values : copy;
+    }
+
     private float getBoost(String key) {
       if (boosts.size() > 0) {
         Float boost = boosts.get(key);
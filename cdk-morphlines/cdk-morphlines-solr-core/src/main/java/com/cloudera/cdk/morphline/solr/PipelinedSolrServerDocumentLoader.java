@@ -0,0 +1,344 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.solr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.response.SolrPingResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.cdk.morphline.api.Record;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A vehicle to load a list of Solr documents into a local or remote {@link SolrServer}, with up to
+ * <code>maxInFlightBatches</code> batches being sent concurrently while the caller continues to
+ * fill the next batch.
+ *
+ * A batch that fails is reported by throwing the original exception from a subsequent call to
+ * {@link #load(SolrInputDocument)} or {@link #commitTransaction()} on the calling thread, so failures
+ * are subject to the same exception handling as with {@link SolrServerDocumentLoader}. Once
+ * commitTransaction() returns, all batches of the transaction have been acknowledged.
+ *
+ * If <code>targetBatchLatencyNanos</code> is positive, the batch size is adapted to the observed
+ * per document round trip time, such that a batch takes approximately the target latency, within
+ * the bounds of one and <code>maxBatchSize</code> documents.
+ *
+ * Records passed to {@link #load(Record, Map)} are encoded straight into a javabin update request
+ * on the calling thread, unless {@link #isRecordLoadingSupported()} is false for the given server.
+ */
+public class PipelinedSolrServerDocumentLoader implements RecordDocumentLoader {
+
+  private final SolrServer server; // proxy to local or remote solr server
+  private final int maxInFlightBatches;
+  private final int maxBatchSize;
+  private final long targetBatchLatencyNanos;
+  private final ExecutorService executor;
+  private final CompletionService<BatchResult> completionService;
+  private int numInFlightBatches = 0;
+  private int batchSize;
+  private double avgNanosPerDoc = -1; // exponentially weighted moving average
+  private long numLoadedDocs = 0; // number of documents loaded in the current transaction
+  private List<SolrInputDocument> batch;
+  private final JavaBinUpdateBuffer javaBinBatch = new JavaBinUpdateBuffer();
+
+  private static final double SMOOTHING_FACTOR = 0.2;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedSolrServerDocumentLoader.class);
+
+  public PipelinedSolrServerDocumentLoader(SolrServer server, int batchSize, int maxInFlightBatches) {
+    this(server, batchSize, maxInFlightBatches, 0, batchSize);
+  }
+
+  public PipelinedSolrServerDocumentLoader(SolrServer server, int batchSize, int maxInFlightBatches,
+      long targetBatchLatencyNanos, int maxBatchSize) {
+
+    if (server == null) {
+      throw new IllegalArgumentException("solr server must not be null");
+    }
+    this.server = server;
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be a positive number: " + batchSize);
+    }
+    this.batchSize = batchSize;
+    if (maxInFlightBatches <= 0) {
+      throw new IllegalArgumentException("maxInFlightBatches must be a positive number: " + maxInFlightBatches);
+    }
+    this.maxInFlightBatches = maxInFlightBatches;
+    if (maxBatchSize < batchSize) {
+      throw new IllegalArgumentException("maxBatchSize must not be less than batchSize: " + maxBatchSize);
+    }
+    this.maxBatchSize = maxBatchSize;
+    this.targetBatchLatencyNanos = targetBatchLatencyNanos;
+    this.executor = Executors.newFixedThreadPool(maxInFlightBatches,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("solr-document-loader-%d").build());
+    this.completionService = new ExecutorCompletionService(executor);
+    this.batch = new ArrayList(batchSize);
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    LOGGER.trace("beginTransaction");
+    awaitAllQuietly();
+    batch.clear();
+    javaBinBatch.clear();
+    numLoadedDocs = 0;
+  }
+
+  @Override
+  public void load(SolrInputDocument doc) throws IOException, SolrServerException {
+    LOGGER.trace("load doc: {}", doc);
+    if (javaBinBatch.size() > 0) {
+      loadJavaBinBatch(); // preserve load order
+    }
+    batch.add(doc);
+    if (batch.size() >= batchSize) {
+      loadBatch();
+    }
+  }
+
+  @Override
+  public void load(Record record, Map<String, Float> boosts) throws IOException, SolrServerException {
+    LOGGER.trace("load record: {}", record);
+    if (batch.size() > 0) {
+      loadBatch(); // preserve load order
+    }
+    javaBinBatch.add(record, boosts);
+    if (javaBinBatch.size() >= batchSize) {
+      loadJavaBinBatch();
+    }
+  }
+
+  @Override
+  public void commitTransaction() throws SolrServerException, IOException {
+    LOGGER.trace("commitTransaction");
+    if (batch.size() > 0) {
+      loadBatch();
+    }
+    if (javaBinBatch.size() > 0) {
+      loadJavaBinBatch();
+    }
+    awaitAll();
+    if (numLoadedDocs > 0) {
+      if (server instanceof ConcurrentUpdateSolrServer) {
+        ((ConcurrentUpdateSolrServer) server).blockUntilFinished();
+      }
+    }
+  }
+
+  private void loadBatch() throws SolrServerException, IOException {
+    awaitFreeSlot();
+    final List<SolrInputDocument> docs = batch;
+    batch = new ArrayList(batchSize);
+    numLoadedDocs += docs.size();
+    completionService.submit(new Callable<BatchResult>() {
+      @Override
+      public BatchResult call() throws Exception {
+        long start = System.nanoTime();
+        server.add(docs);
+        return new BatchResult(docs.size(), System.nanoTime() - start);
+      }
+    });
+    numInFlightBatches++;
+  }
+
+  private void loadJavaBinBatch() throws SolrServerException, IOException {
+    awaitFreeSlot();
+    final int numDocs = javaBinBatch.size();
+    final AbstractUpdateRequest request = javaBinBatch.toUpdateRequest();
+    numLoadedDocs += numDocs;
+    completionService.submit(new Callable<BatchResult>() {
+      @Override
+      public BatchResult call() throws Exception {
+        long start = System.nanoTime();
+        request.process(server);
+        return new BatchResult(numDocs, System.nanoTime() - start);
+      }
+    });
+    numInFlightBatches++;
+  }
+
+  @Override
+  public boolean isRecordLoadingSupported() {
+    return JavaBinUpdateBuffer.isSupportedBy(server);
+  }
+
+  /** Harvests batches that completed in the meantime, then waits for a free slot */
+  private void awaitFreeSlot() throws SolrServerException, IOException {
+    Future<BatchResult> future;
+    while ((future = completionService.poll()) != null) {
+      complete(future);
+    }
+    while (numInFlightBatches >= maxInFlightBatches) {
+      complete(take());
+    }
+  }
+
+  /** Waits for all outstanding batches, then throws the exception of the first failed batch, if any */
+  private void awaitAll() throws SolrServerException, IOException {
+    Throwable firstFailure = null;
+    while (numInFlightBatches > 0) {
+      try {
+        complete(take());
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (Throwable t) {
+        if (firstFailure == null) {
+          firstFailure = t;
+        }
+      }
+    }
+    if (firstFailure != null) {
+      rethrow(firstFailure);
+    }
+  }
+
+  /** Waits for all outstanding batches, merely logging failures */
+  private void awaitAllQuietly() throws IOException {
+    while (numInFlightBatches > 0) {
+      try {
+        complete(take());
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (Throwable t) {
+        LOGGER.warn("Ignoring failure of batch that was sent before the transaction ended", t);
+      }
+    }
+  }
+
+  private Future<BatchResult> take() throws InterruptedIOException {
+    try {
+      return completionService.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Solr response");
+    }
+  }
+
+  private void complete(Future<BatchResult> future) throws SolrServerException, IOException {
+    numInFlightBatches--;
+    BatchResult result;
+    try {
+      result = future.get();
+    } catch (InterruptedException e) { // can't happen as the future is done
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Solr response");
+    } catch (ExecutionException e) {
+      rethrow(e.getCause());
+      return;
+    }
+    adaptBatchSize(result);
+  }
+
+  private void adaptBatchSize(BatchResult result) {
+    if (targetBatchLatencyNanos <= 0 || result.numDocs == 0) {
+      return;
+    }
+    double nanosPerDoc = (double) result.elapsedNanos / result.numDocs;
+    if (avgNanosPerDoc < 0) {
+      avgNanosPerDoc = nanosPerDoc;
+    } else {
+      avgNanosPerDoc = SMOOTHING_FACTOR * nanosPerDoc + (1 - SMOOTHING_FACTOR) * avgNanosPerDoc;
+    }
+    long size = Math.round(targetBatchLatencyNanos / Math.max(1.0, avgNanosPerDoc));
+    batchSize = (int) Math.max(1, Math.min(maxBatchSize, size));
+    LOGGER.trace("batchSize: {}", batchSize);
+  }
+
+  private void rethrow(Throwable t) throws SolrServerException, IOException {
+    if (t instanceof SolrServerException) {
+      throw (SolrServerException) t;
+    } else if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    } else {
+      throw new SolrServerException(t);
+    }
+  }
+
+  /** Returns the current, possibly adapted, number of documents per batch */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  @Override
+  public UpdateResponse rollbackTransaction() throws SolrServerException, IOException {
+    LOGGER.trace("rollback");
+    awaitAllQuietly();
+    batch.clear();
+    javaBinBatch.clear();
+    if (!(server instanceof CloudSolrServer)) {
+      return server.rollback();
+    } else {
+      return new UpdateResponse();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    LOGGER.trace("shutdown");
+    executor.shutdownNow();
+    server.shutdown();
+  }
+
+  @Override
+  public SolrPingResponse ping() throws SolrServerException, IOException {
+    LOGGER.trace("ping");
+    return server.ping();
+  }
+
+  public SolrServer getSolrServer() {
+    return server;
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static final class BatchResult {
+
+    private final int numDocs;
+    private final long elapsedNanos;
+
+    public BatchResult(int numDocs, long elapsedNanos) {
+      this.numDocs = numDocs;
+      this.elapsedNanos = elapsedNanos;
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.solr;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrServerException;
+
+import com.cloudera.cdk.morphline.api.Record;
+
+/**
+ * A {@link DocumentLoader} that can also load a record directly, i.e. without the caller first
+ * converting the record into a {@link org.apache.solr.common.SolrInputDocument}.
+ */
+public interface RecordDocumentLoader extends DocumentLoader {
+
+  /**
+   * Loads the given record into the destination, as a document with one field per record field,
+   * boosted by the given field boosts; fields without a boost have a boost of 1.0.
+   */
+  public void load(Record record, Map<String, Float> boosts) throws IOException, SolrServerException;
+
+  /**
+   * Returns false if loading records via {@link #load(Record, Map)} would lose behaviour that
+   * {@link #load(org.apache.solr.common.SolrInputDocument)} gets from the underlying SolrServer, in
+   * which case callers should convert records into documents instead.
+   */
+  public boolean isRecordLoadingSupported();
+
+}
@@ -18,6 +18,9 @@ package com.cloudera.cdk.morphline.solr;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -39,6 +42,10 @@ import com.typesafe.config.Config;
  * <p>
  * Recall that Solr throws an exception on any attempt to load a document that contains a field that
  * isn't specified in schema.xml.
+ * <p>
+ * The decision for a given field name (keep, delete or rename) is remembered, so for the typically
+ * small and stable set of field names of a stream the schema lookup, which involves matching
+ * dynamic field patterns, happens only once per field name.
  */
 public final class SanitizeUnknownSolrFieldsBuilder implements CommandBuilder {
 
@@ -60,6 +67,12 @@ public final class SanitizeUnknownSolrFieldsBuilder implements CommandBuilder {
     
     private final IndexSchema schema;
     private final String renameToPrefix;
+    private final Map<String, Object> decisions = new HashMap(); // field name -> KEEP, DROP or new name
+    private final List<Object> renames = new ArrayList(); // cached; pairs of new name and values
+    
+    private static final Object KEEP = new Object();
+    private static final Object DROP = new Object();
+    private static final int MAX_CACHE_SIZE = 10000;
         
     public SanitizeUnknownSolrFields(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
@@ -78,20 +91,45 @@ public final class SanitizeUnknownSolrFieldsBuilder implements CommandBuilder {
     
     @Override
     protected boolean doProcess(Record record) {
-      Collection<Map.Entry> entries = new ArrayList<Map.Entry>(record.getFields().asMap().entrySet());
-      for (Map.Entry<String, Collection<Object>> entry : entries) {
-        String key = entry.getKey();
-        if (schema.getFieldOrNull(key) == null) {
-          LOG.debug("Sanitizing unknown Solr field: {}", key);
-          Collection values = entry.getValue();
-          if (renameToPrefix != null) {
-            record.getFields().putAll(renameToPrefix + key, values);
+      Iterator<Map.Entry<String, Collection<Object>>> iter = record.getFields().asMap().entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<String, Collection<Object>> entry = iter.next();
+        Object decision = getDecision(entry.getKey());
+        if (decision != KEEP) {
+          LOG.debug("Sanitizing unknown Solr field: {}", entry.getKey());
+          if (decision != DROP) { 
+            // can't add fields while iterating, so defer the rename
+            renames.add(decision);
+            renames.add(new ArrayList(entry.getValue()));
           }
-          values.clear(); // implicitly removes key from record
+          iter.remove();
         }
       }
+      if (renames.size() > 0) {
+        for (int i = 0; i < renames.size(); i += 2) {
+          record.getFields().putAll((String) renames.get(i), (Collection) renames.get(i + 1));
+        }
+        renames.clear();
+      }
       return super.doProcess(record);
     }
     
+    private Object getDecision(String key) {
+      Object decision = decisions.get(key);
+      if (decision == null) {
+        if (schema.getFieldOrNull(key) != null) {
+          decision = KEEP;
+        } else if (renameToPrefix != null) {
+          decision = renameToPrefix + key;
+        } else {
+          decision = DROP;
+        }
+        if (decisions.size() < MAX_CACHE_SIZE) {
+          decisions.put(key, decision);
+        }
+      }
+      return decision;
+    }
+    
   }
 }
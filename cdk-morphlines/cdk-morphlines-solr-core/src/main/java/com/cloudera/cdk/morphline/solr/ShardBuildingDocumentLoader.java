@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.SolrPingResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.cdk.morphline.api.Record;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A vehicle to build fresh index shards on local disk, without sending documents over the network.
+ *
+ * Documents are routed by the hash of their unique key to one of <code>numShards</code> local
+ * {@link EmbeddedSolrServer} cores, using the hash ranges and the {@link CompositeIdRouter} of a
+ * SolrCloud collection that was created with <code>numShards</code> shards, i.e. all id forms the
+ * router supports (<code>id</code>, <code>prefix!id</code>, <code>prefix/bits!id</code>, etc) land in
+ * the shard SolrCloud would pick. Each shard indexes its documents on its own thread. On
+ * {@link #commitTransaction()} all shards are committed and, if <code>maxSegments</code> is
+ * positive, optimized down to that number of segments, in parallel.
+ *
+ * The index of shard <code>i</code> ends up in <code>outputDir/shard&lt;i&gt;/data/index</code>, ready
+ * to be merged or copied into place.
+ */
+public class ShardBuildingDocumentLoader implements RecordDocumentLoader {
+
+  private final List<PipelinedSolrServerDocumentLoader> shards = new ArrayList();
+  private final List<DocRouter.Range> ranges;
+  private final String uniqueKeyFieldName;
+  private final int maxSegments;
+  private final ExecutorService executor;
+
+  private static final String CORE_NAME = "core1";
+
+  /** The router of collections created without an explicit router, i.e. compositeId */
+  private static final CompositeIdRouter ROUTER = (CompositeIdRouter) DocRouter.DEFAULT;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardBuildingDocumentLoader.class);
+
+  public ShardBuildingDocumentLoader(File solrHomeDir, File outputDir, int numShards, String uniqueKeyFieldName,
+      int batchSize, int maxSegments) throws IOException {
+
+    if (numShards <= 0) {
+      throw new IllegalArgumentException("numShards must be a positive number: " + numShards);
+    }
+    if (uniqueKeyFieldName == null) {
+      throw new IllegalArgumentException("uniqueKeyFieldName must not be null");
+    }
+    this.uniqueKeyFieldName = uniqueKeyFieldName;
+    this.maxSegments = maxSegments;
+    this.ranges = ROUTER.partitionRange(numShards, ROUTER.fullRange());
+    File confDir = new File(solrHomeDir, "conf");
+    if (!confDir.isDirectory()) {
+      throw new IllegalArgumentException("Solr conf directory does not exist: " + confDir);
+    }
+    for (int i = 0; i < numShards; i++) {
+      File shardDir = new File(outputDir, "shard" + i);
+      SolrServer server = createEmbeddedSolrServer(confDir, shardDir);
+      shards.add(new PipelinedSolrServerDocumentLoader(server, batchSize, 1)); // one indexing thread per shard
+    }
+    this.executor = Executors.newFixedThreadPool(numShards,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shard-committer-%d").build());
+  }
+
+  /** Creates a core with a copy of the given config and a data dir below the given shard dir */
+  private static SolrServer createEmbeddedSolrServer(File confDir, File shardDir) throws IOException {
+    LOGGER.debug("Creating shard core in dir {}", shardDir);
+    copyDirectory(confDir, new File(shardDir, "conf"));
+    // core discovery mode without any core.properties, i.e. the container starts without cores
+    Files.write("<solr></solr>", new File(shardDir, "solr.xml"), Charsets.UTF_8);
+    CoreContainer container = new CoreContainer(shardDir.getAbsolutePath());
+    container.load();
+    Properties props = new Properties();
+    props.setProperty(CoreDescriptor.CORE_DATADIR, new File(shardDir, "data").getAbsolutePath());
+    CoreDescriptor descriptor = new CoreDescriptor(container, CORE_NAME, shardDir.getAbsolutePath(), props);
+    SolrCore core = container.create(descriptor);
+    container.register(core, false);
+    return new EmbeddedSolrServer(container, CORE_NAME);
+  }
+
+  private static void copyDirectory(File src, File dst) throws IOException {
+    if (src.isDirectory()) {
+      if (!dst.isDirectory() && !dst.mkdirs()) {
+        throw new IOException("Cannot create directory: " + dst);
+      }
+      String[] children = src.list();
+      if (children == null) {
+        throw new IOException("Cannot list directory: " + src);
+      }
+      for (String child : children) {
+        copyDirectory(new File(src, child), new File(dst, child));
+      }
+    } else {
+      Files.copy(src, dst);
+    }
+  }
+
+  @Override
+  public void beginTransaction() throws IOException, SolrServerException {
+    LOGGER.trace("beginTransaction");
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      shard.beginTransaction();
+    }
+  }
+
+  @Override
+  public void load(SolrInputDocument doc) throws IOException, SolrServerException {
+    Object id = doc.getFieldValue(uniqueKeyFieldName);
+    getShard(id, doc).load(doc);
+  }
+
+  @Override
+  public void load(Record record, Map<String, Float> boosts) throws IOException, SolrServerException {
+    Object id = record.getFirstValue(uniqueKeyFieldName);
+    getShard(id, null).load(record, boosts);
+  }
+
+  private PipelinedSolrServerDocumentLoader getShard(Object id, SolrInputDocument doc) {
+    if (id == null) {
+      throw new IllegalArgumentException("Document is missing mandatory uniqueKey field: " + uniqueKeyFieldName);
+    }
+    int hash = ROUTER.sliceHash(id.toString(), doc, null, null);
+    for (int i = 0; i < ranges.size(); i++) {
+      if (ranges.get(i).includes(hash)) {
+        return shards.get(i);
+      }
+    }
+    throw new IllegalStateException("No shard found for hash: " + hash); // can't happen
+  }
+
+  @Override
+  public boolean isRecordLoadingSupported() {
+    return true; // the shards are embedded servers
+  }
+
+  @Override
+  public void commitTransaction() throws IOException, SolrServerException {
+    LOGGER.trace("commitTransaction");
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      shard.commitTransaction(); // shards keep indexing concurrently while we wait for the first one
+    }
+    List<Future<UpdateResponse>> futures = new ArrayList();
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      final SolrServer server = shard.getSolrServer();
+      futures.add(executor.submit(new Callable<UpdateResponse>() {
+        @Override
+        public UpdateResponse call() throws Exception {
+          UpdateResponse rsp = server.commit(true, false);
+          if (maxSegments > 0) {
+            rsp = server.optimize(true, false, maxSegments); // merge segments
+          }
+          return rsp;
+        }
+      }));
+    }
+    Throwable firstFailure = null;
+    for (Future<UpdateResponse> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while committing shards", e);
+      } catch (ExecutionException e) {
+        if (firstFailure == null) {
+          firstFailure = e.getCause();
+        }
+      }
+    }
+    if (firstFailure instanceof SolrServerException) {
+      throw (SolrServerException) firstFailure;
+    } else if (firstFailure instanceof IOException) {
+      throw (IOException) firstFailure;
+    } else if (firstFailure instanceof RuntimeException) {
+      throw (RuntimeException) firstFailure;
+    } else if (firstFailure instanceof Error) {
+      throw (Error) firstFailure;
+    } else if (firstFailure != null) {
+      throw new SolrServerException(firstFailure);
+    }
+  }
+
+  @Override
+  public UpdateResponse rollbackTransaction() throws IOException, SolrServerException {
+    LOGGER.trace("rollback");
+    UpdateResponse rsp = new UpdateResponse();
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      rsp = shard.rollbackTransaction();
+    }
+    return rsp;
+  }
+
+  @Override
+  public void shutdown() {
+    LOGGER.trace("shutdown");
+    executor.shutdownNow();
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      shard.shutdown(); // also shuts down the core container
+    }
+  }
+
+  @Override
+  public SolrPingResponse ping() throws IOException, SolrServerException {
+    LOGGER.trace("ping");
+    SolrPingResponse rsp = null;
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      rsp = shard.ping();
+    }
+    return rsp;
+  }
+
+  /** Returns the embedded Solr server of each shard, in hash range order */
+  public List<SolrServer> getSolrServers() {
+    List<SolrServer> servers = new ArrayList(shards.size());
+    for (PipelinedSolrServerDocumentLoader shard : shards) {
+      servers.add(shard.getSolrServer());
+    }
+    return Collections.unmodifiableList(servers);
+  }
+
+}
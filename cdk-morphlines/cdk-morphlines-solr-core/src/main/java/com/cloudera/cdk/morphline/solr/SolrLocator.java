@@ -18,15 +18,19 @@ package com.cloudera.cdk.morphline.solr;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.cloud.SolrZkClient;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrResourceLoader;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.util.SystemIdResolver;
 import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
@@ -39,6 +43,9 @@ import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
@@ -58,9 +65,21 @@ public class SolrLocator {
   private String solrUrl;
   private String solrHomeDir;
   private int batchSize = 1000;
+  private int maxInFlightBatches = 0; // zero indicates synchronous loading
+  private long targetBatchLatency = 0; // nanoseconds; zero indicates fixed batch size
+  private int maxBatchSize = 0; // zero indicates 10 * batchSize
+  private String shardOutputDir; // non-empty indicates building shards locally
+  private int numShards = 1;
+  private int maxSegments = 1; // zero indicates no optimize on commit
   
   private static final Logger LOG = LoggerFactory.getLogger(SolrLocator.class);
 
+  /**
+   * Parsed schemas shared by all Solr commands in this JVM, keyed by config location and version,
+   * e.g. the ZooKeeper config name plus its latest zxid, or the solrHomeDir plus file mtimes
+   */
+  private static final Cache<String, IndexSchema> INDEX_SCHEMA_CACHE = CacheBuilder.newBuilder().maximumSize(100).build();
+
   protected SolrLocator(MorphlineContext context) {
     Preconditions.checkNotNull(context);
     this.context = context;
@@ -75,6 +94,12 @@ public class SolrLocator {
     solrHomeDir = configs.getString(config, "solrHomeDir", null);
     solrUrl = configs.getString(config, "solrUrl", null);    
     batchSize = configs.getInt(config, "batchSize", batchSize);
+    maxInFlightBatches = configs.getInt(config, "maxInFlightBatches", maxInFlightBatches);
+    targetBatchLatency = configs.getNanoseconds(config, "targetBatchLatency", targetBatchLatency);
+    maxBatchSize = configs.getInt(config, "maxBatchSize", maxBatchSize);
+    shardOutputDir = configs.getString(config, "shardOutputDir", null);
+    numShards = configs.getInt(config, "numShards", numShards);
+    maxSegments = configs.getInt(config, "maxSegments", maxSegments);
     LOG.trace("Constructed solrLocator: {}", this);
     configs.validateArguments(config);
   }
@@ -87,6 +112,10 @@ public class SolrLocator {
       }
     }
     
+    if (shardOutputDir != null && shardOutputDir.length() > 0) {
+      return newShardBuildingLoader();
+    }
+    
     if (zkHost != null && zkHost.length() > 0) {
       if (collectionName == null || collectionName.length() == 0) {
         throw new MorphlineCompilationException("Parameter 'zkHost' requires that you also pass parameter 'collection'", config);
@@ -95,6 +124,10 @@ public class SolrLocator {
         CloudSolrServer cloudSolrServer = new CloudSolrServer(zkHost);
         cloudSolrServer.setDefaultCollection(collectionName);
         cloudSolrServer.connect();
+        if (maxInFlightBatches > 0) {
+          // CloudSolrServer splits each batch by shard leader and sends the parts in parallel
+          return newPipelinedLoader(cloudSolrServer);
+        }
         return new SolrServerDocumentLoader(cloudSolrServer, batchSize);
       } catch (MalformedURLException e) {
         throw new MorphlineRuntimeException(e);
@@ -103,6 +136,10 @@ public class SolrLocator {
       if (solrUrl == null || solrUrl.length() == 0) {
         throw new MorphlineCompilationException("Missing parameter 'solrUrl'", config);
       }
+      if (maxInFlightBatches > 0) {
+        // no need for ConcurrentUpdateSolrServer as the loader itself sends batches concurrently
+        return newPipelinedLoader(new HttpSolrServer(solrUrl));
+      }
       int solrServerNumThreads = 2;
       int solrServerQueueLength = solrServerNumThreads;
       SolrServer server = new SafeConcurrentUpdateSolrServer(solrUrl, solrServerQueueLength, solrServerNumThreads);
@@ -113,6 +150,36 @@ public class SolrLocator {
     }
   }
 
+  private DocumentLoader newPipelinedLoader(SolrServer server) {
+    int max = maxBatchSize > 0 ? maxBatchSize : 10 * batchSize;
+    if (max < batchSize) {
+      throw new MorphlineCompilationException("Parameter 'maxBatchSize' must not be less than 'batchSize'", config);
+    }
+    return new PipelinedSolrServerDocumentLoader(server, batchSize, maxInFlightBatches, targetBatchLatency, max);
+  }
+
+  private DocumentLoader newShardBuildingLoader() {
+    if (solrHomeDir == null || solrHomeDir.length() == 0) {
+      throw new MorphlineCompilationException("Parameter 'shardOutputDir' requires that you also pass parameter 'solrHomeDir'", config);
+    }
+    if (numShards <= 0) {
+      throw new MorphlineCompilationException("Parameter 'numShards' must be a positive number: " + numShards, config);
+    }
+    if (maxSegments < 0) {
+      throw new MorphlineCompilationException("Parameter 'maxSegments' must not be negative: " + maxSegments, config);
+    }
+    SchemaField uniqueKey = getIndexSchema().getUniqueKeyField();
+    if (uniqueKey == null) {
+      throw new MorphlineCompilationException("Parameter 'shardOutputDir' requires a schema with a uniqueKey", config);
+    }
+    try {
+      return new ShardBuildingDocumentLoader(new File(solrHomeDir), new File(shardOutputDir), numShards, 
+          uniqueKey.getName(), batchSize, maxSegments);
+    } catch (IOException e) {
+      throw new MorphlineRuntimeException(e);
+    }
+  }
+
   public IndexSchema getIndexSchema() {
     if (context instanceof SolrMorphlineContext) {    
       IndexSchema schema = ((SolrMorphlineContext)context).getIndexSchema();
@@ -124,7 +191,7 @@ public class SolrLocator {
     
     // If solrHomeDir isn't defined and zkHost and collectionName are defined 
     // then download schema.xml and solrconfig.xml, etc from zk and use that as solrHomeDir
-    String mySolrHomeDir = solrHomeDir;
+    IndexSchema schema;
     if (solrHomeDir == null || solrHomeDir.length() == 0) {
       if (zkHost == null || zkHost.length() == 0) {
         // TODO: implement download from solrUrl if specified
@@ -136,23 +203,69 @@ public class SolrLocator {
         throw new MorphlineCompilationException(
             "Parameter 'zkHost' requires that you also pass parameter 'collection'", config);
       }
-      ZooKeeperDownloader zki = new ZooKeeperDownloader();
-      SolrZkClient zkClient = zki.getZkClient(zkHost);
+      final ZooKeeperDownloader zki = new ZooKeeperDownloader();
+      final SolrZkClient zkClient = zki.getZkClient(zkHost);
       try {
-        String configName = zki.readConfigName(zkClient, collectionName);
-        File downloadedSolrHomeDir = zki.downloadConfigDir(zkClient, configName);
-        mySolrHomeDir = downloadedSolrHomeDir.getAbsolutePath();
+        final String configName = zki.readConfigName(zkClient, collectionName);
+        String version = zki.readConfigVersion(zkClient, configName);
+        
+        // only download and parse the config if it changed since it was last loaded in this JVM
+        schema = getCachedIndexSchema("zk:" + zkHost + "/" + configName + "@" + version, new Callable<IndexSchema>() {
+          @Override
+          public IndexSchema call() {
+            File downloadedSolrHomeDir;
+            try {
+              downloadedSolrHomeDir = zki.downloadConfigDir(zkClient, configName);
+            } catch (KeeperException e) {
+              throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
+            } catch (InterruptedException e) {
+              throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
+            } catch (IOException e) {
+              throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
+            }
+            return loadIndexSchema(downloadedSolrHomeDir.getAbsolutePath());
+          }
+        });
       } catch (KeeperException e) {
         throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
       } catch (InterruptedException e) {
         throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
-      } catch (IOException e) {
-        throw new MorphlineCompilationException("Cannot download schema.xml from ZooKeeper", config, e);
       } finally {
         zkClient.close();
       }
+    } else {
+      final String mySolrHomeDir = solrHomeDir;
+      File confDir = new File(mySolrHomeDir, "conf");
+      String version = new File(confDir, "schema.xml").lastModified() + ":" 
+          + new File(confDir, "solrconfig.xml").lastModified();
+      
+      // only parse the config if it changed since it was last loaded in this JVM
+      schema = getCachedIndexSchema("file:" + new File(mySolrHomeDir).getAbsolutePath() + "@" + version, 
+          new Callable<IndexSchema>() {
+            @Override
+            public IndexSchema call() {
+              return loadIndexSchema(mySolrHomeDir);
+            }
+          });
     }
-    
+    validateSchema(schema);
+    return schema;
+  }
+  
+  private IndexSchema getCachedIndexSchema(String key, Callable<IndexSchema> loader) {
+    try {
+      return INDEX_SCHEMA_CACHE.get(key, loader);
+    } catch (ExecutionException e) {
+      throw new MorphlineRuntimeException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+  
+  private IndexSchema loadIndexSchema(String mySolrHomeDir) {
     LOG.debug("SolrLocator loading IndexSchema from dir {}", mySolrHomeDir);
     try {
       SolrResourceLoader loader = new SolrResourceLoader(mySolrHomeDir);
@@ -160,9 +273,7 @@ public class SolrLocator {
       InputSource is = new InputSource(loader.openSchema("schema.xml"));
       is.setSystemId(SystemIdResolver.createSystemIdFromResourceName("schema.xml"));
       
-      IndexSchema schema = new IndexSchema(solrConfig, "schema.xml", is);
-      validateSchema(schema);
-      return schema;
+      return new IndexSchema(solrConfig, "schema.xml", is);
     } catch (ParserConfigurationException e) {
       throw new MorphlineRuntimeException(e);
     } catch (IOException e) {
@@ -197,7 +308,13 @@ public class SolrLocator {
         " zkHost : " + toJson(zkHost) + ", " +
         " solrUrl : " + toJson(solrUrl) + ", " +
         " solrHomeDir : " + toJson(solrHomeDir) + ", " +
-        " batchSize : " + toJson(batchSize) + " " +
+        " batchSize : " + toJson(batchSize) + ", " +
+        " maxInFlightBatches : " + toJson(maxInFlightBatches) + ", " +
+        " targetBatchLatency : " + toJson(targetBatchLatency + "ns") + ", " +
+        " maxBatchSize : " + toJson(maxBatchSize) + ", " +
+        " shardOutputDir : " + toJson(shardOutputDir) + ", " +
+        " numShards : " + toJson(numShards) + ", " +
+        " maxSegments : " + toJson(maxSegments) + " " +
         "}";
     return ConfigFactory.parseString(json);
   }
@@ -247,5 +364,53 @@ public class SolrLocator {
   public void setBatchSize(int batchSize) {
     this.batchSize = batchSize;
   }
+
+  public int getMaxInFlightBatches() {
+    return this.maxInFlightBatches;
+  }
+
+  public void setMaxInFlightBatches(int maxInFlightBatches) {
+    this.maxInFlightBatches = maxInFlightBatches;
+  }
+
+  public long getTargetBatchLatency() {
+    return this.targetBatchLatency;
+  }
+
+  public void setTargetBatchLatency(long targetBatchLatency) {
+    this.targetBatchLatency = targetBatchLatency;
+  }
+
+  public int getMaxBatchSize() {
+    return this.maxBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+  
+  public String getShardOutputDir() {
+    return this.shardOutputDir;
+  }
+
+  public void setShardOutputDir(String shardOutputDir) {
+    this.shardOutputDir = shardOutputDir;
+  }
+
+  public int getNumShards() {
+    return this.numShards;
+  }
+
+  public void setNumShards(int numShards) {
+    this.numShards = numShards;
+  }
+
+  public int getMaxSegments() {
+    return this.maxSegments;
+  }
+
+  public void setMaxSegments(int maxSegments) {
+    this.maxSegments = maxSegments;
+  }
   
 }
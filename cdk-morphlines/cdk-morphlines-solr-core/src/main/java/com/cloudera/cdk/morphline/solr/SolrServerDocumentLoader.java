@@ -18,6 +18,7 @@ package com.cloudera.cdk.morphline.solr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -29,15 +30,21 @@ import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cloudera.cdk.morphline.api.Record;
+
 /**
  * A vehicle to load a list of Solr documents into a local or remote {@link SolrServer}.
+ * 
+ * Records passed to {@link #load(Record, Map)} are encoded straight into a javabin update request,
+ * unless {@link #isRecordLoadingSupported()} is false for the given server.
  */
-public class SolrServerDocumentLoader implements DocumentLoader {
+public class SolrServerDocumentLoader implements RecordDocumentLoader {
 
   private final SolrServer server; // proxy to local or remote solr server
   private long numLoadedDocs = 0; // number of documents loaded in the current transaction
   private final int batchSize;
   private final List<SolrInputDocument> batch = new ArrayList();
+  private final JavaBinUpdateBuffer javaBinBatch = new JavaBinUpdateBuffer();
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrServerDocumentLoader.class);
 
@@ -56,6 +63,7 @@ public class SolrServerDocumentLoader implements DocumentLoader {
   public void beginTransaction() {
     LOGGER.trace("beginTransaction");
     batch.clear();
+    javaBinBatch.clear();
     numLoadedDocs = 0;
     if (server instanceof SafeConcurrentUpdateSolrServer) {
       ((SafeConcurrentUpdateSolrServer) server).clearException();
@@ -65,18 +73,36 @@ public class SolrServerDocumentLoader implements DocumentLoader {
   @Override
   public void load(SolrInputDocument doc) throws IOException, SolrServerException {
     LOGGER.trace("load doc: {}", doc);
+    if (javaBinBatch.size() > 0) {
+      loadJavaBinBatch(); // preserve load order
+    }
     batch.add(doc);
     if (batch.size() >= batchSize) {
       loadBatch();
     }
   }
 
+  @Override
+  public void load(Record record, Map<String, Float> boosts) throws IOException, SolrServerException {
+    LOGGER.trace("load record: {}", record);
+    if (batch.size() > 0) {
+      loadBatch(); // preserve load order
+    }
+    javaBinBatch.add(record, boosts);
+    if (javaBinBatch.size() >= batchSize) {
+      loadJavaBinBatch();
+    }
+  }
+
   @Override
   public void commitTransaction() throws SolrServerException, IOException {
     LOGGER.trace("commitTransaction");
     if (batch.size() > 0) {
       loadBatch();
     }
+    if (javaBinBatch.size() > 0) {
+      loadJavaBinBatch();
+    }
     if (numLoadedDocs > 0) {
       if (server instanceof ConcurrentUpdateSolrServer) {
         ((ConcurrentUpdateSolrServer) server).blockUntilFinished();
@@ -93,9 +119,20 @@ public class SolrServerDocumentLoader implements DocumentLoader {
     }
   }
 
+  private void loadJavaBinBatch() throws SolrServerException, IOException {
+    numLoadedDocs += javaBinBatch.size();
+    javaBinBatch.toUpdateRequest().process(server);
+  }
+
+  @Override
+  public boolean isRecordLoadingSupported() {
+    return JavaBinUpdateBuffer.isSupportedBy(server);
+  }
+
   @Override
   public UpdateResponse rollbackTransaction() throws SolrServerException, IOException {
     LOGGER.trace("rollback");
+    javaBinBatch.clear();
     if (!(server instanceof CloudSolrServer)) {
       return server.rollback();
     } else {
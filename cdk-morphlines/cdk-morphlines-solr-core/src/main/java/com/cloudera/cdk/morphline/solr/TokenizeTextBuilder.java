@@ -17,9 +17,13 @@ package com.cloudera.cdk.morphline.solr;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -40,6 +44,17 @@ import com.typesafe.config.Config;
 /**
  * A command that uses the embedded Solr/Lucene Analyzer library to generate tokens from a text
  * string, without sending data to a Solr server.
+ * 
+ * The analyzer is the one of the field type of the schema returned by {@link SolrLocator}, and
+ * parsed schemas are shared JVM-wide, so all instances of this command that refer to the same field
+ * type share the same analyzer. The analyzer in turn reuses one token stream chain per thread.
+ * 
+ * Optionally, tokens are emitted as {@link CharSequence} views into a buffer that is reused for the
+ * next record (<code>reuseTokens : true</code>), avoiding a String per token; downstream commands
+ * that retain such tokens beyond the current record must convert them via toString(), as loadSolr
+ * does. Duplicate
+ * tokens within the same input value can be skipped (<code>deduplicate : true</code>), and the
+ * number of tokens added to the output field per record can be capped (<code>maxTokens</code>).
  */
 public final class TokenizeTextBuilder implements CommandBuilder {
 
@@ -62,8 +77,14 @@ public final class TokenizeTextBuilder implements CommandBuilder {
     private final String inputFieldName;
     private final String outputFieldName;
     private final Analyzer analyzer;
-    private final CharTermAttribute token; // cached
+    private final boolean reuseTokens;
+    private final boolean deduplicate;
+    private final int maxTokens;
+    private TokenStream tokenStream; // the analyzer reuses the token stream per thread
+    private CharTermAttribute token; // cached attribute of tokenStream
     private final ReusableStringReader reader = new ReusableStringReader(); // cached
+    private final TokenBuffer tokens = new TokenBuffer(); // cached
+    private final Set<TokenView> seenTokens = new HashSet(); // cached
     
     public TokenizeText(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);
@@ -80,12 +101,12 @@ public final class TokenizeTextBuilder implements CommandBuilder {
       }
       this.analyzer = fieldType.getAnalyzer();
       Preconditions.checkNotNull(analyzer);
-      try { // register CharTermAttribute for later (implicit) reuse
-        this.token = analyzer.tokenStream("content", reader).addAttribute(CharTermAttribute.class);
-      } catch (IOException e) {
-        throw new MorphlineCompilationException("Cannot create token stream", config, e);
+      this.reuseTokens = getConfigs().getBoolean(config, "reuseTokens", false);
+      this.deduplicate = getConfigs().getBoolean(config, "deduplicate", false);
+      this.maxTokens = getConfigs().getInt(config, "maxTokens", Integer.MAX_VALUE);
+      if (maxTokens < 0) {
+        throw new MorphlineCompilationException("maxTokens must not be negative: " + maxTokens, config);
       }
-      Preconditions.checkNotNull(token);
       validateArguments();
     }
 
@@ -93,18 +114,43 @@ public final class TokenizeTextBuilder implements CommandBuilder {
     protected boolean doProcess(Record record) {
       try {
         List outputValues = record.get(outputFieldName);
+        int numTokens = 0;
+        boolean isBuffering = reuseTokens || deduplicate;
+        if (isBuffering) {
+          tokens.clear(); // views handed out for the previous record are no longer valid
+        }
         for (Object value : record.get(inputFieldName)) {
+          if (numTokens >= maxTokens) {
+            break;
+          }
           reader.setValue(value.toString());
-          TokenStream tokenStream = analyzer.tokenStream("content", reader);
-          tokenStream.reset();
-          while (tokenStream.incrementToken()) {
+          TokenStream stream = analyzer.tokenStream("content", reader);
+          if (stream != tokenStream) { // first use of the analyzer on this thread
+            tokenStream = stream;
+            token = stream.addAttribute(CharTermAttribute.class);
+          }
+          stream.reset();
+          while (numTokens < maxTokens && stream.incrementToken()) {
             if (token.length() > 0) { // incrementToken() updates the token!
-              String tokenStr = new String(token.buffer(), 0, token.length());
-              outputValues.add(tokenStr);
+              if (!isBuffering) { // default: copy the token straight into a String
+                outputValues.add(new String(token.buffer(), 0, token.length()));
+                numTokens++;
+                continue;
+              }
+              TokenView view = tokens.add(token.buffer(), token.length());
+              if (deduplicate && !seenTokens.add(view)) {
+                tokens.removeLast(); // duplicate of a previous token of the same value
+                continue;
+              }
+              outputValues.add(reuseTokens ? view : view.toString());
+              numTokens++;
             }
           }
-          tokenStream.end();
-          tokenStream.close();
+          stream.end();
+          stream.close();
+          if (deduplicate) {
+            seenTokens.clear();
+          }
         }
       } catch (IOException e) {
         throw new MorphlineRuntimeException(e);
@@ -117,6 +163,112 @@ public final class TokenizeTextBuilder implements CommandBuilder {
   }
   
   
+  /**
+   * Append-only char buffer of the tokens of the current record, handing out reusable views into
+   * the buffer; {@link #clear()} invalidates all views handed out so far.
+   */
+  private static final class TokenBuffer {
+    
+    private char[] chars = new char[1024];
+    private int size = 0;
+    private final List<TokenView> views = new ArrayList();
+    private int numViews = 0;
+    
+    public TokenView add(char[] buffer, int length) {
+      if (size + length > chars.length) {
+        // views that are already handed out keep referring to the previous array
+        chars = Arrays.copyOf(chars, Math.max(2 * chars.length, size + length));
+      }
+      System.arraycopy(buffer, 0, chars, size, length);
+      TokenView view;
+      if (numViews < views.size()) {
+        view = views.get(numViews);
+      } else {
+        view = new TokenView();
+        views.add(view);
+      }
+      numViews++;
+      view.set(chars, size, length);
+      size += length;
+      return view;
+    }
+    
+    public void removeLast() {
+      numViews--;
+      size -= views.get(numViews).length();
+    }
+    
+    public void clear() {
+      size = 0;
+      numViews = 0;
+    }
+  }
+  
+  
+  /** A read-only window into a char array; equality and hash code are based on the characters */
+  private static final class TokenView implements CharSequence {
+    
+    private char[] chars;
+    private int offset;
+    private int length;
+    
+    public void set(char[] chars, int offset, int length) {
+      this.chars = chars;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if (index < 0 || index >= length) {
+        throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+      }
+      return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return toString().subSequence(start, end);
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof TokenView)) {
+        return false;
+      }
+      TokenView view = (TokenView) other;
+      if (length != view.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (chars[offset + i] != view.chars[view.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    @Override
+    public int hashCode() { // same as String.hashCode()
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        hash = 31 * hash + chars[offset + i];
+      }
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, offset, length);
+    }
+  }
+  
+  
   // Copied from org.apache.lucene.document.Field.java from lucene-4.3.0
   /*
    * Licensed to the Apache Software Foundation (ASF) under one or more
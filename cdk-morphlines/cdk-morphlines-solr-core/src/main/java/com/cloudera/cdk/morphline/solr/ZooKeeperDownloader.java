@@ -29,6 +29,7 @@ import org.apache.solr.common.cloud.ZkNodeProps;
 import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,6 +99,27 @@ final class ZooKeeperDownloader {
     return configName;
   }
 
+  /**
+   * Returns a string that changes whenever a file is added to, removed from or modified in the
+   * top level of the given config directory in ZK, such as schema.xml or solrconfig.xml
+   */
+  public String readConfigVersion(SolrZkClient zkClient, String configName)
+  throws KeeperException, InterruptedException {
+    String path = ZkController.CONFIGS_ZKNODE + "/" + configName;
+    Stat dirStat = zkClient.exists(path, null, true);
+    if (dirStat == null) {
+      throw new IllegalArgumentException("Specified config does not exist in ZooKeeper:" + configName);
+    }
+    long maxZxid = dirStat.getPzxid(); // changes on child creation and deletion
+    for (String child : zkClient.getChildren(path, null, true)) {
+      Stat stat = zkClient.exists(path + "/" + child, null, true);
+      if (stat != null) {
+        maxZxid = Math.max(maxZxid, Math.max(stat.getMzxid(), stat.getPzxid()));
+      }
+    }
+    return Long.toString(maxZxid);
+  }
+
   /**
    * Download and return the config directory from ZK
    */
@@ -15,14 +15,26 @@
  */
 package com.cloudera.cdk.morphline.solr;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
 import org.junit.Test;
 
+import com.cloudera.cdk.morphline.api.FileUtils;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.Fields;
 import com.cloudera.cdk.morphline.base.Notifications;
+import com.google.common.io.Files;
 
 public class SolrMorphlineTest extends AbstractSolrMorphlineTest {
 
@@ -34,6 +46,17 @@ public class SolrMorphlineTest extends AbstractSolrMorphlineTest {
     assertNotNull(locator.getIndexSchema());
   }
   
+  @Test
+  public void testLoadSchemaIsCached() throws Exception {
+    SolrLocator locator = new SolrLocator(new MorphlineContext.Builder().build());
+    locator.setCollectionName("collection1");
+    locator.setSolrHomeDir("solr/collection1");
+    SolrLocator locator2 = new SolrLocator(new MorphlineContext.Builder().build());
+    locator2.setCollectionName("collection1");
+    locator2.setSolrHomeDir("solr/collection1");
+    assertSame(locator.getIndexSchema(), locator2.getIndexSchema()); // parsed only once per JVM
+  }
+  
   @Test
   public void testLoadSolrBasic() throws Exception {
     //System.setProperty("ENV_SOLR_HOME", testSolrHome + "/collection1");
@@ -55,6 +78,165 @@ public class SolrMorphlineTest extends AbstractSolrMorphlineTest {
     Notifications.notifyShutdown(morphline);
   }
     
+  @Test
+  public void testLoadSolrJavaBin() throws Exception {
+    morphline = createMorphline("test-morphlines/loadSolrJavaBin");    
+    startSession();
+    Notifications.notifyBeginTransaction(morphline);
+    for (int i = 0; i < 3; i++) {
+      Record record = new Record();
+      record.put(Fields.ID, "id" + i);
+      record.put("first_name", "Nadja"); // will be sanitized
+      assertTrue(morphline.process(record));
+    }
+    Notifications.notifyCommitTransaction(morphline);
+    assertEquals(3, collector.getRecords().size());
+    assertEquals(3, queryResultSetSize("*:*"));
+    assertEquals(1, queryResultSetSize("id:id1"));
+    Notifications.notifyRollbackTransaction(morphline);
+    Notifications.notifyShutdown(morphline);
+  }
+    
+  @Test
+  public void testLoadSolrJavaBinUnsupportedByLoader() throws Exception {
+    testServer = new CollectingDocumentLoader(100);
+    try {
+      createMorphline("test-morphlines/loadSolrJavaBin");
+      fail();
+    } catch (MorphlineCompilationException e) {
+      ; // expected
+    }
+    
+    SolrServer concurrentServer = new SafeConcurrentUpdateSolrServer("http://127.0.0.1:8983/solr", 2, 2);
+    try {
+      testServer = new SolrServerDocumentLoader(concurrentServer, 100);
+      createMorphline("test-morphlines/loadSolrJavaBin");
+      fail();
+    } catch (MorphlineCompilationException e) {
+      ; // expected
+    } finally {
+      concurrentServer.shutdown();
+    }
+  }
+    
+  @Test
+  public void testSanitizeUnknownSolrFieldsRename() throws Exception {
+    morphline = createMorphline("test-morphlines/sanitizeUnknownSolrFieldsRename");
+    startSession();
+    for (int i = 0; i < 3; i++) { // the second and third record hit the decision cache
+      Record record = new Record();
+      record.put(Fields.ID, "id" + i);
+      record.put("first_name", "Nadja"); // will be renamed
+      record.put("first_name", "Anna");
+      record.put("ignored_foo", "bar"); // matches a dynamic field
+      collector.reset();
+      assertTrue(morphline.process(record));
+      Record expected = new Record();
+      expected.put(Fields.ID, "id" + i);
+      expected.put("ignored_foo", "bar");
+      expected.put("ignored_first_name", "Nadja");
+      expected.put("ignored_first_name", "Anna");
+      assertEquals(expected, collector.getFirstRecord());
+    }
+  }
+    
+  @Test
+  public void testPipelinedLoader() throws Exception {
+    PipelinedSolrServerDocumentLoader loader = 
+        new PipelinedSolrServerDocumentLoader(solrServer, 7, 3, 1000L * 1000 * 1000, 50);
+    loader.beginTransaction();
+    for (int i = 0; i < 100; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setField(Fields.ID, "id" + i);
+      loader.load(doc);
+    }
+    loader.commitTransaction();
+    solrServer.commit(false, true, true);
+    assertEquals(100, solrServer.query(new SolrQuery("*:*").setRows(1000)).getResults().size());
+    assertTrue(loader.getBatchSize() >= 1);
+    assertTrue(loader.getBatchSize() <= 50);
+    
+    // a failed batch is reported to the caller no later than on commit
+    loader.beginTransaction();
+    loader.load(new SolrInputDocument()); // missing required unique key field
+    try {
+      loader.commitTransaction();
+      fail();
+    } catch (Exception e) {
+      ; // expected, e.g. SolrException
+    }
+    loader.rollbackTransaction();
+  }
+    
+  @Test
+  public void testShardBuildingLoader() throws Exception {
+    File outputDir = Files.createTempDir();
+    ShardBuildingDocumentLoader loader = new ShardBuildingDocumentLoader(
+        new File(RESOURCES_DIR + "/solr/collection1"), outputDir, 3, Fields.ID, 7, 1);
+    try {
+      loader.beginTransaction();
+      for (int i = 0; i < 100; i++) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(Fields.ID, "id" + i);
+        loader.load(doc);
+      }
+      loader.commitTransaction();
+      List<SolrServer> shards = loader.getSolrServers();
+      assertEquals(3, shards.size());
+      int numDocs = 0;
+      for (SolrServer shard : shards) {
+        long count = shard.query(new SolrQuery("*:*")).getResults().getNumFound();
+        assertTrue(count > 0);
+        numDocs += count;
+      }
+      assertEquals(100, numDocs);
+      for (int i = 0; i < 3; i++) {
+        assertTrue(new File(outputDir, "shard" + i + "/conf/schema.xml").isFile());
+      }
+      
+      // ids with a common prefix are routed to the same shard
+      loader.beginTransaction();
+      for (int i = 0; i < 10; i++) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(Fields.ID, "tenant!id" + i);
+        loader.load(doc);
+      }
+      loader.commitTransaction();
+      int numShardsWithPrefix = 0;
+      for (SolrServer shard : shards) {
+        long count = shard.query(new SolrQuery(Fields.ID + ":tenant*")).getResults().getNumFound();
+        if (count > 0) {
+          assertEquals(10, count);
+          numShardsWithPrefix++;
+        }
+      }
+      assertEquals(1, numShardsWithPrefix);
+      
+      // each id lands in the shard whose hash range the compositeId router picks for it
+      List<DocRouter.Range> ranges = DocRouter.DEFAULT.partitionRange(3, DocRouter.DEFAULT.fullRange());
+      String[] ids = {"plain", "a!b", "a/4!b", "a/16!b", "a!b!c", "a/2!b/3!c"};
+      loader.beginTransaction();
+      for (String id : ids) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(Fields.ID, id);
+        loader.load(doc);
+      }
+      loader.commitTransaction();
+      CompositeIdRouter router = (CompositeIdRouter) DocRouter.DEFAULT;
+      for (String id : ids) {
+        int hash = router.sliceHash(id, null, null, null);
+        for (int i = 0; i < 3; i++) {
+          SolrQuery query = new SolrQuery(Fields.ID + ":" + ClientUtils.escapeQueryChars(id));
+          long count = shards.get(i).query(query).getResults().getNumFound();
+          assertEquals(id, ranges.get(i).includes(hash) ? 1 : 0, count);
+        }
+      }
+    } finally {
+      loader.shutdown();
+      FileUtils.deleteDirectory(outputDir);
+    }
+  }
+    
   @Test
   public void testTokenizeText() throws Exception {
     morphline = createMorphline("test-morphlines/tokenizeText");
@@ -73,5 +255,49 @@ public class SolrMorphlineTest extends AbstractSolrMorphlineTest {
       assertEquals(expected, collector.getFirstRecord());
     }
   }
+
+  @Test
+  public void testTokenizeTextReuseTokens() throws Exception {
+    morphline = createMorphline("test-morphlines/tokenizeTextReuseTokens");
+    for (int i = 0; i < 3; i++) {
+      Record record = new Record();
+      record.put(Fields.MESSAGE, "Hello World! hello");
+      record.put(Fields.MESSAGE, "\nFoo@Bar.com #%()123");
+      collector.reset();
+      startSession();
+      Notifications.notifyBeginTransaction(morphline);
+      assertTrue(morphline.process(record));
+      assertEquals(1, collector.getNumStartEvents());
+      Notifications.notifyCommitTransaction(morphline);
+      List<String> tokens = new ArrayList();
+      for (Object token : collector.getFirstRecord().get("tokens")) {
+        assertTrue(token instanceof CharSequence);
+        tokens.add(token.toString());
+      }
+      // "hello" is deduplicated within the first value, and "123" exceeds maxTokens
+      assertEquals(Arrays.asList("hello", "world", "foo", "bar.com"), tokens);
+    }
+  }
+
+  @Test
+  public void testTokenizeTextReuseTokensLoadSolr() throws Exception {
+    testServer = new SolrServerDocumentLoader(solrServer, 100); // batch the docs of all records
+    morphline = createMorphline("test-morphlines/tokenizeTextReuseTokensLoadSolr");
+    String[] words = {"alpha", "bravo", "charlie"};
+    startSession();
+    Notifications.notifyBeginTransaction(morphline);
+    for (int i = 0; i < words.length; i++) {
+      Record record = new Record();
+      record.put(Fields.ID, "id" + i);
+      record.put(Fields.MESSAGE, words[i]);
+      assertTrue(morphline.process(record));
+    }
+    Notifications.notifyCommitTransaction(morphline);
+    assertEquals(words.length, queryResultSetSize("*:*"));
+    for (int i = 0; i < words.length; i++) {
+      assertEquals(1, queryResultSetSize("id:id" + i + " AND text:" + words[i]));
+    }
+    Notifications.notifyShutdown(morphline);
+  }
     
 }
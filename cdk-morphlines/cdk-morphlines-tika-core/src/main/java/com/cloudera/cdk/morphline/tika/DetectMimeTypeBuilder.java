@@ -25,14 +25,21 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.tika.config.ServiceLoader;
 import org.apache.tika.detect.DefaultDetector;
 import org.apache.tika.detect.Detector;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.mime.MimeType;
 import org.apache.tika.mime.MimeTypeException;
 import org.apache.tika.mime.MimeTypes;
 import org.apache.tika.mime.MimeTypesFactory;
@@ -45,12 +52,23 @@ import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.cloudera.cdk.morphline.base.Fields;
+import com.cloudera.cdk.morphline.base.Validator;
 import com.google.common.base.Preconditions;
 import com.google.common.io.Closeables;
 import com.typesafe.config.Config;
 
 /**
  * Command that auto-detects the MIME type of the first attachment, if no MIME type is defined yet.
+ * 
+ * The MIME type repository and detector chain are loaded once per distinct configuration and shared
+ * across the JVM.
+ * 
+ * In the <code>fast</code> detection mode the command first checks whether the extension of the
+ * attachment name is among the configured <code>trustedExtensions</code>, and if so derives the
+ * MIME type from the name alone. Otherwise it reads a single bounded prefix of the attachment and
+ * runs magic detection on that buffer. If magic detection yields a type that no other registered
+ * type specializes, that type is final; otherwise the full detector chain is run, exactly as in the
+ * default <code>full</code> detection mode.
  */
 public final class DetectMimeTypeBuilder implements CommandBuilder {
 
@@ -76,49 +94,34 @@ public final class DetectMimeTypeBuilder implements CommandBuilder {
   ///////////////////////////////////////////////////////////////////////////////
   private static final class DetectMimeType extends AbstractCommand {
 
-    private final Detector detector;
+    private final SharedDetector sharedDetector;
     private final boolean preserveExisting;
     private final boolean includeMetaData;
     private final boolean excludeParameters;
+    private final DetectionMode detectionMode;
+    private final Set<String> trustedExtensions = new HashSet();
+    private final byte[] prefix;
     
     public DetectMimeType(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) throws IOException, MimeTypeException {
       super(builder, config, parent, child, context);
       this.preserveExisting = getConfigs().getBoolean(config, "preserveExisting", true);      
       this.includeMetaData = getConfigs().getBoolean(config, "includeMetaData", false);
       this.excludeParameters = getConfigs().getBoolean(config, "excludeParameters", true);
-      List<InputStream> inputStreams = new ArrayList();
-      try {
-        if (getConfigs().getBoolean(config, "includeDefaultMimeTypes", true)) {
-          // adapted from Tika MimeTypesFactory.create(String coreFilePath, String extensionFilePath)
-          String coreFilePath = "tika-mimetypes.xml"; 
-          String classPrefix = MimeTypesFactory.class.getPackage().getName().replace('.', '/') + "/"; 
-          ClassLoader cl = MimeTypesFactory.class.getClassLoader();       
-          URL coreURL = cl.getResource(classPrefix + coreFilePath);
-          InputStream in = new BufferedInputStream(coreURL.openStream());
-          inputStreams.add(in);
-        }
-        for (String mimeTypesFile : getConfigs().getStringList(config, "mimeTypesFiles", Collections.EMPTY_LIST)) {
-          InputStream in = new BufferedInputStream(new FileInputStream(new File(mimeTypesFile)));
-          inputStreams.add(in);
-        }
-        String mimeTypesString = getConfigs().getString(config, "mimeTypesString", null);
-        if (mimeTypesString != null) {
-          InputStream in = new ByteArrayInputStream(mimeTypesString.getBytes("UTF-8"));
-          inputStreams.add(in);
-        }
-        
-        if (inputStreams.size() > 0) {
-          MimeTypes mimeTypes = MimeTypesFactory.create(inputStreams.toArray(new InputStream[inputStreams.size()]));
-          ServiceLoader loader = new ServiceLoader();
-          this.detector = new DefaultDetector(mimeTypes, loader);
-        } else {
-          throw new MorphlineCompilationException("Missing specification for MIME type mappings", config);
-        }      
-      } finally {
-        for (InputStream in : inputStreams) {
-          Closeables.closeQuietly(in);
-        }
+      boolean includeDefaultMimeTypes = getConfigs().getBoolean(config, "includeDefaultMimeTypes", true);
+      List<String> mimeTypesFiles = getConfigs().getStringList(config, "mimeTypesFiles", Collections.<String>emptyList());
+      String mimeTypesString = getConfigs().getString(config, "mimeTypesString", null);
+      if (!includeDefaultMimeTypes && mimeTypesFiles.size() == 0 && mimeTypesString == null) {
+        throw new MorphlineCompilationException("Missing specification for MIME type mappings", config);
+      }      
+      this.sharedDetector = SharedDetector.getInstance(includeDefaultMimeTypes, mimeTypesFiles, mimeTypesString);
+      this.detectionMode = new Validator<DetectionMode>().validateEnum(
+          config,
+          getConfigs().getString(config, "detectionMode", DetectionMode.full.toString()),
+          DetectionMode.class);
+      for (String extension : getConfigs().getStringList(config, "trustedExtensions", Collections.<String>emptyList())) {
+        trustedExtensions.add(extension.toLowerCase(Locale.ROOT));
       }
+      this.prefix = new byte[sharedDetector.getMimeTypes().getMinLength()];
       validateArguments();
     }
     
@@ -159,7 +162,7 @@ public final class DetectMimeTypeBuilder implements CommandBuilder {
             }
           }
 
-          String mimeType = getMediaType(stream, metadata, excludeParameters);
+          String mimeType = getMediaType(attachment, stream, metadata, resourceName, excludeParameters);
           record.replaceValues(Fields.ATTACHMENT_MIME_TYPE, mimeType);
         }  
       }
@@ -176,10 +179,16 @@ public final class DetectMimeTypeBuilder implements CommandBuilder {
      * 
      * @return detected media type, or <code>application/octet-stream</code>
      */
-    private String getMediaType(InputStream in, Metadata metadata, boolean excludeParameters) {
+    private String getMediaType(Object attachment, InputStream in, Metadata metadata, String resourceName, 
+        boolean excludeParameters) {
+      
       MediaType mediaType;
       try {
-        mediaType = getDetector().detect(in, metadata);
+        if (detectionMode == DetectionMode.fast) {
+          mediaType = detectFast(attachment, in, metadata, resourceName);
+        } else {
+          mediaType = getDetector().detect(in, metadata);
+        }
       } catch (IOException e) {
         throw new MorphlineRuntimeException(e);
       }
@@ -193,10 +202,154 @@ public final class DetectMimeTypeBuilder implements CommandBuilder {
       return mediaTypeStr;
     }
 
+    private MediaType detectFast(Object attachment, InputStream in, Metadata metadata, String resourceName) 
+        throws IOException {
+      
+      MimeTypes mimeTypes = sharedDetector.getMimeTypes();
+      if (resourceName != null && trustedExtensions.contains(getExtension(resourceName))) {
+        MimeType mimeType = mimeTypes.getMimeType(resourceName);
+        if (!MimeTypes.OCTET_STREAM.equals(mimeType.getName())) {
+          return mimeType.getType();
+        }
+      }
+      
+      InputStream prefixStream;
+      if (attachment instanceof byte[]) {
+        prefixStream = new ByteArrayInputStream((byte[]) attachment); // magic detection reads only a prefix
+      } else {
+        in.mark(prefix.length);
+        int len = 0;
+        try {
+          int n;
+          while (len < prefix.length && (n = in.read(prefix, len, prefix.length - len)) >= 0) {
+            len += n;
+          }
+        } finally {
+          in.reset();
+        }
+        prefixStream = new ByteArrayInputStream(prefix, 0, len);
+      }
+      MediaType mediaType = mimeTypes.detect(prefixStream, metadata);
+      if (sharedDetector.isFinal(mediaType)) {
+        return mediaType; // high confidence: no other detector can refine this type
+      }
+      return getDetector().detect(in, metadata);
+    }
+    
+    private String getExtension(String resourceName) {
+      int i = Math.max(resourceName.lastIndexOf('/'), resourceName.lastIndexOf('\\'));
+      int j = resourceName.lastIndexOf('.');
+      if (j <= i) {
+        return null;
+      }
+      return resourceName.substring(j + 1).toLowerCase(Locale.ROOT);
+    }
+
     protected Detector getDetector() {
-      return detector;
+      return sharedDetector.getDetector();
     }
 
   }
   
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private static enum DetectionMode {
+    full,
+    fast
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * A MIME type repository plus detector chain that is shared across the JVM, keyed by the
+   * specification it was loaded from.
+   */
+  private static final class SharedDetector {
+    
+    private final MimeTypes mimeTypes;
+    private final Detector detector;
+    private final Set<MediaType> typesWithSpecializations = new HashSet();
+    
+    private static final Map<List, SharedDetector> INSTANCES = new HashMap();
+    
+    public static synchronized SharedDetector getInstance(boolean includeDefaultMimeTypes, List<String> mimeTypesFiles, 
+        String mimeTypesString) throws IOException, MimeTypeException {
+      
+      List key = new ArrayList();
+      key.add(includeDefaultMimeTypes);
+      for (String mimeTypesFile : mimeTypesFiles) {
+        File file = new File(mimeTypesFile);
+        key.add(file.getCanonicalPath());
+        key.add(file.lastModified());
+      }
+      key.add(mimeTypesString);
+      SharedDetector instance = INSTANCES.get(key);
+      if (instance == null) {
+        instance = new SharedDetector(includeDefaultMimeTypes, mimeTypesFiles, mimeTypesString);
+        INSTANCES.put(key, instance);
+      }
+      return instance;
+    }
+    
+    private SharedDetector(boolean includeDefaultMimeTypes, List<String> mimeTypesFiles, String mimeTypesString) 
+        throws IOException, MimeTypeException {
+      
+      List<InputStream> inputStreams = new ArrayList();
+      try {
+        if (includeDefaultMimeTypes) {
+          // adapted from Tika MimeTypesFactory.create(String coreFilePath, String extensionFilePath)
+          String coreFilePath = "tika-mimetypes.xml"; 
+          String classPrefix = MimeTypesFactory.class.getPackage().getName().replace('.', '/') + "/"; 
+          ClassLoader cl = MimeTypesFactory.class.getClassLoader();       
+          URL coreURL = cl.getResource(classPrefix + coreFilePath);
+          InputStream in = new BufferedInputStream(coreURL.openStream());
+          inputStreams.add(in);
+        }
+        for (String mimeTypesFile : mimeTypesFiles) {
+          InputStream in = new BufferedInputStream(new FileInputStream(new File(mimeTypesFile)));
+          inputStreams.add(in);
+        }
+        if (mimeTypesString != null) {
+          InputStream in = new ByteArrayInputStream(mimeTypesString.getBytes("UTF-8"));
+          inputStreams.add(in);
+        }
+        
+        this.mimeTypes = MimeTypesFactory.create(inputStreams.toArray(new InputStream[inputStreams.size()]));
+        ServiceLoader loader = new ServiceLoader();
+        this.detector = new DefaultDetector(mimeTypes, loader);
+      } finally {
+        for (InputStream in : inputStreams) {
+          Closeables.closeQuietly(in);
+        }
+      }
+      
+      MediaTypeRegistry registry = mimeTypes.getMediaTypeRegistry();
+      for (MediaType type : registry.getTypes()) {
+        for (MediaType superType = registry.getSupertype(type); superType != null; superType = registry.getSupertype(superType)) {
+          typesWithSpecializations.add(superType);
+        }
+      }
+      typesWithSpecializations.add(MediaType.OCTET_STREAM);
+      typesWithSpecializations.add(MediaType.TEXT_PLAIN);
+    }
+    
+    public MimeTypes getMimeTypes() {
+      return mimeTypes;
+    }
+    
+    public Detector getDetector() {
+      return detector;
+    }
+    
+    /** Returns true if no registered type is a specialization of the given type */
+    public boolean isFinal(MediaType type) {
+      return !typesWithSpecializations.contains(type);
+    }
+    
+  }
+  
 }
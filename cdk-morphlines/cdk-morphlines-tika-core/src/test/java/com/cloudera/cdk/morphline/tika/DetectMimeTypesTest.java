@@ -41,6 +41,8 @@ import com.typesafe.config.ConfigFactory;
 public class DetectMimeTypesTest extends AbstractMorphlineTest {
 
   private Map<List, Command> morphlineCache = new HashMap();
+  private String detectionMode = "full";
+  private String trustedExtensions = "[]";
   
   private static final String AVRO_MIME_TYPE = "avro/binary"; // ReadAvroContainerBuilder.MIME_TYPE;  
   
@@ -145,6 +147,25 @@ public class DetectMimeTypesTest extends AbstractMorphlineTest {
     assertEquals("text/plain", detect(event, false));
   }
 
+  @Test
+  public void testVariousFileTypesWithFastDetection() throws Exception {
+    detectionMode = "fast"; // must yield the same results as full detection
+    testVariousFileTypes();
+  }
+  
+  @Test
+  public void testTrustedExtensions() throws Exception {
+    detectionMode = "fast";
+    trustedExtensions = "[pdf, txt]";
+    byte[] body = Files.toByteArray(JPG_FILE);
+    ListMultimap headers = ImmutableListMultimap.of(Fields.ATTACHMENT_NAME, "foo/bar.PDF");
+    assertEquals("application/pdf", detect(createEvent(new ByteArrayInputStream(body), headers), true));
+    
+    // untrusted extensions are ignored in favour of the content
+    headers = ImmutableListMultimap.of(Fields.ATTACHMENT_NAME, "foo/bar.png");
+    assertEquals("image/jpeg", detect(createEvent(new ByteArrayInputStream(body), headers), true));
+  }
+  
   @Test
   public void testVariousFileTypes() throws Exception {    
     String path = RESOURCES_DIR + "/test-documents";
@@ -261,10 +282,11 @@ public class DetectMimeTypesTest extends AbstractMorphlineTest {
   }
   
   private String detect(Record event, boolean includeMetaData, boolean excludeParameters) throws IOException {
-    List key = Arrays.asList(includeMetaData, excludeParameters);
+    List key = Arrays.asList(includeMetaData, excludeParameters, detectionMode, trustedExtensions);
     Command cachedMorphline = morphlineCache.get(key);
     if (cachedMorphline == null) { // avoid recompiling time and again (performance)
-      Config override = ConfigFactory.parseString("INCLUDE_META_DATA : " + includeMetaData + "\nEXCLUDE_PARAMETERS : " + excludeParameters);
+      Config override = ConfigFactory.parseString("INCLUDE_META_DATA : " + includeMetaData + "\nEXCLUDE_PARAMETERS : " + excludeParameters
+          + "\nDETECTION_MODE : " + detectionMode + "\nTRUSTED_EXTENSIONS : " + trustedExtensions);
       cachedMorphline = createMorphline("test-morphlines/detectMimeTypesWithDefaultMimeTypesAndFile", override);
       morphlineCache.put(key, cachedMorphline);
     }
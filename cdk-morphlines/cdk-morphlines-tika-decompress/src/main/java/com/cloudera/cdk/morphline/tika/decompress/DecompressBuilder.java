@@ -16,6 +16,7 @@
 package com.cloudera.cdk.morphline.tika.decompress;
 
 import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,6 +31,7 @@ import org.apache.tika.mime.MediaType;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
@@ -40,6 +42,10 @@ import com.typesafe.config.Config;
 
 /**
  * Command that decompresses the first attachment. Implementation adapted from Tika CompressorParser.
+ *
+ * If <code>readAheadBuffers</code> is positive, the attachment is decompressed on a dedicated
+ * reader thread into a bounded queue of <code>readAheadBufferSize</code> byte buffers, such that
+ * decompression overlaps with the downstream processing of the decompressed data.
  */
 public final class DecompressBuilder implements CommandBuilder {
 
@@ -70,6 +76,9 @@ public final class DecompressBuilder implements CommandBuilder {
     private static final Set<MediaType> SUPPORTED_TYPES =
             MediaType.set(BZIP, BZIP2, GZIP, XZ, PACK);
 
+    private final int readAheadBuffers;
+    private final int readAheadBufferSize;
+
     public Decompress(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
       if (!config.hasPath(SUPPORTED_MIME_TYPES)) {
@@ -78,6 +87,11 @@ public final class DecompressBuilder implements CommandBuilder {
           addSupportedMimeType(mediaType.toString());
         }
       }
+      this.readAheadBuffers = getConfigs().getInt(config, "readAheadBuffers", 0);
+      this.readAheadBufferSize = getConfigs().getInt(config, "readAheadBufferSize", 64 * 1024);
+      if (readAheadBufferSize <= 0) {
+        throw new MorphlineCompilationException("readAheadBufferSize must be positive: " + readAheadBufferSize, config);
+      }
       validateArguments();
     }
  
@@ -120,12 +134,37 @@ public final class DecompressBuilder implements CommandBuilder {
         throw new MorphlineRuntimeException("Unable to uncompress document stream", e);
       }
 
+      if (readAheadBuffers > 0) {
+        return doProcessReadAhead(cis, extractor, record, name);
+      }
+
       try {
         return extractor.parseEmbedded(cis, record, name, getChild());
       } finally {
         Closeables.closeQuietly(cis);
       }
     }
+
+    private boolean doProcessReadAhead(final CompressorInputStream cis, EmbeddedExtractor extractor, Record record, 
+        String name) {
+      
+      ReadAheadReader reader = new ReadAheadReader(readAheadBuffers, readAheadBufferSize) {
+        @Override
+        protected void produce() throws IOException, InterruptedException {
+          putEntry(null, cis);
+        }
+      }.start();
+
+      try {
+        ReadAheadReader.Entry entry = reader.nextEntry();
+        return extractor.parseEmbedded(entry.getStream(), record, name, getChild());
+      } catch (IOException e) {
+        throw new MorphlineRuntimeException(e);
+      } finally {
+        reader.close(); // wait for reader thread to let go of cis before closing it
+        Closeables.closeQuietly(cis);
+      }
+    }
   }
 
 }
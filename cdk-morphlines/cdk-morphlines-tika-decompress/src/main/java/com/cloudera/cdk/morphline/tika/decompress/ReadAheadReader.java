@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.tika.decompress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decompresses a stream of entries on a dedicated reader thread, and hands the decompressed bytes
+ * to the consumer thread via a bounded queue of buffers, such that inflating the next entry
+ * overlaps with the downstream processing of the current entry.
+ *
+ * Entries are always delivered in the order of the underlying stream, and the consumer side
+ * (i.e. {@link #nextEntry()} and the returned entry streams) must be used from a single thread,
+ * because the morphline commands that consume the entries aren't thread-safe. Memory consumption
+ * is bounded by <code>(numBuffers + 2) * bufferSize</code> regardless of the size of the entries,
+ * i.e. the buffers in the queue plus the one being filled by the reader thread plus the one being
+ * read by the consumer thread.
+ */
+abstract class ReadAheadReader implements Closeable {
+
+  private final BlockingQueue<Object> queue;
+  private final BlockingQueue<Chunk> freeChunks;
+  private final int bufferSize;
+  private final Thread readerThread;
+  private volatile boolean isClosed = false;
+
+  private EntryInputStream currentEntry;
+  private boolean isEndOfInput = false;
+
+  private static final Object END_OF_ENTRY = new Object();
+  private static final Object END_OF_INPUT = new Object();
+
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+  public ReadAheadReader(int numBuffers, int bufferSize) {
+    if (numBuffers <= 0) {
+      throw new IllegalArgumentException("numBuffers must be positive: " + numBuffers);
+    }
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    }
+    this.bufferSize = bufferSize;
+    this.queue = new ArrayBlockingQueue(numBuffers);
+    this.freeChunks = new ArrayBlockingQueue(numBuffers + 1);
+    this.readerThread = new Thread("morphline-read-ahead-" + THREAD_COUNTER.getAndIncrement()) {
+      @Override
+      public void run() {
+        try {
+          produce();
+          put(END_OF_INPUT);
+        } catch (InterruptedException e) {
+          ; // closed by consumer
+        } catch (Throwable t) {
+          try {
+            put(t);
+          } catch (InterruptedException e) {
+            ; // closed by consumer
+          }
+        }
+      }
+    };
+    this.readerThread.setDaemon(true);
+  }
+
+  /** Starts the reader thread; must be called once the subclass is fully constructed */
+  public ReadAheadReader start() {
+    readerThread.start();
+    return this;
+  }
+
+  /**
+   * Runs on the reader thread; reads the underlying stream and calls
+   * {@link #putEntry(String, InputStream)} for each entry in order.
+   */
+  protected abstract void produce() throws IOException, InterruptedException;
+
+  /**
+   * Called from within {@link #produce()}; copies the data of the given entry into the queue,
+   * blocking while the queue is full.
+   */
+  protected final void putEntry(String name, InputStream data) throws IOException, InterruptedException {
+    put(new EntryHeader(name, data != null));
+    if (data != null) {
+      while (true) {
+        Chunk chunk = freeChunks.poll();
+        if (chunk == null) {
+          chunk = new Chunk(bufferSize);
+        }
+        chunk.length = fill(data, chunk.buf);
+        if (chunk.length <= 0) {
+          freeChunks.offer(chunk);
+          break;
+        }
+        put(chunk);
+      }
+    }
+    put(END_OF_ENTRY);
+  }
+
+  private static int fill(InputStream in, byte[] buf) throws IOException {
+    int n = 0;
+    while (n < buf.length) {
+      int len = in.read(buf, n, buf.length - n);
+      if (len < 0) {
+        break;
+      }
+      n += len;
+    }
+    return n;
+  }
+
+  private void put(Object item) throws InterruptedException {
+    if (isClosed) {
+      throw new InterruptedException();
+    }
+    queue.put(item);
+  }
+
+  private Object take() throws IOException {
+    Object item;
+    try {
+      item = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for read-ahead data");
+    }
+    if (item instanceof Throwable) {
+      isEndOfInput = true;
+      Throwable t = (Throwable) item;
+      if (t instanceof IOException) {
+        throw new IOException(t.getMessage(), t); // preserve stack trace of both threads
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      } else {
+        throw new RuntimeException(t);
+      }
+    }
+    return item;
+  }
+
+  /**
+   * Returns the next entry in stream order, or null if there are no more entries. Any unread data
+   * of the previous entry is skipped.
+   */
+  public Entry nextEntry() throws IOException {
+    if (currentEntry != null) {
+      currentEntry.skipToEnd();
+      currentEntry = null;
+    }
+    if (isEndOfInput) {
+      return null;
+    }
+    Object item = take();
+    if (item == END_OF_INPUT) {
+      isEndOfInput = true;
+      return null;
+    }
+    EntryHeader header = (EntryHeader) item;
+    currentEntry = new EntryInputStream();
+    return new Entry(header.name, header.isReadable, currentEntry);
+  }
+
+  /**
+   * Stops the reader thread if it is still running, and waits for it to let go of the underlying
+   * stream, so the caller can safely close that stream afterwards.
+   */
+  @Override
+  public void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    readerThread.interrupt(); // wake up reader blocked on a full queue
+    queue.clear();
+    boolean isInterrupted = false;
+    while (readerThread.isAlive()) {
+      try {
+        readerThread.join();
+      } catch (InterruptedException e) {
+        isInterrupted = true;
+      }
+    }
+    queue.clear();
+    freeChunks.clear();
+    if (isInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** An entry as seen by the consumer thread */
+  static final class Entry {
+
+    private final String name;
+    private final boolean isReadable;
+    private final InputStream stream;
+
+    private Entry(String name, boolean isReadable, InputStream stream) {
+      this.name = name;
+      this.isReadable = isReadable;
+      this.stream = stream;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns false if the entry data can't be read, e.g. because it is encrypted */
+    public boolean isReadable() {
+      return isReadable;
+    }
+
+    public InputStream getStream() {
+      return stream;
+    }
+
+  }
+
+
+  private static final class EntryHeader {
+
+    private final String name;
+    private final boolean isReadable;
+
+    public EntryHeader(String name, boolean isReadable) {
+      this.name = name;
+      this.isReadable = isReadable;
+    }
+
+  }
+
+
+  private static final class Chunk {
+
+    private final byte[] buf;
+    private int length;
+
+    public Chunk(int size) {
+      this.buf = new byte[size];
+    }
+
+  }
+
+
+  /** Reads the chunks of the current entry from the queue */
+  private final class EntryInputStream extends InputStream {
+
+    private Chunk chunk;
+    private int pos;
+    private boolean isEndOfEntry = false;
+
+    /** Returns false at the end of the entry */
+    private boolean ensureAvailable() throws IOException {
+      while (chunk == null || pos >= chunk.length) {
+        if (isEndOfEntry) {
+          return false;
+        }
+        if (chunk != null) {
+          freeChunks.offer(chunk); // recycle
+          chunk = null;
+        }
+        Object item = take();
+        if (item == END_OF_ENTRY) {
+          isEndOfEntry = true;
+          return false;
+        }
+        chunk = (Chunk) item;
+        pos = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return chunk.buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      // fill across chunk boundaries because some callers (e.g. signature detection) expect full reads
+      int n = 0;
+      while (n < len && ensureAvailable()) {
+        int k = Math.min(len - n, chunk.length - pos);
+        System.arraycopy(chunk.buf, pos, b, off + n, k);
+        pos += k;
+        n += k;
+      }
+      return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n && ensureAvailable()) {
+        int k = (int) Math.min(n - skipped, chunk.length - pos);
+        pos += k;
+        skipped += k;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return chunk == null ? 0 : chunk.length - pos;
+    }
+
+    private void skipToEnd() throws IOException {
+      while (ensureAvailable()) {
+        pos = chunk.length;
+      }
+    }
+
+  }
+
+}
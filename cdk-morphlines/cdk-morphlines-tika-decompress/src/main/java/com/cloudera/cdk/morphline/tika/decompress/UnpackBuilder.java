@@ -34,6 +34,7 @@ import org.apache.tika.mime.MediaType;
 
 import com.cloudera.cdk.morphline.api.Command;
 import com.cloudera.cdk.morphline.api.CommandBuilder;
+import com.cloudera.cdk.morphline.api.MorphlineCompilationException;
 import com.cloudera.cdk.morphline.api.MorphlineContext;
 import com.cloudera.cdk.morphline.api.MorphlineRuntimeException;
 import com.cloudera.cdk.morphline.api.Record;
@@ -43,6 +44,11 @@ import com.typesafe.config.Config;
 
 /**
  * Command that unpacks the first attachment. Implementation adapted from Tika PackageParser.
+ *
+ * If <code>readAheadBuffers</code> is positive, archive entries are inflated on a dedicated reader
+ * thread into a bounded queue of <code>readAheadBufferSize</code> byte buffers, such that inflating
+ * the next entry overlaps with the downstream processing of the current entry. Entries are still
+ * passed to the child command one at a time in archive order.
  */
 public final class UnpackBuilder implements CommandBuilder {
 
@@ -74,6 +80,9 @@ public final class UnpackBuilder implements CommandBuilder {
     private static final Set<MediaType> SUPPORTED_TYPES =
             MediaType.set(ZIP, JAR, AR, CPIO, DUMP, TAR);
     
+    private final int readAheadBuffers;
+    private final int readAheadBufferSize;
+    
     public Unpack(CommandBuilder builder, Config config, Command parent, Command child, MorphlineContext context) {
       super(builder, config, parent, child, context);      
       if (!config.hasPath(SUPPORTED_MIME_TYPES)) {
@@ -83,6 +92,11 @@ public final class UnpackBuilder implements CommandBuilder {
         }
         addSupportedMimeType(GTAR); // apparently not already included in PackageParser.getSupportedTypes()
       }
+      this.readAheadBuffers = getConfigs().getInt(config, "readAheadBuffers", 0);
+      this.readAheadBufferSize = getConfigs().getInt(config, "readAheadBufferSize", 64 * 1024);
+      if (readAheadBufferSize <= 0) {
+        throw new MorphlineCompilationException("readAheadBufferSize must be positive: " + readAheadBufferSize, config);
+      }
       validateArguments();
     }
 
@@ -106,6 +120,10 @@ public final class UnpackBuilder implements CommandBuilder {
         throw new MorphlineRuntimeException("Unable to unpack document stream", e);
       }
 
+      if (readAheadBuffers > 0) {
+        return doProcessReadAhead(ais, extractor);
+      }
+
       try {
         ArchiveEntry entry = ais.getNextEntry();
         while (entry != null) {
@@ -124,30 +142,66 @@ public final class UnpackBuilder implements CommandBuilder {
       return true;
     }
 
+    private boolean doProcessReadAhead(final ArchiveInputStream ais, EmbeddedExtractor extractor) {
+      ReadAheadReader reader = new ReadAheadReader(readAheadBuffers, readAheadBufferSize) {
+        @Override
+        protected void produce() throws IOException, InterruptedException {
+          ArchiveEntry entry;
+          while ((entry = ais.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+              putEntry(entry.getName(), ais.canReadEntryData(entry) ? ais : null);
+            }
+          }
+        }
+      }.start();
+
+      try {
+        ReadAheadReader.Entry entry;
+        while ((entry = reader.nextEntry()) != null) {
+          if (!entry.isReadable()) {
+            return false;
+          }
+          if (!parseEntry(entry.getStream(), entry.getName(), extractor)) {
+            return false;
+          }
+        }
+      } catch (IOException e) {
+        throw new MorphlineRuntimeException(e);
+      } finally {
+        reader.close(); // wait for reader thread to let go of ais before closing it
+        Closeables.closeQuietly(ais);
+      }
+      return true;
+    }
+
     private boolean parseEntry(ArchiveInputStream archive, ArchiveEntry entry, EmbeddedExtractor extractor, Record record) {
       String name = entry.getName();
       if (archive.canReadEntryData(entry)) {
-        Record entrydata = new Record(); // TODO: or pass myself?
-        //Record entrydata = record.copy();
-        
-        // For detectors to work, we need a mark/reset supporting
-        // InputStream, which ArchiveInputStream isn't, so wrap
-        TemporaryResources tmp = new TemporaryResources();
-        try {
-          TikaInputStream tis = TikaInputStream.get(archive, tmp);
-          return extractor.parseEmbedded(tis, entrydata, name, getChild());
-        } finally {
-          try {
-            tmp.dispose();
-          } catch (TikaException e) {
-            LOG.warn("Cannot dispose of tmp Tika resources", e);
-          }
-        }
+        return parseEntry(archive, name, extractor);
       } else {
         return false;
       } 
     }
     
+    private boolean parseEntry(InputStream entryStream, String name, EmbeddedExtractor extractor) {
+      Record entrydata = new Record(); // TODO: or pass myself?
+      //Record entrydata = record.copy();
+      
+      // For detectors to work, we need a mark/reset supporting
+      // InputStream, which ArchiveInputStream isn't, so wrap
+      TemporaryResources tmp = new TemporaryResources();
+      try {
+        TikaInputStream tis = TikaInputStream.get(entryStream, tmp);
+        return extractor.parseEmbedded(tis, entrydata, name, getChild());
+      } finally {
+        try {
+          tmp.dispose();
+        } catch (TikaException e) {
+          LOG.warn("Cannot dispose of tmp Tika resources", e);
+        }
+      }
+    }
+    
   }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.tika.decompress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloudera.cdk.morphline.api.AbstractMorphlineTest;
+import com.cloudera.cdk.morphline.api.Record;
+import com.cloudera.cdk.morphline.base.Fields;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class DecompressMorphlineTest extends AbstractMorphlineTest {
+
+  @Test
+  public void testUnpackWithReadAhead() throws Exception {
+    String[][] archives = {
+        {"test-documents.zip", "application/zip"},
+        {"test-documents.tar", "application/x-tar"},
+        {"test-documents.cpio", "application/x-cpio"},
+    };
+    for (String[] archive : archives) {
+      List<Record> expected = process("test-morphlines/unpackReadAhead", archive[0], archive[1], 0, 1);
+      assertEquals(9, expected.size());
+      // entries are up to 34 KB, i.e. much larger than numBuffers * bufferSize
+      assertEquals(expected, process("test-morphlines/unpackReadAhead", archive[0], archive[1], 2, 100));
+      assertEquals(expected, process("test-morphlines/unpackReadAhead", archive[0], archive[1], 1, 64 * 1024));
+    }
+  }
+
+  @Test
+  public void testDecompressWithReadAhead() throws Exception {
+    List<Record> expected = process("test-morphlines/decompressReadAhead", "testJPEG_EXIF.jpg.gz", "application/x-gzip", 0, 1);
+    assertEquals(1, expected.size());
+    assertTrue(((String) expected.get(0).getFirstValue(Fields.MESSAGE)).length() > 1000);
+    assertEquals(expected, process("test-morphlines/decompressReadAhead", "testJPEG_EXIF.jpg.gz", "application/x-gzip", 2, 100));
+  }
+
+  private List<Record> process(String morphlineFile, String documentFile, String mimeType, int readAheadBuffers, 
+      int readAheadBufferSize) throws Exception {
+    
+    Config override = ConfigFactory.parseString(
+        "READ_AHEAD_BUFFERS : " + readAheadBuffers + "\nREAD_AHEAD_BUFFER_SIZE : " + readAheadBufferSize);
+    morphline = createMorphline(morphlineFile, override);
+    collector.reset();
+    InputStream in = new FileInputStream(new File(RESOURCES_DIR + "/test-documents/" + documentFile));
+    try {
+      Record record = new Record();
+      record.put(Fields.ATTACHMENT_BODY, in);
+      record.put(Fields.ATTACHMENT_MIME_TYPE, mimeType);
+      startSession();
+      assertTrue(morphline.process(record));
+    } finally {
+      in.close();
+    }
+    return new ArrayList(collector.getRecords());
+  }
+  
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.cdk.morphline.tika.decompress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class ReadAheadReaderTest {
+
+  @Test
+  public void testEntries() throws Exception {
+    final byte[][] entries = {bytes(0, 1), bytes(1, 100), bytes(2, 5000), bytes(3, 0)};
+    ReadAheadReader reader = new ReadAheadReader(2, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        for (int i = 0; i < entries.length; i++) {
+          putEntry("entry" + i, new ByteArrayInputStream(entries[i]));
+        }
+        putEntry("encrypted", null);
+      }
+    }.start();
+    try {
+      for (int i = 0; i < entries.length; i++) {
+        ReadAheadReader.Entry entry = reader.nextEntry();
+        assertEquals("entry" + i, entry.getName());
+        assertTrue(entry.isReadable());
+        // entries 1 and 2 are larger than numBuffers * bufferSize
+        assertArrayEquals(entries[i], ByteStreams.toByteArray(entry.getStream()));
+        assertEquals(-1, entry.getStream().read());
+      }
+      ReadAheadReader.Entry entry = reader.nextEntry();
+      assertEquals("encrypted", entry.getName());
+      assertFalse(entry.isReadable());
+      assertEquals(-1, entry.getStream().read());
+      assertNull(reader.nextEntry());
+      assertNull(reader.nextEntry());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSkipUnreadEntries() throws Exception {
+    final byte[] big = bytes(4, 10000);
+    final byte[] small = bytes(5, 10);
+    ReadAheadReader reader = new ReadAheadReader(1, 8) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        putEntry("big", new ByteArrayInputStream(big));
+        putEntry("partial", new ByteArrayInputStream(big));
+        putEntry("small", new ByteArrayInputStream(small));
+      }
+    }.start();
+    try {
+      assertEquals("big", reader.nextEntry().getName()); // not read at all
+      ReadAheadReader.Entry entry = reader.nextEntry();
+      assertEquals("partial", entry.getName());
+      byte[] buf = new byte[13];
+      assertEquals(13, entry.getStream().read(buf));
+      assertEquals(big[12], buf[12]);
+      assertEquals(100, entry.getStream().skip(100));
+      assertEquals(big[113] & 0xFF, entry.getStream().read());
+      entry = reader.nextEntry();
+      assertEquals("small", entry.getName());
+      assertArrayEquals(small, ByteStreams.toByteArray(entry.getStream()));
+      assertNull(reader.nextEntry());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testExceptionBetweenEntries() throws Exception {
+    ReadAheadReader reader = new ReadAheadReader(2, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        putEntry("first", new ByteArrayInputStream(bytes(6, 100)));
+        throw new IOException("boom");
+      }
+    }.start();
+    try {
+      assertEquals("first", reader.nextEntry().getName());
+      try {
+        reader.nextEntry();
+        fail();
+      } catch (IOException e) {
+        assertEquals("boom", e.getMessage());
+      }
+      assertNull(reader.nextEntry());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testExceptionWithinEntry() throws Exception {
+    ReadAheadReader reader = new ReadAheadReader(2, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        putEntry("broken", new FailingInputStream(100));
+      }
+    }.start();
+    try {
+      ReadAheadReader.Entry entry = reader.nextEntry();
+      assertEquals("broken", entry.getName());
+      try {
+        ByteStreams.toByteArray(entry.getStream());
+        fail();
+      } catch (IOException e) {
+        assertEquals("boom", e.getMessage());
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testRuntimeExceptionOnReaderThread() throws Exception {
+    ReadAheadReader reader = new ReadAheadReader(2, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        throw new IllegalStateException("boom");
+      }
+    }.start();
+    try {
+      reader.nextEntry();
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCloseMidStream() throws Exception {
+    final CountDownLatch released = new CountDownLatch(1);
+    ReadAheadReader reader = new ReadAheadReader(2, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        try {
+          for (int i = 0; ; i++) { // endless stream of entries
+            putEntry("entry" + i, new ByteArrayInputStream(bytes(i, 1000)));
+          }
+        } finally {
+          released.countDown();
+        }
+      }
+    }.start();
+    ReadAheadReader.Entry entry = reader.nextEntry();
+    assertEquals("entry0", entry.getName());
+    assertEquals(10, entry.getStream().read(new byte[10]));
+    reader.close(); // reader thread is blocked on the full queue
+    assertEquals(0, released.getCount()); // close() waits for the reader thread to let go of the stream
+    reader.close(); // idempotent
+  }
+
+  @Test
+  public void testCloseBeforeReading() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    ReadAheadReader reader = new ReadAheadReader(1, 16) {
+      @Override
+      protected void produce() throws IOException, InterruptedException {
+        try {
+          started.countDown();
+          putEntry("huge", new FailingInputStream(Integer.MAX_VALUE));
+        } finally {
+          released.countDown();
+        }
+      }
+    }.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    reader.close();
+    assertEquals(0, released.getCount());
+  }
+
+  private static byte[] bytes(int seed, int length) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Returns zeros, then fails after the given number of bytes */
+  private static final class FailingInputStream extends InputStream {
+
+    private int remaining;
+
+    public FailingInputStream(int length) {
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("boom");
+      }
+      return 0;
+    }
+
+  }
+
+}
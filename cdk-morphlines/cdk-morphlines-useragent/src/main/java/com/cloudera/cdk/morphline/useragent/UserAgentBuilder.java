@@ -16,13 +16,14 @@
 package com.cloudera.cdk.morphline.useragent;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,7 +38,12 @@ import com.cloudera.cdk.morphline.api.Record;
 import com.cloudera.cdk.morphline.base.AbstractCommand;
 import com.cloudera.cdk.morphline.base.Configs;
 import com.cloudera.cdk.morphline.base.Validator;
+import com.codahale.metrics.Meter;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.io.Closeables;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -46,6 +52,15 @@ import com.typesafe.config.ConfigFactory;
  * Command that parses user agent strings and returns structured higher level data like user agent
  * family, operating system, version, and device type, using the underlying API and regexes.yaml
  * BrowserScope database from https://github.com/tobie/ua-parser.
+ * 
+ * Parsers are shared by all userAgent commands of the JVM that use the same database, and parse
+ * results are cached JVM-wide per database and cache capacity. In addition, each command caches the
+ * output field values it formatted for a user agent string, so a repeated user agent string is
+ * neither parsed nor formatted again.
+ * 
+ * The numCacheHits, numCacheMisses and numCacheEvictions meters refer to the cache of formatted
+ * values of the command; the numParseCacheHits and numParseCacheMisses meters refer to the lookups
+ * of the command in the shared cache of parse results.
  */
 public final class UserAgentBuilder implements CommandBuilder {
 
@@ -59,6 +74,11 @@ public final class UserAgentBuilder implements CommandBuilder {
     return new UserAgent(this, config, parent, child, context);
   }
   
+  /** Returns the parser shared by all commands of this JVM that use the given database */
+  static Parser getSharedParser(String databaseFile) throws IOException {
+    return SharedParsers.getParser(databaseFile);
+  }
+  
   
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
@@ -67,6 +87,13 @@ public final class UserAgentBuilder implements CommandBuilder {
 
     private final String inputFieldName;
     private final List<Mapping> mappings = new ArrayList();
+    private final Parser parser;
+    private final Cache<String, Client> parseCache;
+    private final Cache<String, String[]> results;
+    private final Meter numCacheHits;
+    private final Meter numCacheMisses;
+    private final Meter numParseCacheHits;
+    private final Meter numParseCacheMisses;
     
     public UserAgent(CommandBuilder builder, Config config, Command parent, 
                      Command child, MorphlineContext context) {
@@ -77,18 +104,9 @@ public final class UserAgentBuilder implements CommandBuilder {
       int cacheCapacity = getConfigs().getInt(config, "cacheCapacity", 1000);
       String nullReplacement = getConfigs().getString(config, "nullReplacement", "");
 
-      Parser parser;
       try {
-        if (databaseFile == null) {
-          parser = new Parser(); 
-        } else {
-          InputStream in = new BufferedInputStream(new FileInputStream(databaseFile));
-          try {
-            parser = new Parser(in);
-          } finally {
-            Closeables.closeQuietly(in);
-          }
-        }        
+        this.parser = SharedParsers.getParser(databaseFile);
+        this.parseCache = SharedParsers.getCache(databaseFile, cacheCapacity);
       } catch (IOException e) {
         throw new MorphlineCompilationException("Cannot parse UserAgent database: " + databaseFile, config, e);
       }
@@ -99,11 +117,25 @@ public final class UserAgentBuilder implements CommandBuilder {
             new Mapping(
                 entry.getKey(), 
                 entry.getValue().toString().trim(), 
-                parser, 
-                new BoundedLRUHashMap(cacheCapacity), 
                 nullReplacement, 
                 config));
       }
+      final Meter numCacheEvictions = getMeter("numCacheEvictions");
+      this.results = CacheBuilder.newBuilder()
+          .maximumSize(cacheCapacity)
+          .removalListener(new RemovalListener<String, String[]>() {
+            @Override
+            public void onRemoval(RemovalNotification<String, String[]> notification) {
+              if (notification.wasEvicted()) {
+                numCacheEvictions.mark();
+              }
+            }
+          })
+          .build();
+      this.numCacheHits = getMeter("numCacheHits");
+      this.numCacheMisses = getMeter("numCacheMisses");
+      this.numParseCacheHits = getMeter("numParseCacheHits");
+      this.numParseCacheMisses = getMeter("numParseCacheMisses");
       validateArguments();
     }
 
@@ -112,14 +144,39 @@ public final class UserAgentBuilder implements CommandBuilder {
       for (Object value : record.get(inputFieldName)) {
         Preconditions.checkNotNull(value);
         String stringValue = value.toString().trim();
-        for (Mapping mapping : mappings) {
-          mapping.apply(record, stringValue);
+        String[] fieldValues = results.getIfPresent(stringValue);
+        if (fieldValues == null) {
+          numCacheMisses.mark();
+          Client client = getClient(stringValue);
+          fieldValues = new String[mappings.size()];
+          for (int i = 0; i < fieldValues.length; i++) {
+            fieldValues[i] = mappings.get(i).extract(client);
+          }
+          results.put(stringValue, fieldValues);
+        } else {
+          numCacheHits.mark();
+        }
+        for (int i = 0; i < fieldValues.length; i++) {
+          record.put(mappings.get(i).getFieldName(), fieldValues[i]);
         }
       }
       
       // pass record to next command in chain:
       return super.doProcess(record);
     }
+    
+    /** Returns the parse result of the given user agent string from the shared cache or parser */
+    private Client getClient(String userAgent) {
+      Client client = parseCache.getIfPresent(userAgent);
+      if (client == null) { // cache miss
+        numParseCacheMisses.mark();
+        client = parser.parse(userAgent);
+        parseCache.put(userAgent, client);
+      } else {
+        numParseCacheHits.mark();
+      }
+      return client;
+    }
 
   }
 
@@ -131,19 +188,13 @@ public final class UserAgentBuilder implements CommandBuilder {
     
     private final String fieldName;
     private final List components = new ArrayList();
-    private final Parser parser;    
-    private final Map<String, String> cache;
     private final String nullReplacement;
     
     private static final String START_TOKEN = "@{";
     private static final char END_TOKEN = '}';
     
-    public Mapping(String fieldName, String expression, Parser parser, Map<String, String> cache,
-        String nullReplacement, Config config) {
-      
+    public Mapping(String fieldName, String expression, String nullReplacement, Config config) {
       this.fieldName = fieldName;
-      this.parser = parser;
-      this.cache = cache;
       Preconditions.checkNotNull(nullReplacement);
       this.nullReplacement = nullReplacement;
       int from = 0;
@@ -171,17 +222,11 @@ public final class UserAgentBuilder implements CommandBuilder {
       }
     }
     
-    public void apply(Record record, String userAgent) {
-      String result = cache.get(userAgent);
-      if (result == null) { // cache miss
-        result = extract(userAgent);
-        cache.put(userAgent, result);
-      }
-      record.put(fieldName, result);
+    public String getFieldName() {
+      return fieldName;
     }
 
-    private String extract(String userAgent) {
-      Client client = parser.parse(userAgent);        
+    public String extract(Client client) {
       StringBuilder buf = new StringBuilder();
       String lastString = null;
       
@@ -271,19 +316,48 @@ public final class UserAgentBuilder implements CommandBuilder {
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////
-  private static final class BoundedLRUHashMap<K,V> extends LinkedHashMap<K,V> {
+  /**
+   * The parsers and thread-safe, size-bounded caches of parse results shared across the JVM. Parsers
+   * are keyed by database file, caches by database file and cache capacity.
+   */
+  private static final class SharedParsers {
     
-    private final int capacity;
-
-    private BoundedLRUHashMap(int capacity) {
-      super(16, 0.5f, true);
-      this.capacity = capacity;
+    private static final Map<String, Parser> PARSERS = new HashMap();
+    private static final Map<String, Cache<String, Client>> CACHES = new HashMap();
+    
+    public static synchronized Parser getParser(String databaseFile) throws IOException {
+      String key = getKey(databaseFile);
+      Parser parser = PARSERS.get(key);
+      if (parser == null) {
+        if (databaseFile == null) {
+          parser = new Parser(); 
+        } else {
+          InputStream in = new BufferedInputStream(new FileInputStream(databaseFile));
+          try {
+            parser = new Parser(in);
+          } finally {
+            Closeables.closeQuietly(in);
+          }
+        }        
+        PARSERS.put(key, parser);
+      }
+      return parser;
     }
     
-    protected boolean removeEldestEntry(Map.Entry eldest) {
-      return size() > capacity;
+    public static synchronized Cache<String, Client> getCache(String databaseFile, int cacheCapacity) throws IOException {
+      String key = getKey(databaseFile) + "#" + cacheCapacity;
+      Cache<String, Client> cache = CACHES.get(key);
+      if (cache == null) {
+        cache = CacheBuilder.newBuilder().maximumSize(cacheCapacity).build();
+        CACHES.put(key, cache);
+      }
+      return cache;
     }
-      
-  } 
+    
+    private static String getKey(String databaseFile) throws IOException {
+      return databaseFile == null ? "" : new File(databaseFile).getCanonicalPath();
+    }
+    
+  }
 
-}
\ No newline at end of file
+}
@@ -15,6 +15,8 @@
  */
 package com.cloudera.cdk.morphline.useragent;
 
+import java.io.File;
+
 import org.junit.Test;
 
 import ua_parser.Client;
@@ -94,6 +96,44 @@ public class UserAgentMorphlineTest extends AbstractMorphlineTest {
     record = new Record();
     record.put("user_agents", userAgentStr);
     processAndVerifySuccess(record, expected, true);
+    
+    // the second record hits the formatted values cached by the command for the first one
+    assertEquals(1, getMeterCount("numCacheHits"));
+    assertEquals(1, getMeterCount("numCacheMisses"));
+    assertEquals(0, getMeterCount("numCacheEvictions"));
+    // the parse cache is shared across the JVM, so the one lookup may or may not have been a hit
+    assertEquals(1, getMeterCount("numParseCacheHits") + getMeterCount("numParseCacheMisses"));
+  }
+  
+  @Test
+  public void testSharedParser() throws Exception {
+    String databaseFile = "target/test-classes/regexes.yaml";
+    morphline = createMorphline("test-morphlines/userAgentWithDatabase");
+    Parser parser = UserAgentBuilder.getSharedParser(databaseFile);
+    assertSame(parser, UserAgentBuilder.getSharedParser(new File(databaseFile).getAbsolutePath()));
+    morphline = createMorphline("test-morphlines/userAgentWithDatabaseAndSmallCache");
+    assertSame(parser, UserAgentBuilder.getSharedParser(databaseFile));
+    assertNotSame(parser, UserAgentBuilder.getSharedParser(null));
+  }
+  
+  @Test
+  public void testCacheEviction() throws Exception {
+    morphline = createMorphline("test-morphlines/userAgentWithDatabaseAndSmallCache"); // cacheCapacity : 1
+    String[] userAgentStrs = {"foo", "bar", "foo"};
+    for (String userAgentStr : userAgentStrs) {
+      Record record = new Record();
+      record.put("user_agents", userAgentStr);
+      collector.reset();
+      assertTrue(morphline.process(record));
+      assertEquals("Other", collector.getFirstRecord().getFirstValue("ua_family"));
+    }
+    assertEquals(0, getMeterCount("numCacheHits"));
+    assertEquals(3, getMeterCount("numCacheMisses"));
+    assertEquals(2, getMeterCount("numCacheEvictions"));
+  }
+  
+  private long getMeterCount(String name) {
+    return morphContext.getMetricRegistry().getMeters().get("morphline.userAgent." + name).getCount();
   }
   
   private void processAndVerifySuccess(Record input, Record expected, boolean isSame) {